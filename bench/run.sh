@@ -0,0 +1,17 @@
+#!/usr/bin/env bash
+# Compile and run one of the JVM benchmarks in bench/src, e.g.
+#   bench/run.sh SignatureVerifierBench 500
+# Needs a desktop JDK (HotSpot, for -XX:ActiveProcessorCount). Only the app
+# classes a benchmark uses are compiled; build.sh never sees bench/.
+
+set -e
+
+PLATFORM_JAR="${PLATFORM_JAR:-$HOME/.android/android.jar}"
+BENCH="$1"
+shift
+
+rm -rf "build/bench"
+mkdir -p "build/bench"
+javac -nowarn -d "build/bench" -cp "$PLATFORM_JAR" -sourcepath "src:bench/src" \
+    "bench/src/com/example/deviceownerapp/$BENCH.java"
+java -cp "build/bench:$PLATFORM_JAR" "com.example.deviceownerapp.$BENCH" "$@"
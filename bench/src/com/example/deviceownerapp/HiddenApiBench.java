@@ -0,0 +1,122 @@
+package com.example.deviceownerapp;
+
+import java.lang.reflect.Field;
+
+/**
+ * Uncached reflection vs the {@link HiddenApi} call-site cache, per lookup kind.
+ *
+ * Uses JDK classes and a bench-local AIDL-style Stub, so it runs on a plain JVM.
+ * Each lookup loops over the given number of iterations twice: once to warm up,
+ * then once timed.
+ *
+ * Usage: HiddenApiBench [iterations, default 1000000]
+ */
+public class HiddenApiBench {
+
+    private static final String CLASS_NAME = "java.util.concurrent.ConcurrentHashMap";
+    private static final String STUB_NAME = Stub.class.getName();
+
+    // Keeps the JIT from dropping the lookups
+    private static int sink;
+
+    /**
+     * Shaped like an AIDL Stub: a transaction code per method and a private field.
+     */
+    static class Stub {
+        static final int TRANSACTION_installPackage = 1;
+        static final int TRANSACTION_setApplicationHidden = 2;
+        private Object mRemote;
+    }
+
+    private interface Lookup {
+        Object run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        System.out.println("lookup              uncached ns   cached ns");
+        compare("class", iterations, new Lookup() {
+            @Override
+            public Object run() throws Exception {
+                return Class.forName(CLASS_NAME);
+            }
+        }, new Lookup() {
+            @Override
+            public Object run() throws Exception {
+                return HiddenApi.findClass(CLASS_NAME);
+            }
+        });
+        compare("method", iterations, new Lookup() {
+            @Override
+            public Object run() throws Exception {
+                return Class.forName(CLASS_NAME).getMethod("put", Object.class, Object.class);
+            }
+        }, new Lookup() {
+            @Override
+            public Object run() throws Exception {
+                return HiddenApi.method(CLASS_NAME, "put", Object.class, Object.class);
+            }
+        });
+        compare("field", iterations, new Lookup() {
+            @Override
+            public Object run() throws Exception {
+                Field field = Class.forName(STUB_NAME).getDeclaredField("mRemote");
+                field.setAccessible(true);
+                return field;
+            }
+        }, new Lookup() {
+            @Override
+            public Object run() throws Exception {
+                return HiddenApi.field(HiddenApi.findClass(STUB_NAME), "mRemote");
+            }
+        });
+        compare("transaction code", iterations, new Lookup() {
+            @Override
+            public Object run() throws Exception {
+                Field field = Class.forName(STUB_NAME).getDeclaredField("TRANSACTION_setApplicationHidden");
+                field.setAccessible(true);
+                return field.getInt(null);
+            }
+        }, new Lookup() {
+            @Override
+            public Object run() throws Exception {
+                return HiddenApi.getTransactionCode(STUB_NAME, "setApplicationHidden");
+            }
+        });
+        compare("missing code", iterations, new Lookup() {
+            @Override
+            public Object run() throws Exception {
+                try {
+                    return Class.forName(STUB_NAME).getDeclaredField("TRANSACTION_removed").getInt(null);
+                } catch (NoSuchFieldException e) {
+                    return -1;
+                }
+            }
+        }, new Lookup() {
+            @Override
+            public Object run() throws Exception {
+                return HiddenApi.getTransactionCode(STUB_NAME, "removed");
+            }
+        });
+    }
+
+    private static void compare(String name, int iterations, Lookup uncached, Lookup cached) throws Exception {
+        time(uncached, iterations);
+        time(cached, iterations);
+        double raw = time(uncached, iterations);
+        double hit = time(cached, iterations);
+        System.out.println(String.format("%-18s %11.1f %11.1f", name, raw, hit));
+    }
+
+    /**
+     * Nanoseconds per call.
+     */
+    private static double time(Lookup lookup, int iterations) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += lookup.run().hashCode();
+        }
+        return (double) (System.nanoTime() - start) / iterations;
+    }
+}
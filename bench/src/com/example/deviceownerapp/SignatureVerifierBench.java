@@ -0,0 +1,319 @@
+package com.example.deviceownerapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Per-core scaling of {@link ApkSignatureVerifier#verify} on a synthetic APK.
+ *
+ * Writes a v2-signed APK (one STORED entry of random bytes, ECDSA P-256 key from
+ * keytool), then verifies it in a child JVM per core count with
+ * -XX:ActiveProcessorCount, which is what the verifier sizes its workers by.
+ *
+ * Usage: SignatureVerifierBench [size MB, default 500] [runs, default 5]
+ */
+public class SignatureVerifierBench {
+
+    private static final int BLOCK_ID_V2 = 0x7109871a;
+    private static final int SIG_ECDSA_SHA256 = 0x0201;
+    private static final int CHUNK_SIZE = ApkSignatureVerifier.CHUNK_SIZE;
+    private static final String ENTRY_NAME = "payload.bin";
+    private static final String PASSWORD = "benchpass";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--verify")) {
+            runVerify(new File(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        File dir = createTempDir();
+        try {
+            File apk = new File(dir, "bench.apk");
+            long start = System.nanoTime();
+            writeSignedApk(apk, dir, (long) sizeMb * 1024 * 1024);
+            System.out.println("Wrote " + apk.length() / (1024 * 1024) + " MB APK in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+
+            int cores = Runtime.getRuntime().availableProcessors();
+            List<Integer> counts = new ArrayList<>();
+            for (int n = 1; n < cores; n *= 2) {
+                counts.add(n);
+            }
+            counts.add(cores);
+
+            System.out.println("cores   median ms   MB/s   speedup");
+            long baseline = -1;
+            for (int n : counts) {
+                long ms = runChild(apk, n, runs);
+                if (baseline < 0) {
+                    baseline = ms;
+                }
+                System.out.println(String.format("%5d %11d %6d %8.2fx", n, ms,
+                        ms > 0 ? apk.length() * 1000 / (ms * 1024 * 1024) : 0, (double) baseline / Math.max(ms, 1)));
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // ======== Child ========
+
+    private static void runVerify(File apk, int runs) throws Exception {
+        long[] times = new long[runs];
+        try (RandomAccessFile file = new RandomAccessFile(apk, "r")) {
+            FileChannel channel = file.getChannel();
+            // Warm-up: loads the file into the page cache and JITs the digest loop
+            ApkSignatureVerifier.verify(channel, 0, channel.size());
+            for (int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                ApkSignatureVerifier.Signer signer = ApkSignatureVerifier.verify(channel, 0, channel.size());
+                times[i] = (System.nanoTime() - start) / 1000000;
+                if (signer.scheme != 2) {
+                    throw new IllegalStateException("Expected a v2 signer, got v" + signer.scheme);
+                }
+            }
+        }
+        Arrays.sort(times);
+        System.out.println(times[runs / 2]);
+        // The digest pool threads aren't daemons
+        System.exit(0);
+    }
+
+    private static long runChild(File apk, int cores, int runs) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder pb = new ProcessBuilder(java, "-XX:ActiveProcessorCount=" + cores,
+                "-cp", System.getProperty("java.class.path"),
+                SignatureVerifierBench.class.getName(), "--verify", apk.getPath(), String.valueOf(runs));
+        pb.redirectErrorStream(true);
+        Process process = pb.start();
+        String output = readAll(process.getInputStream()).trim();
+        if (process.waitFor() != 0) {
+            throw new IOException("Verifier run failed:\n" + output);
+        }
+        String[] lines = output.split("\n");
+        return Long.parseLong(lines[lines.length - 1].trim());
+    }
+
+    // ======== Synthetic APK ========
+
+    /**
+     * One STORED entry, the central directory, a v2 signing block and the EOCD.
+     */
+    private static void writeSignedApk(File apk, File dir, long payloadSize) throws Exception {
+        KeyStore keyStore = generateKey(dir);
+        PrivateKey key = (PrivateKey) keyStore.getKey("bench", PASSWORD.toCharArray());
+        Certificate cert = keyStore.getCertificate("bench");
+
+        byte[] name = ENTRY_NAME.getBytes("UTF-8");
+        CRC32 crc = new CRC32();
+        long entriesEnd;
+        try (RandomAccessFile file = new RandomAccessFile(apk, "rw")) {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = le(30 + name.length);
+            header.putInt(0x04034b50).putShort((short) 10).putShort((short) 0).putShort((short) 0)
+                    .putInt(0).putInt(0).putInt((int) payloadSize).putInt((int) payloadSize)
+                    .putShort((short) name.length).putShort((short) 0).put(name);
+            header.flip();
+            writeFully(channel, header);
+
+            Random random = new Random(42);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            for (long done = 0; done < payloadSize; done += chunk.length) {
+                random.nextBytes(chunk);
+                int length = (int) Math.min(chunk.length, payloadSize - done);
+                crc.update(chunk, 0, length);
+                writeFully(channel, ByteBuffer.wrap(chunk, 0, length));
+            }
+            entriesEnd = channel.position();
+            // Patch the CRC now that the payload is written
+            ByteBuffer crcField = le(4);
+            crcField.putInt((int) crc.getValue());
+            crcField.flip();
+            channel.write(crcField, 14);
+        }
+
+        ByteBuffer centralDir = le(46 + name.length);
+        centralDir.putInt(0x02014b50).putShort((short) 20).putShort((short) 10).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt((int) crc.getValue())
+                .putInt((int) payloadSize).putInt((int) payloadSize).putShort((short) name.length)
+                .putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0)
+                .putInt(0).putInt(0).put(name);
+        centralDir.flip();
+
+        // The digested EOCD points at where the signing block goes
+        ByteBuffer eocd = le(22);
+        eocd.putInt(0x06054b50).putShort((short) 0).putShort((short) 0).putShort((short) 1)
+                .putShort((short) 1).putInt(centralDir.remaining()).putInt((int) entriesEnd).putShort((short) 0);
+        eocd.flip();
+
+        byte[] digest = contentDigest(apk, entriesEnd, centralDir.duplicate(), eocd.duplicate());
+
+        byte[] signedData = concat(
+                lengthPrefixed(lengthPrefixed(concat(le32(SIG_ECDSA_SHA256), lengthPrefixed(digest)))),
+                lengthPrefixed(lengthPrefixed(cert.getEncoded())),
+                lengthPrefixed(new byte[0]));
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(key);
+        signature.update(signedData);
+        byte[] signer = concat(
+                lengthPrefixed(signedData),
+                lengthPrefixed(lengthPrefixed(concat(le32(SIG_ECDSA_SHA256), lengthPrefixed(signature.sign())))),
+                lengthPrefixed(cert.getPublicKey().getEncoded()));
+        byte[] v2 = lengthPrefixed(lengthPrefixed(signer));
+
+        // Signing block: size, (length, ID, value) pairs, size, magic
+        long blockSize = 8 + 4 + v2.length + 8 + 16;
+        ByteBuffer block = le((int) (blockSize + 8));
+        block.putLong(blockSize).putLong(4 + v2.length).putInt(BLOCK_ID_V2).put(v2).putLong(blockSize)
+                .put("APK Sig Block 42".getBytes("US-ASCII"));
+        block.flip();
+
+        try (RandomAccessFile file = new RandomAccessFile(apk, "rw")) {
+            FileChannel channel = file.getChannel();
+            channel.position(entriesEnd);
+            writeFully(channel, block);
+            long centralDirStart = channel.position();
+            writeFully(channel, centralDir);
+            eocd.putInt(16, (int) centralDirStart);
+            writeFully(channel, eocd);
+        }
+    }
+
+    /**
+     * The v2 content digest, computed serially here so it doesn't share code
+     * with the verifier under test.
+     */
+    private static byte[] contentDigest(File apk, long entriesEnd, ByteBuffer centralDir, ByteBuffer eocd)
+            throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        ByteArrayOutputStream digests = new ByteArrayOutputStream();
+        int count = 0;
+        try (FileInputStream in = new FileInputStream(apk)) {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            for (long done = 0; done < entriesEnd; ) {
+                int length = (int) Math.min(CHUNK_SIZE, entriesEnd - done);
+                int read = 0;
+                while (read < length) {
+                    int n = in.read(chunk, read, length - read);
+                    if (n < 0) throw new IOException("Short read");
+                    read += n;
+                }
+                digests.write(digestChunk(md, ByteBuffer.wrap(chunk, 0, length)));
+                done += length;
+                count++;
+            }
+        }
+        digests.write(digestChunk(md, centralDir));
+        digests.write(digestChunk(md, eocd));
+        count += 2;
+
+        md.reset();
+        md.update((byte) 0x5a);
+        md.update(le32(count));
+        return md.digest(digests.toByteArray());
+    }
+
+    private static byte[] digestChunk(MessageDigest md, ByteBuffer chunk) {
+        md.reset();
+        md.update((byte) 0xa5);
+        md.update(le32(chunk.remaining()));
+        md.update(chunk);
+        return md.digest();
+    }
+
+    private static KeyStore generateKey(File dir) throws Exception {
+        File store = new File(dir, "bench.p12");
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        ProcessBuilder pb = new ProcessBuilder(keytool, "-genkeypair", "-alias", "bench",
+                "-keyalg", "EC", "-keysize", "256", "-sigalg", "SHA256withECDSA", "-dname", "CN=bench",
+                "-validity", "1", "-storetype", "PKCS12", "-keystore", store.getPath(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD);
+        pb.redirectErrorStream(true);
+        Process process = pb.start();
+        String output = readAll(process.getInputStream());
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed:\n" + output);
+        }
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(store)) {
+            keyStore.load(in, PASSWORD.toCharArray());
+        }
+        return keyStore;
+    }
+
+    // ======== Helpers ========
+
+    private static ByteBuffer le(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] le32(int value) {
+        return le(4).putInt(value).array();
+    }
+
+    private static byte[] lengthPrefixed(byte[] value) {
+        return concat(le32(value.length), value);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("sigbench", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+        return dir;
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
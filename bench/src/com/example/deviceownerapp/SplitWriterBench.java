@@ -0,0 +1,132 @@
+package com.example.deviceownerapp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Serial vs parallel {@link SplitWriter} on a synthetic bundle of DEFLATED splits.
+ *
+ * The splits are written to files in a temp directory and synced, standing in for
+ * the session's openWrite and fsync. One base split holds a third of the bytes and
+ * the rest are spread over the config splits, like a typical XAPK.
+ *
+ * Usage: SplitWriterBench [splits, default 20] [total MB, default 200] [runs, default 3]
+ */
+public class SplitWriterBench {
+
+    public static void main(String[] args) throws Exception {
+        int splits = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int totalMb = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        File dir = createTempDir();
+        try {
+            File bundle = new File(dir, "bench.xapk");
+            long start = System.nanoTime();
+            writeBundle(bundle, splits, (long) totalMb * 1024 * 1024);
+            System.out.println("Wrote " + splits + " splits (" + bundle.length() / (1024 * 1024)
+                    + " MB compressed) in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+            File out = new File(dir, "session");
+            if (!out.mkdir()) {
+                throw new IOException("Could not create " + out);
+            }
+            try (SeekableBundleReader reader = new SeekableBundleReader(new FileInputStream(bundle))) {
+                int parallel = SplitWriter.getWorkerCount(splits);
+                // Warm-up, so neither mode pays for the page cache or the JIT
+                write(reader, out, 1);
+                write(reader, out, parallel);
+
+                long serial = median(reader, out, 1, runs);
+                System.out.println("serial:     1 worker   " + serial + " ms");
+                long pooled = median(reader, out, parallel, runs);
+                System.out.println(String.format("parallel: %2d workers  %d ms (%.2fx)", parallel, pooled,
+                        (double) serial / Math.max(pooled, 1)));
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    private static long median(SeekableBundleReader reader, File out, int workers, int runs) throws IOException {
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            times[i] = write(reader, out, workers);
+        }
+        Arrays.sort(times);
+        return times[runs / 2];
+    }
+
+    private static long write(SeekableBundleReader reader, final File out, int workers) throws IOException {
+        SplitWriter writer = new SplitWriter(new SplitWriter.Sink() {
+            @Override
+            public OutputStream openWrite(String name, long offset, long length) throws IOException {
+                return new FileOutputStream(new File(out, name));
+            }
+
+            @Override
+            public void fsync(OutputStream stream) throws IOException {
+                ((FileOutputStream) stream).getFD().sync();
+            }
+        }, null);
+        writer.setMaxWorkers(workers);
+        long start = System.nanoTime();
+        writer.writeApks(reader);
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    // ======== Synthetic bundle ========
+
+    private static void writeBundle(File bundle, int splits, long totalSize) throws IOException {
+        List<Long> sizes = new ArrayList<>();
+        sizes.add(totalSize / 3);
+        for (int i = 1; i < splits; i++) {
+            sizes.add((totalSize - totalSize / 3) / Math.max(splits - 1, 1));
+        }
+
+        // Bytes from a 16-symbol alphabet compress about 2:1, so inflating has real work
+        Random random = new Random(42);
+        byte[] buffer = new byte[FileTransfer.BUFFER_SIZE];
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(bundle))) {
+            zip.setLevel(6);
+            for (int i = 0; i < sizes.size(); i++) {
+                zip.putNextEntry(new ZipEntry(i == 0 ? "base.apk" : "config.split" + i + ".apk"));
+                for (long done = 0; done < sizes.get(i); done += buffer.length) {
+                    random.nextBytes(buffer);
+                    for (int b = 0; b < buffer.length; b++) {
+                        buffer[b] = (byte) ('a' + (buffer[b] & 0x0F));
+                    }
+                    zip.write(buffer, 0, (int) Math.min(buffer.length, sizes.get(i) - done));
+                }
+                zip.closeEntry();
+            }
+        }
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("splitbench", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+        return dir;
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,211 @@
+package com.example.deviceownerapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The identity fields of an APK's binary AndroidManifest.xml: package name,
+ * versionCode and split name. Only the root &lt;manifest&gt; element is decoded.
+ */
+public class ApkManifest {
+
+    public static final String MANIFEST_ENTRY = "AndroidManifest.xml";
+
+    // Binary XML chunk types
+    private static final int RES_XML_TYPE = 0x0003;
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+    private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+
+    private static final int UTF8_FLAG = 0x100;
+    private static final int TYPE_STRING = 0x03;
+    private static final int TYPE_INT_DEC = 0x10;
+    private static final int TYPE_INT_HEX = 0x11;
+
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+
+    // Manifests are a few KB; anything this big isn't one
+    private static final int MAX_MANIFEST_SIZE = 4 * 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+
+    public final String packageName;
+    public final int versionCode;
+    public final String splitName;
+
+    public ApkManifest(String packageName, int versionCode, String splitName) {
+        this.packageName = packageName;
+        this.versionCode = versionCode;
+        this.splitName = splitName;
+    }
+
+    public boolean isBase() {
+        return splitName == null || splitName.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return packageName + (isBase() ? "" : ":" + splitName) + " v" + versionCode;
+    }
+
+    /**
+     * Read the manifest from an APK given as a stream, stopping as soon as the
+     * AndroidManifest.xml entry has been read (it is normally the first entry).
+     */
+    public static ApkManifest read(InputStream apk) throws IOException {
+        ZipInputStream zip = new ZipInputStream(apk);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            if (MANIFEST_ENTRY.equals(entry.getName())) {
+                return parse(readEntry(zip));
+            }
+        }
+        throw new IOException("APK has no AndroidManifest.xml");
+    }
+
+    static byte[] readEntry(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            if (out.size() > MAX_MANIFEST_SIZE) {
+                throw new IOException("AndroidManifest.xml is too large");
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode the root element of a binary AndroidManifest.xml.
+     */
+    public static ApkManifest parse(byte[] data) throws IOException {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            if ((buf.getShort(0) & 0xFFFF) != RES_XML_TYPE) {
+                throw new IOException("AndroidManifest.xml is not binary XML");
+            }
+
+            String[] strings = null;
+            int[] resourceIds = new int[0];
+            int pos = buf.getShort(2) & 0xFFFF;
+            while (pos + 8 <= data.length) {
+                int type = buf.getShort(pos) & 0xFFFF;
+                int headerSize = buf.getShort(pos + 2) & 0xFFFF;
+                int size = buf.getInt(pos + 4);
+                if (size < 8 || pos + size > data.length) {
+                    break;
+                }
+
+                if (type == RES_STRING_POOL_TYPE) {
+                    strings = readStringPool(buf, pos);
+                } else if (type == RES_XML_RESOURCE_MAP_TYPE) {
+                    resourceIds = new int[(size - headerSize) / 4];
+                    for (int i = 0; i < resourceIds.length; i++) {
+                        resourceIds[i] = buf.getInt(pos + headerSize + i * 4);
+                    }
+                } else if (type == RES_XML_START_ELEMENT_TYPE) {
+                    if (strings == null) {
+                        break;
+                    }
+                    // The first element is <manifest>
+                    return readManifestElement(buf, pos, headerSize, strings, resourceIds);
+                }
+                pos += size;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated AndroidManifest.xml");
+        }
+        throw new IOException("No <manifest> element in AndroidManifest.xml");
+    }
+
+    private static ApkManifest readManifestElement(ByteBuffer buf, int pos, int headerSize,
+                                                   String[] strings, int[] resourceIds) throws IOException {
+        int ext = pos + headerSize;
+        int attributeStart = buf.getShort(ext + 8) & 0xFFFF;
+        int attributeSize = buf.getShort(ext + 10) & 0xFFFF;
+        int attributeCount = buf.getShort(ext + 12) & 0xFFFF;
+
+        String packageName = null;
+        String splitName = null;
+        int versionCode = 0;
+
+        for (int i = 0; i < attributeCount; i++) {
+            int attr = ext + attributeStart + i * attributeSize;
+            int nameIndex = buf.getInt(attr + 4);
+            int rawValue = buf.getInt(attr + 8);
+            int dataType = buf.get(attr + 15) & 0xFF;
+            int data = buf.getInt(attr + 16);
+
+            String name = nameIndex >= 0 && nameIndex < strings.length ? strings[nameIndex] : "";
+            int resId = nameIndex >= 0 && nameIndex < resourceIds.length ? resourceIds[nameIndex] : 0;
+
+            if (resId == ATTR_VERSION_CODE || (resId == 0 && "versionCode".equals(name))) {
+                if (dataType == TYPE_INT_DEC || dataType == TYPE_INT_HEX) {
+                    versionCode = data;
+                } else if (dataType == TYPE_STRING) {
+                    try {
+                        versionCode = Integer.parseInt(stringAt(strings, rawValue));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Bad versionCode in AndroidManifest.xml");
+                    }
+                }
+            } else if (resId == 0 && "package".equals(name)) {
+                packageName = stringAt(strings, dataType == TYPE_STRING ? data : rawValue);
+            } else if (resId == 0 && "split".equals(name)) {
+                splitName = stringAt(strings, dataType == TYPE_STRING ? data : rawValue);
+            }
+        }
+
+        if (packageName == null || packageName.isEmpty()) {
+            throw new IOException("AndroidManifest.xml has no package name");
+        }
+        return new ApkManifest(packageName, versionCode, splitName);
+    }
+
+    private static String stringAt(String[] strings, int index) {
+        return index >= 0 && index < strings.length ? strings[index] : null;
+    }
+
+    private static String[] readStringPool(ByteBuffer buf, int pos) {
+        int stringCount = buf.getInt(pos + 8);
+        int flags = buf.getInt(pos + 16);
+        int stringsStart = buf.getInt(pos + 20);
+        int headerSize = buf.getShort(pos + 2) & 0xFFFF;
+        boolean utf8 = (flags & UTF8_FLAG) != 0;
+
+        String[] strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            int offset = pos + stringsStart + buf.getInt(pos + headerSize + i * 4);
+            if (utf8) {
+                // UTF-16 length, then UTF-8 byte length, each 1 or 2 bytes
+                offset += (buf.get(offset) & 0x80) != 0 ? 2 : 1;
+                int length = buf.get(offset) & 0xFF;
+                if ((length & 0x80) != 0) {
+                    length = ((length & 0x7F) << 8) | (buf.get(offset + 1) & 0xFF);
+                    offset += 2;
+                } else {
+                    offset += 1;
+                }
+                strings[i] = new String(buf.array(), offset, length, UTF_8);
+            } else {
+                int length = buf.getShort(offset) & 0xFFFF;
+                if ((length & 0x8000) != 0) {
+                    length = ((length & 0x7FFF) << 16) | (buf.getShort(offset + 2) & 0xFFFF);
+                    offset += 4;
+                } else {
+                    offset += 2;
+                }
+                strings[i] = new String(buf.array(), offset, length * 2, UTF_16LE);
+            }
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,784 @@
+package com.example.deviceownerapp;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.os.Build;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.CodeSigner;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+
+/**
+ * Verifies APK signatures before commit and checks the signer against the
+ * installed package.
+ *
+ * APK Signature Scheme v2/v3 digest the file in 1 MB chunks, each chunk
+ * independently, so the chunks are split across a worker pool with one
+ * contiguous run of chunks per core. v3 is used on Android 9+ (it is ignored by
+ * the 8.1 package manager), then v2, then JAR (v1) signing as the fallback.
+ *
+ * Verified signers are remembered in the {@link StagingCache} metadata of the
+ * payload, so installing the same file again only repeats the installed-signer
+ * comparison.
+ */
+public class ApkSignatureVerifier {
+
+    private static final String TAG = "SignatureVerifier";
+
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static final int BLOCK_ID_V2 = 0x7109871a;
+    private static final int BLOCK_ID_V3 = 0xf05368c0;
+    private static final long SIG_BLOCK_MAGIC_LO = 0x20676953204b5041L; // "APK Sig "
+    private static final long SIG_BLOCK_MAGIC_HI = 0x3234206b636f6c42L; // "Block 42"
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+    private static final int SIG_RSA_PSS_SHA256 = 0x0101;
+    private static final int SIG_RSA_PSS_SHA512 = 0x0102;
+    private static final int SIG_RSA_PKCS1_SHA256 = 0x0103;
+    private static final int SIG_RSA_PKCS1_SHA512 = 0x0104;
+    private static final int SIG_ECDSA_SHA256 = 0x0201;
+    private static final int SIG_ECDSA_SHA512 = 0x0202;
+    private static final int SIG_DSA_SHA256 = 0x0301;
+
+    // Leaf-only digests; entries written under the old "signer." key are ignored
+    private static final String META_PREFIX = "signer.leaf.";
+
+    private static ExecutorService digestPool = null;
+    private static ExecutorService checkExecutor = null;
+
+    /**
+     * Verified signer of one APK. Holds only the end-entity certificate of each
+     * signer, which is what the package manager reports as its Signature; the
+     * intermediates can change without the signing key changing.
+     */
+    public static class Signer {
+        public final int scheme;
+        public final List<byte[]> certificates;
+
+        Signer(int scheme, List<byte[]> certificates) {
+            this.scheme = scheme;
+            this.certificates = certificates;
+        }
+
+        /**
+         * SHA-256 over the sorted certificate digests; stable across schemes.
+         */
+        public String getDigest() {
+            return digestCertificates(certificates);
+        }
+    }
+
+    // ======== Plan verification ========
+
+    /**
+     * Start verifying every APK of a seekable plan on the background pool. The
+     * result (an error message, or null) is collected with {@link #await}.
+     */
+    public static void verifyAsync(final Context context, final PackageFormatDetector.InstallPlan plan) {
+        if (plan.getSeekableReader() == null || plan.getSignatureCheck() != null) {
+            return;
+        }
+        plan.setSignatureCheck(getCheckExecutor().submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return verifyPlan(context, plan);
+            }
+        }));
+    }
+
+    /**
+     * Wait for the plan's signature check. Throws if it failed.
+     */
+    public static void await(PackageFormatDetector.InstallPlan plan) throws IOException {
+        Future<String> check = plan.getSignatureCheck();
+        if (check == null) {
+            return;
+        }
+        String error;
+        try {
+            error = check.get();
+        } catch (ExecutionException e) {
+            error = e.getCause().getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while verifying signatures");
+        }
+        if (error != null) {
+            throw new IOException("Signature check failed: " + error);
+        }
+    }
+
+    /**
+     * Verify each APK of the plan and compare with the installed package.
+     * Returns an error message or null.
+     */
+    public static String verifyPlan(Context context, PackageFormatDetector.InstallPlan plan) {
+        SeekableBundleReader reader = plan.getSeekableReader();
+        StagingCache cache = new StagingCache(context);
+        String signerDigest = null;
+        String packageName = null;
+        long start = System.currentTimeMillis();
+
+        Map<String, ApkManifest> manifests = plan.getManifests();
+        if (manifests != null && !manifests.isEmpty()) {
+            packageName = manifests.values().iterator().next().packageName;
+        }
+
+        try {
+            List<BundleReader.Entry> apks = plan.isBundle()
+                    ? plan.getSelectedApkEntries()
+                    : java.util.Collections.<BundleReader.Entry>singletonList(null);
+            for (BundleReader.Entry entry : apks) {
+                String name = entry != null ? entry.name : "base.apk";
+                String digest = cache.getMetadata(plan.stagingKey, META_PREFIX + name);
+                if (digest == null) {
+                    Signer signer;
+                    if (entry == null) {
+                        signer = verify(reader.getChannel(), 0, reader.getSize());
+                    } else if (entry.method == BundleReader.METHOD_STORED) {
+                        signer = verify(reader.getChannel(), reader.getDataOffset(entry), entry.size);
+                    } else {
+                        // Needs random access; the package manager still checks it at commit
+                        Logger.log(context, TAG, "Skipping compressed split " + name);
+                        continue;
+                    }
+                    digest = signer.getDigest();
+                    cache.putMetadata(plan.stagingKey, META_PREFIX + name, digest);
+                }
+                if (signerDigest == null) {
+                    signerDigest = digest;
+                } else if (!signerDigest.equals(digest)) {
+                    return name + " is signed by a different key than the rest of the package";
+                }
+            }
+        } catch (IOException | SecurityException e) {
+            return e.getMessage();
+        }
+
+        if (signerDigest != null && packageName != null) {
+            String installed = getInstalledSignerDigest(context, packageName);
+            if (installed != null && !installed.equals(signerDigest)) {
+                return "Signer does not match installed " + packageName;
+            }
+        }
+        Logger.log(context, TAG, "Signatures OK in " + (System.currentTimeMillis() - start) + " ms");
+        return null;
+    }
+
+    private static String getInstalledSignerDigest(Context context, String packageName) {
+        try {
+            @SuppressWarnings("deprecation")
+            PackageInfo info = context.getPackageManager().getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
+            if (info.signatures == null || info.signatures.length == 0) {
+                return null;
+            }
+            // One Signature per signer, each the signer's end-entity certificate
+            List<byte[]> certs = new ArrayList<>();
+            for (Signature signature : info.signatures) {
+                certs.add(signature.toByteArray());
+            }
+            return digestCertificates(certs);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static String digestCertificates(List<byte[]> certificates) {
+        try {
+            TreeSet<String> sorted = new TreeSet<>();
+            for (byte[] cert : certificates) {
+                sorted.add(toHex(MessageDigest.getInstance("SHA-256").digest(cert)));
+            }
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String cert : sorted) {
+                md.update(cert.getBytes("US-ASCII"));
+            }
+            return toHex(md.digest());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    // ======== Single APK ========
+
+    /**
+     * Verify the APK stored at [offset, offset + length) of the channel and return
+     * its signer. Throws SecurityException if the APK is not validly signed.
+     */
+    public static Signer verify(FileChannel channel, long offset, long length) throws IOException {
+        ApkLayout layout = ApkLayout.read(channel, offset, length);
+        if (layout.signingBlock != null) {
+            ByteBuffer v3 = Build.VERSION.SDK_INT >= 28 ? findBlock(layout.signingBlock, BLOCK_ID_V3) : null;
+            if (v3 != null) {
+                return verifyBlock(channel, layout, v3, 3);
+            }
+            ByteBuffer v2 = findBlock(layout.signingBlock, BLOCK_ID_V2);
+            if (v2 != null) {
+                return verifyBlock(channel, layout, v2, 2);
+            }
+        }
+        return verifyJar(channel, layout);
+    }
+
+    /**
+     * Offsets of the sections that v2/v3 digest, relative to the channel.
+     */
+    private static class ApkLayout {
+        long start;
+        long signingBlockStart;
+        long centralDirStart;
+        long eocdStart;
+        long end;
+        ByteBuffer signingBlock;  // ID-value pairs, or null
+        ByteBuffer eocd;
+
+        static ApkLayout read(FileChannel channel, long offset, long length) throws IOException {
+            ApkLayout layout = new ApkLayout();
+            layout.start = offset;
+            layout.end = offset + length;
+
+            int tailSize = (int) Math.min(length, EOCD_MIN_SIZE + 0xFFFF);
+            ByteBuffer tail = readFully(channel, layout.end - tailSize, tailSize);
+            int eocd = -1;
+            for (int i = tailSize - EOCD_MIN_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == EOCD_SIGNATURE) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0) {
+                throw new SecurityException("Not a ZIP archive");
+            }
+            layout.eocdStart = layout.end - tailSize + eocd;
+            layout.eocd = readFully(channel, layout.eocdStart, (int) (layout.end - layout.eocdStart));
+            layout.centralDirStart = offset + (layout.eocd.getInt(16) & 0xFFFFFFFFL);
+            layout.signingBlockStart = layout.centralDirStart;
+            if (layout.centralDirStart > layout.eocdStart || layout.centralDirStart < offset) {
+                throw new SecurityException("Central directory out of range");
+            }
+
+            if (layout.centralDirStart - offset >= 32) {
+                ByteBuffer footer = readFully(channel, layout.centralDirStart - 24, 24);
+                if (footer.getLong(8) == SIG_BLOCK_MAGIC_LO && footer.getLong(16) == SIG_BLOCK_MAGIC_HI) {
+                    long blockSize = footer.getLong(0);
+                    long blockStart = layout.centralDirStart - blockSize - 8;
+                    if (blockSize < 24 || blockSize > Integer.MAX_VALUE || blockStart < offset) {
+                        throw new SecurityException("Bad APK signing block size");
+                    }
+                    ByteBuffer block = readFully(channel, blockStart, (int) (blockSize + 8));
+                    if (block.getLong(0) != blockSize) {
+                        throw new SecurityException("APK signing block sizes don't match");
+                    }
+                    block.position(8);
+                    block.limit((int) (blockSize + 8 - 24));
+                    layout.signingBlock = block.slice().order(ByteOrder.LITTLE_ENDIAN);
+                    layout.signingBlockStart = blockStart;
+                }
+            }
+            return layout;
+        }
+    }
+
+    private static ByteBuffer findBlock(ByteBuffer pairs, int id) {
+        ByteBuffer buf = pairs.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.remaining() >= 12) {
+            long length = buf.getLong();
+            if (length < 4 || length > buf.remaining()) {
+                throw new SecurityException("Bad APK signing block entry");
+            }
+            int entryId = buf.getInt();
+            int valueLength = (int) (length - 4);
+            if (entryId == id) {
+                ByteBuffer value = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+                value.limit(valueLength);
+                return value;
+            }
+            buf.position(buf.position() + valueLength);
+        }
+        return null;
+    }
+
+    private static ByteBuffer lengthPrefixed(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) {
+            throw new SecurityException("Bad length-prefixed field");
+        }
+        ByteBuffer slice = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        slice.limit(length);
+        buf.position(buf.position() + length);
+        return slice;
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        byte[] out = new byte[buf.remaining()];
+        buf.duplicate().get(out);
+        return out;
+    }
+
+    // ======== v2 / v3 ========
+
+    private static Signer verifyBlock(FileChannel channel, ApkLayout layout, ByteBuffer block, int scheme)
+            throws IOException {
+        try {
+            ByteBuffer signers = lengthPrefixed(block);
+            while (signers.hasRemaining()) {
+                ByteBuffer signer = lengthPrefixed(signers);
+                ByteBuffer signedData = lengthPrefixed(signer);
+                if (scheme == 3) {
+                    int minSdk = signer.getInt();
+                    int maxSdk = signer.getInt();
+                    if (Build.VERSION.SDK_INT < minSdk || Build.VERSION.SDK_INT > maxSdk) {
+                        continue;
+                    }
+                }
+                // v2 allows one signer per key; the platform requires all to verify.
+                // In practice there is exactly one, so the first valid one is returned.
+                return verifySigner(channel, layout, signedData, signer, scheme);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new SecurityException("Truncated v" + scheme + " signature block");
+        }
+        throw new SecurityException("No v" + scheme + " signer for this Android version");
+    }
+
+    private static Signer verifySigner(FileChannel channel, ApkLayout layout, ByteBuffer signedData,
+                                       ByteBuffer signer, int scheme) throws IOException {
+        ByteBuffer signatures = lengthPrefixed(signer);
+        byte[] publicKeyBytes = bytes(lengthPrefixed(signer));
+
+        // Strongest signature we understand
+        int bestAlgorithm = -1;
+        byte[] bestSignature = null;
+        while (signatures.hasRemaining()) {
+            ByteBuffer signature = lengthPrefixed(signatures);
+            int algorithm = signature.getInt();
+            byte[] value = bytes(lengthPrefixed(signature));
+            if (isSupported(algorithm) && (bestAlgorithm == -1 || rank(algorithm) > rank(bestAlgorithm))) {
+                bestAlgorithm = algorithm;
+                bestSignature = value;
+            }
+        }
+        if (bestAlgorithm == -1) {
+            throw new SecurityException("No supported v" + scheme + " signature algorithm");
+        }
+
+        PublicKey publicKey;
+        try {
+            publicKey = KeyFactory.getInstance(getKeyAlgorithm(bestAlgorithm))
+                    .generatePublic(new X509EncodedKeySpec(publicKeyBytes));
+            java.security.Signature sig = java.security.Signature.getInstance(getJcaAlgorithm(bestAlgorithm));
+            sig.initVerify(publicKey);
+            if (bestAlgorithm == SIG_RSA_PSS_SHA256) {
+                sig.setParameter(new PSSParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 32, 1));
+            } else if (bestAlgorithm == SIG_RSA_PSS_SHA512) {
+                sig.setParameter(new PSSParameterSpec("SHA-512", "MGF1", MGF1ParameterSpec.SHA512, 64, 1));
+            }
+            sig.update(signedData.duplicate());
+            if (!sig.verify(bestSignature)) {
+                throw new SecurityException("v" + scheme + " signature did not verify");
+            }
+        } catch (SecurityException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SecurityException("Could not verify v" + scheme + " signature: " + e.getMessage());
+        }
+
+        // Signed data: digests, certificates, [v3: min/max SDK], attributes
+        ByteBuffer digests = lengthPrefixed(signedData);
+        ByteBuffer certificates = lengthPrefixed(signedData);
+
+        byte[] expectedDigest = null;
+        while (digests.hasRemaining()) {
+            ByteBuffer digest = lengthPrefixed(digests);
+            int algorithm = digest.getInt();
+            byte[] value = bytes(lengthPrefixed(digest));
+            if (algorithm == bestAlgorithm) {
+                expectedDigest = value;
+            }
+        }
+        if (expectedDigest == null) {
+            throw new SecurityException("Signature algorithm missing from v" + scheme + " digests");
+        }
+
+        List<byte[]> certs = new ArrayList<>();
+        while (certificates.hasRemaining()) {
+            certs.add(bytes(lengthPrefixed(certificates)));
+        }
+        if (certs.isEmpty()) {
+            throw new SecurityException("No certificates in v" + scheme + " signer");
+        }
+        try {
+            X509Certificate leaf = (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(certs.get(0)));
+            if (!Arrays.equals(leaf.getPublicKey().getEncoded(), publicKeyBytes)) {
+                throw new SecurityException("v" + scheme + " certificate doesn't match the signing key");
+            }
+        } catch (java.security.cert.CertificateException e) {
+            throw new SecurityException("Bad v" + scheme + " certificate: " + e.getMessage());
+        }
+
+        byte[] actualDigest = computeContentDigest(channel, layout, getDigestAlgorithm(bestAlgorithm));
+        if (!MessageDigest.isEqual(expectedDigest, actualDigest)) {
+            throw new SecurityException("APK contents don't match the v" + scheme + " digest");
+        }
+        return new Signer(scheme, java.util.Collections.singletonList(certs.get(0)));
+    }
+
+    private static boolean isSupported(int algorithm) {
+        return rank(algorithm) > 0;
+    }
+
+    private static int rank(int algorithm) {
+        switch (algorithm) {
+            case SIG_RSA_PSS_SHA512:
+            case SIG_RSA_PKCS1_SHA512:
+            case SIG_ECDSA_SHA512:
+                return 2;
+            case SIG_RSA_PSS_SHA256:
+            case SIG_RSA_PKCS1_SHA256:
+            case SIG_ECDSA_SHA256:
+            case SIG_DSA_SHA256:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    private static String getKeyAlgorithm(int algorithm) {
+        switch (algorithm) {
+            case SIG_ECDSA_SHA256:
+            case SIG_ECDSA_SHA512:
+                return "EC";
+            case SIG_DSA_SHA256:
+                return "DSA";
+            default:
+                return "RSA";
+        }
+    }
+
+    private static String getJcaAlgorithm(int algorithm) {
+        switch (algorithm) {
+            case SIG_RSA_PSS_SHA256: return "SHA256withRSA/PSS";
+            case SIG_RSA_PSS_SHA512: return "SHA512withRSA/PSS";
+            case SIG_RSA_PKCS1_SHA256: return "SHA256withRSA";
+            case SIG_RSA_PKCS1_SHA512: return "SHA512withRSA";
+            case SIG_ECDSA_SHA256: return "SHA256withECDSA";
+            case SIG_ECDSA_SHA512: return "SHA512withECDSA";
+            default: return "SHA256withDSA";
+        }
+    }
+
+    private static String getDigestAlgorithm(int algorithm) {
+        return rank(algorithm) == 2 ? "SHA-512" : "SHA-256";
+    }
+
+    // ======== Chunked content digest ========
+
+    /**
+     * The v2 content digest: every 1 MB chunk of the entries, central directory
+     * and EOCD (with the central directory offset pointing at the signing block)
+     * is digested on its own, then the chunk digests are digested together.
+     */
+    private static byte[] computeContentDigest(final FileChannel channel, ApkLayout layout,
+                                               final String digestAlgorithm) throws IOException {
+        // The EOCD is digested as if the signing block weren't there
+        final ByteBuffer eocd = layout.eocd.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        eocd.putInt(16, (int) (layout.signingBlockStart - layout.start));
+
+        final long[][] sections = {
+                {layout.start, layout.signingBlockStart},
+                {layout.centralDirStart, layout.eocdStart},
+        };
+        long chunkCount = 0;
+        for (long[] section : sections) {
+            chunkCount += (section[1] - section[0] + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        }
+        final int fileChunks = (int) chunkCount;
+        final int totalChunks = fileChunks + 1;
+        int digestLength;
+        try {
+            digestLength = MessageDigest.getInstance(digestAlgorithm).getDigestLength();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        final byte[] chunkDigests = new byte[5 + totalChunks * digestLength];
+        chunkDigests[0] = 0x5a;
+        ByteBuffer.wrap(chunkDigests, 1, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(totalChunks);
+        final int digestSize = digestLength;
+
+        // One contiguous run of chunks per worker
+        int workers = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), fileChunks));
+        int perWorker = (fileChunks + workers - 1) / Math.max(workers, 1);
+        List<Future<Void>> futures = new ArrayList<>();
+        ExecutorService pool = getDigestPool();
+        for (int w = 0; w < workers; w++) {
+            final int from = w * perWorker;
+            final int to = Math.min(fileChunks, from + perWorker);
+            if (from >= to) break;
+            futures.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    MessageDigest md = MessageDigest.getInstance(digestAlgorithm);
+                    ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+                    for (int chunk = from; chunk < to; chunk++) {
+                        long[] range = chunkRange(sections, chunk);
+                        buffer.clear();
+                        buffer.limit((int) (range[1] - range[0]));
+                        while (buffer.hasRemaining()) {
+                            if (channel.read(buffer, range[0] + buffer.position()) < 0) {
+                                throw new IOException("Unexpected end of APK");
+                            }
+                        }
+                        buffer.flip();
+                        digestChunk(md, buffer, chunkDigests, 5 + chunk * digestSize);
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        // The EOCD chunk is tiny; do it here while the workers run
+        try {
+            MessageDigest md = MessageDigest.getInstance(digestAlgorithm);
+            eocd.rewind();
+            digestChunk(md, eocd, chunkDigests, 5 + fileChunks * digestSize);
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while digesting APK");
+            }
+        }
+
+        try {
+            return MessageDigest.getInstance(digestAlgorithm).digest(chunkDigests);
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static long[] chunkRange(long[][] sections, int chunk) {
+        for (long[] section : sections) {
+            long count = (section[1] - section[0] + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            if (chunk < count) {
+                long start = section[0] + (long) chunk * CHUNK_SIZE;
+                return new long[] {start, Math.min(section[1], start + CHUNK_SIZE)};
+            }
+            chunk -= count;
+        }
+        throw new IllegalArgumentException("Chunk out of range");
+    }
+
+    private static void digestChunk(MessageDigest md, ByteBuffer chunk, byte[] out, int outOffset)
+            throws java.security.DigestException {
+        byte[] prefix = new byte[5];
+        prefix[0] = (byte) 0xa5;
+        ByteBuffer.wrap(prefix, 1, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(chunk.remaining());
+        md.reset();
+        md.update(prefix);
+        md.update(chunk);
+        md.digest(out, outOffset, md.getDigestLength());
+    }
+
+    // ======== v1 (JAR signing) ========
+
+    /**
+     * JAR signature check through the central directory. JarInputStream only
+     * verifies entries that come after the manifest and signature files, and
+     * apksigner writes those last, so the local records are fed to it manifest
+     * first, then the rest of META-INF, then everything else.
+     */
+    private static Signer verifyJar(FileChannel channel, ApkLayout layout) throws IOException {
+        int count = layout.eocd.getShort(10) & 0xFFFF;
+        long cdSize = layout.eocd.getInt(12) & 0xFFFFFFFFL;
+        if (layout.centralDirStart + cdSize > layout.eocdStart) {
+            throw new SecurityException("Central directory out of range");
+        }
+        ByteBuffer cd = readFully(channel, layout.centralDirStart, (int) cdSize);
+
+        List<InputStream> manifest = new ArrayList<>();
+        List<InputStream> meta = new ArrayList<>();
+        List<InputStream> rest = new ArrayList<>();
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            if (pos + 46 > cd.limit() || cd.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+                throw new SecurityException("Corrupt central directory at entry " + i);
+            }
+            long compressedSize = cd.getInt(pos + 20) & 0xFFFFFFFFL;
+            int nameLength = cd.getShort(pos + 28) & 0xFFFF;
+            int extraLength = cd.getShort(pos + 30) & 0xFFFF;
+            int commentLength = cd.getShort(pos + 32) & 0xFFFF;
+            long localOffset = layout.start + (cd.getInt(pos + 42) & 0xFFFFFFFFL);
+            byte[] nameBytes = new byte[nameLength];
+            cd.position(pos + 46);
+            cd.get(nameBytes);
+            String name = new String(nameBytes, "UTF-8").toUpperCase(java.util.Locale.ROOT);
+            pos += 46 + nameLength + extraLength + commentLength;
+
+            InputStream record = openLocalRecord(channel, layout, localOffset, compressedSize);
+            if (name.equals("META-INF/MANIFEST.MF")) {
+                manifest.add(record);
+            } else if (name.startsWith("META-INF/")) {
+                meta.add(record);
+            } else {
+                rest.add(record);
+            }
+        }
+        manifest.addAll(meta);
+        manifest.addAll(rest);
+        return verifyJar(new java.io.SequenceInputStream(java.util.Collections.enumeration(manifest)));
+    }
+
+    /**
+     * The local header, data and data descriptor of one entry, as a stream.
+     */
+    private static InputStream openLocalRecord(FileChannel channel, ApkLayout layout, long localOffset,
+                                               long compressedSize) throws IOException {
+        if (localOffset < layout.start || localOffset + 30 > layout.signingBlockStart) {
+            throw new SecurityException("Local header out of range");
+        }
+        ByteBuffer header = readFully(channel, localOffset, 30);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new SecurityException("Bad local header at " + (localOffset - layout.start));
+        }
+        int flags = header.getShort(6) & 0xFFFF;
+        long end = localOffset + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF)
+                + compressedSize;
+        if ((flags & 0x08) != 0 && end + 4 <= layout.signingBlockStart) {
+            // Data descriptor, with or without its optional signature
+            end += readFully(channel, end, 4).getInt(0) == DATA_DESCRIPTOR_SIGNATURE ? 16 : 12;
+        }
+        if (end > layout.signingBlockStart) {
+            throw new SecurityException("Entry data out of range");
+        }
+        return new SeekableBundleReader.RangeInputStream(channel, localOffset, end - localOffset);
+    }
+
+    /**
+     * Every entry outside META-INF of a JAR stream must verify against the same
+     * signer. Reads the whole stream once.
+     */
+    private static Signer verifyJar(InputStream apk) throws IOException {
+        List<byte[]> signerCerts = null;
+        byte[] buffer = new byte[FileTransfer.BUFFER_SIZE];
+        try (JarInputStream jar = new JarInputStream(apk, true)) {
+            JarEntry entry;
+            while ((entry = jar.getNextJarEntry()) != null) {
+                if (entry.isDirectory() || entry.getName().startsWith("META-INF/")) {
+                    continue;
+                }
+                while (jar.read(buffer) != -1) {
+                    // Certificates are only known after the entry has been read
+                }
+                CodeSigner[] signers = entry.getCodeSigners();
+                if (signers == null || signers.length == 0) {
+                    throw new SecurityException("Unsigned entry " + entry.getName());
+                }
+                // getCertificates() concatenates every signer's chain; keep each leaf
+                List<byte[]> encoded = new ArrayList<>();
+                for (CodeSigner signer : signers) {
+                    encoded.add(signer.getSignerCertPath().getCertificates().get(0).getEncoded());
+                }
+                if (signerCerts == null) {
+                    signerCerts = encoded;
+                } else if (!digestCertificates(signerCerts).equals(digestCertificates(encoded))) {
+                    throw new SecurityException("Entries signed by different keys");
+                }
+            }
+        } catch (java.security.cert.CertificateEncodingException e) {
+            throw new SecurityException("Bad certificate: " + e.getMessage());
+        }
+        if (signerCerts == null) {
+            throw new SecurityException("APK is not signed");
+        }
+        return new Signer(1, signerCerts);
+    }
+
+    // ======== Helpers ========
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of APK");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static synchronized ExecutorService getDigestPool() {
+        if (digestPool == null) {
+            digestPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    daemonThreads("ApkDigest"));
+        }
+        return digestPool;
+    }
+
+    private static synchronized ExecutorService getCheckExecutor() {
+        if (checkExecutor == null) {
+            checkExecutor = Executors.newCachedThreadPool(daemonThreads("ApkVerify"));
+        }
+        return checkExecutor;
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,301 @@
+package com.example.deviceownerapp;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks the manifests of a package before its session is committed, so a bad
+ * payload fails in seconds rather than after the whole bundle has been written.
+ *
+ * Every APK in one install must declare the same package and versionCode, the
+ * split names must be unique, a full install needs exactly one base APK, and the
+ * versionCode must not be lower than the installed one.
+ *
+ * Seekable plans are validated up front from each APK's manifest entry
+ * ({@link #validate}). One-shot streams can only be read once, so their APK
+ * streams are wrapped by a {@link StreamCheck} that parses the manifest from the
+ * bytes on their way into the session and fails the write on a mismatch.
+ */
+public class ApkValidator {
+
+    private static final String TAG = "ApkValidator";
+
+    // How long to wait for the manifest parser once the APK stream has ended
+    private static final long PARSER_JOIN_MS = 5000;
+
+    private final Context context;
+    private String packageName = null;
+    private int versionCode = 0;
+    private boolean hasBase = false;
+    private final Set<String> splitNames = new HashSet<>();
+    private PackageInfo installed = null;
+
+    public ApkValidator(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Read and check the manifest of every APK in a seekable plan. The manifests
+     * are stored on the plan. Returns an error message, or null if it's fine.
+     */
+    public static String validate(Context context, PackageFormatDetector.InstallPlan plan) {
+        SeekableBundleReader reader = plan.getSeekableReader();
+        if (reader == null || plan.getManifests() != null) {
+            return null;
+        }
+
+        ApkValidator validator = new ApkValidator(context);
+        Map<String, ApkManifest> manifests = new LinkedHashMap<>();
+        try {
+            if (plan.isBundle()) {
+                for (BundleReader.Entry entry : plan.getSelectedApkEntries()) {
+                    ApkManifest manifest;
+                    try (InputStream in = reader.openEntry(entry)) {
+                        manifest = ApkManifest.read(in);
+                    }
+                    String error = validator.add(manifest);
+                    if (error != null) {
+                        return entry.getFileName() + ": " + error;
+                    }
+                    manifests.put(entry.name, manifest);
+                }
+            } else {
+                BundleReader.Entry manifestEntry = null;
+                for (BundleReader.Entry entry : reader.getEntries()) {
+                    if (ApkManifest.MANIFEST_ENTRY.equals(entry.name)) {
+                        manifestEntry = entry;
+                        break;
+                    }
+                }
+                if (manifestEntry == null) {
+                    return "APK has no AndroidManifest.xml";
+                }
+                ApkManifest manifest;
+                try (InputStream in = reader.openEntry(manifestEntry)) {
+                    manifest = ApkManifest.parse(ApkManifest.readEntry(in));
+                }
+                String error = validator.add(manifest);
+                if (error != null) {
+                    return error;
+                }
+                manifests.put(ApkManifest.MANIFEST_ENTRY, manifest);
+            }
+        } catch (IOException e) {
+            return "Invalid APK: " + e.getMessage();
+        }
+
+        String error = validator.finish();
+        if (error != null) {
+            return error;
+        }
+        String declared = plan.metadata.packageName;
+        if (declared != null && !declared.isEmpty() && !declared.equals(validator.packageName)) {
+            return "Bundle metadata is for " + declared + " but the APKs are " + validator.packageName;
+        }
+        plan.setManifests(manifests);
+        Logger.log(context, TAG, "Validated " + validator.packageName + " v" + validator.versionCode
+                + " (" + manifests.size() + " APKs)");
+        return null;
+    }
+
+    /**
+     * Check one more APK of this install. Returns an error message or null.
+     */
+    public synchronized String add(ApkManifest manifest) {
+        if (packageName == null) {
+            packageName = manifest.packageName;
+            versionCode = manifest.versionCode;
+            installed = getInstalledPackage(packageName);
+            if (installed != null && manifest.versionCode < installed.versionCode) {
+                return "Version downgrade: " + packageName + " v" + installed.versionCode
+                        + " is installed, package is v" + manifest.versionCode;
+            }
+        } else if (!packageName.equals(manifest.packageName)) {
+            return "Mixed packages: " + packageName + " and " + manifest.packageName;
+        } else if (versionCode != manifest.versionCode) {
+            return "Mixed versions of " + packageName + ": v" + versionCode + " and v" + manifest.versionCode;
+        }
+
+        if (manifest.isBase()) {
+            if (hasBase) {
+                return "More than one base APK for " + packageName;
+            }
+            hasBase = true;
+        } else if (!splitNames.add(manifest.splitName)) {
+            return "Duplicate split " + manifest.splitName;
+        }
+        return null;
+    }
+
+    /**
+     * Checks that need every APK to have been seen.
+     */
+    public synchronized String finish() {
+        if (packageName == null) {
+            return "No APKs to install";
+        }
+        if (!hasBase) {
+            return "No base APK for " + packageName;
+        }
+        return null;
+    }
+
+    public synchronized String getPackageName() {
+        return packageName;
+    }
+
+    private PackageInfo getInstalledPackage(String pkg) {
+        try {
+            return context.getPackageManager().getPackageInfo(pkg, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    // ======== Streaming validation ========
+
+    /**
+     * Validation for one-shot sources. Wrap each APK stream before it is written;
+     * call {@link #finish()} before committing.
+     */
+    public StreamCheck newStreamCheck() {
+        return new StreamCheck();
+    }
+
+    public class StreamCheck {
+        private volatile String error = null;
+
+        public InputStream wrap(InputStream apk) throws IOException {
+            return new SniffingInputStream(apk, this);
+        }
+
+        void fail(String message) {
+            if (error == null) {
+                error = message;
+                Logger.log(context, TAG, "Validation failed: " + message);
+            }
+        }
+
+        void check() throws IOException {
+            if (error != null) {
+                throw new IOException("Validation failed: " + error);
+            }
+        }
+
+        /**
+         * Package of the APKs checked so far, or null before the first manifest.
+         */
+        public String getPackageName() {
+            return ApkValidator.this.getPackageName();
+        }
+
+        /**
+         * Throws if any APK failed, or if the set of APKs is incomplete.
+         */
+        public void finish() throws IOException {
+            check();
+            String result = ApkValidator.this.finish();
+            if (result != null) {
+                fail(result);
+                check();
+            }
+        }
+    }
+
+    /**
+     * Passes an APK stream through unchanged while a helper thread reads the
+     * same bytes from a pipe and parses the manifest. The parser stops reading
+     * once the manifest is found, and from then on the pipe is skipped.
+     */
+    private class SniffingInputStream extends FilterInputStream {
+        private final StreamCheck check;
+        private final PipedOutputStream pipe;
+        private final Thread parser;
+        private boolean sniffing = true;
+
+        SniffingInputStream(InputStream in, final StreamCheck check) throws IOException {
+            super(in);
+            this.check = check;
+            final PipedInputStream parserIn = new PipedInputStream(FileTransfer.BUFFER_SIZE);
+            this.pipe = new PipedOutputStream(parserIn);
+            this.parser = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String error = add(ApkManifest.read(parserIn));
+                        if (error != null) {
+                            check.fail(error);
+                        }
+                    } catch (IOException e) {
+                        check.fail("Invalid APK: " + e.getMessage());
+                    } finally {
+                        try { parserIn.close(); } catch (IOException ignored) {}
+                    }
+                }
+            }, "ManifestSniffer");
+            parser.start();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            check.check();
+            int read = in.read(b, off, len);
+            if (read > 0 && sniffing) {
+                try {
+                    pipe.write(b, off, read);
+                } catch (IOException e) {
+                    // Parser is done and closed its end
+                    sniffing = false;
+                }
+            } else if (read == -1) {
+                endOfApk();
+            }
+            check.check();
+            return read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void endOfApk() throws IOException {
+            if (sniffing) {
+                sniffing = false;
+                try { pipe.close(); } catch (IOException ignored) {}
+            }
+            try {
+                parser.join(PARSER_JOIN_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            check.check();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (sniffing) {
+                sniffing = false;
+                try { pipe.close(); } catch (IOException ignored) {}
+            }
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.example.deviceownerapp;
+
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The metadata file of a split bundle, whatever the flavour:
+ * - XAPK manifest.json (package_name, version_code, split_apks),
+ * - SAI meta.sai_v1/v2.json (package, version_code, label),
+ * - APKMirror info.json (pname, versioncode, app_name),
+ * - bundletool toc.pb (package_name, and the split ID of every APK).
+ *
+ * The package and version are cross-checked against the APK manifests. Split IDs
+ * feed {@link SplitSelector}. A bundletool set also carries standalone APKs for
+ * pre-Lollipop devices next to its splits; only the split variant that fits
+ * this device is installed, so everything else in the toc is excluded.
+ */
+public class BundleMetadata {
+
+    public static final BundleMetadata NONE = new BundleMetadata(null, 0, null,
+            Collections.<String, String>emptyMap(), Collections.<String>emptySet());
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Package name declared by the metadata, or null */
+    public final String packageName;
+    /** versionCode declared by the metadata, or 0 */
+    public final int versionCode;
+    public final String label;
+    /** Split ID by entry name, for the entries the metadata names */
+    public final Map<String, String> splitIds;
+    /** APK entries that must not be installed (other variants, standalones) */
+    public final Set<String> excluded;
+
+    BundleMetadata(String packageName, int versionCode, String label,
+                   Map<String, String> splitIds, Set<String> excluded) {
+        this.packageName = packageName;
+        this.versionCode = versionCode;
+        this.label = label;
+        this.splitIds = splitIds;
+        this.excluded = excluded;
+    }
+
+    /**
+     * Read the metadata entry of a seekable bundle. Returns {@link #NONE} if the
+     * bundle has none or it can't be parsed; the APKs themselves stay authoritative.
+     */
+    public static BundleMetadata read(SeekableBundleReader reader, PackageFormatDetector.Format format) {
+        try {
+            for (BundleReader.Entry entry : reader.getEntries()) {
+                String name = entry.name;
+                if (format == PackageFormatDetector.Format.XAPK && name.equals("manifest.json")) {
+                    return readXapk(readJson(reader, entry));
+                } else if (format == PackageFormatDetector.Format.APKM && name.equals("info.json")) {
+                    JSONObject info = readJson(reader, entry);
+                    return new BundleMetadata(info.optString("pname", null), parseInt(info.opt("versioncode")),
+                            info.optString("app_name", null), Collections.<String, String>emptyMap(),
+                            Collections.<String>emptySet());
+                } else if (format == PackageFormatDetector.Format.APKS
+                        && name.startsWith("meta.sai_v") && name.endsWith(".json")) {
+                    JSONObject meta = readJson(reader, entry);
+                    return new BundleMetadata(meta.optString("package", null), parseInt(meta.opt("version_code")),
+                            meta.optString("label", null), Collections.<String, String>emptyMap(),
+                            Collections.<String>emptySet());
+                } else if (format == PackageFormatDetector.Format.APKS && name.equals("toc.pb")) {
+                    byte[] toc;
+                    try (InputStream in = reader.openEntry(entry)) {
+                        toc = ApkManifest.readEntry(in);
+                    }
+                    return readToc(toc, reader.getEntries());
+                }
+            }
+        } catch (IOException | JSONException | IndexOutOfBoundsException e) {
+            // Fall back to what the entry names say
+        }
+        return NONE;
+    }
+
+    private static JSONObject readJson(SeekableBundleReader reader, BundleReader.Entry entry)
+            throws IOException, JSONException {
+        try (InputStream in = reader.openEntry(entry)) {
+            return new JSONObject(new String(ApkManifest.readEntry(in), UTF_8));
+        }
+    }
+
+    private static int parseInt(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        try {
+            return value != null ? Integer.parseInt(value.toString().trim()) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static BundleMetadata readXapk(JSONObject manifest) {
+        Map<String, String> ids = new HashMap<>();
+        JSONArray splits = manifest.optJSONArray("split_apks");
+        for (int i = 0; splits != null && i < splits.length(); i++) {
+            JSONObject split = splits.optJSONObject(i);
+            if (split != null && split.has("file") && split.has("id")) {
+                String id = split.optString("id");
+                // XAPKs call the base "base"; everywhere else it's the empty split ID
+                ids.put(split.optString("file"), "base".equals(id) ? "" : id);
+            }
+        }
+        return new BundleMetadata(manifest.optString("package_name", null),
+                parseInt(manifest.opt("version_code")), manifest.optString("name", null),
+                ids, Collections.<String>emptySet());
+    }
+
+    // ======== bundletool toc.pb ========
+
+    // BuildApksResult
+    private static final int TOC_VARIANT = 1;
+    private static final int TOC_PACKAGE_NAME = 4;
+    // Variant
+    private static final int VARIANT_TARGETING = 1;
+    private static final int VARIANT_APK_SET = 2;
+    // VariantTargeting -> SdkVersionTargeting -> SdkVersion -> Int32Value
+    private static final int TARGETING_SDK = 1;
+    private static final int SDK_VALUE = 1;
+    private static final int SDK_MIN = 1;
+    private static final int INT32_VALUE = 1;
+    // ApkSet
+    private static final int APK_SET_DESCRIPTION = 2;
+    // ApkDescription
+    private static final int APK_PATH = 2;
+    private static final int APK_SPLIT_METADATA = 3;
+    // SplitApkMetadata
+    private static final int SPLIT_ID = 1;
+
+    /**
+     * Pick the split variant with the highest minimum SDK this device meets and
+     * exclude every other APK the toc lists.
+     */
+    static BundleMetadata readToc(byte[] toc, List<BundleReader.Entry> entries) {
+        String packageName = null;
+        Map<String, String> bestIds = null;
+        int bestMinSdk = -1;
+        Set<String> listed = new HashSet<>();
+
+        ProtoReader result = new ProtoReader(toc, 0, toc.length);
+        while (result.next()) {
+            if (result.field == TOC_PACKAGE_NAME) {
+                packageName = result.string();
+            } else if (result.field == TOC_VARIANT) {
+                Map<String, String> ids = new HashMap<>();
+                int minSdk = readVariant(result.message(), ids, listed);
+                if (!ids.isEmpty() && minSdk <= Build.VERSION.SDK_INT && minSdk > bestMinSdk) {
+                    bestIds = ids;
+                    bestMinSdk = minSdk;
+                }
+            }
+        }
+
+        Set<String> excluded = new HashSet<>();
+        for (BundleReader.Entry entry : entries) {
+            if (entry.isApk() && listed.contains(entry.name)
+                    && (bestIds == null ? isStandalone(entry.name) : !bestIds.containsKey(entry.name))) {
+                excluded.add(entry.name);
+            }
+        }
+        return new BundleMetadata(packageName, 0, null,
+                bestIds != null ? bestIds : Collections.<String, String>emptyMap(), excluded);
+    }
+
+    /**
+     * Collect the split APKs of one variant. Returns its minimum SDK (0 if untargeted).
+     */
+    private static int readVariant(ProtoReader variant, Map<String, String> ids, Set<String> listed) {
+        int minSdk = 0;
+        while (variant.next()) {
+            if (variant.field == VARIANT_TARGETING) {
+                ProtoReader targeting = variant.message();
+                while (targeting.next()) {
+                    if (targeting.field == TARGETING_SDK) {
+                        minSdk = readMinSdk(targeting.message());
+                    }
+                }
+            } else if (variant.field == VARIANT_APK_SET) {
+                ProtoReader apkSet = variant.message();
+                while (apkSet.next()) {
+                    if (apkSet.field == APK_SET_DESCRIPTION) {
+                        readApkDescription(apkSet.message(), ids, listed);
+                    }
+                }
+            }
+        }
+        return minSdk;
+    }
+
+    private static int readMinSdk(ProtoReader sdkTargeting) {
+        int minSdk = 0;
+        while (sdkTargeting.next()) {
+            if (sdkTargeting.field == SDK_VALUE) {
+                ProtoReader sdkVersion = sdkTargeting.message();
+                while (sdkVersion.next()) {
+                    if (sdkVersion.field == SDK_MIN) {
+                        ProtoReader value = sdkVersion.message();
+                        while (value.next()) {
+                            if (value.field == INT32_VALUE) {
+                                minSdk = (int) value.varint;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return minSdk;
+    }
+
+    private static void readApkDescription(ProtoReader description, Map<String, String> ids, Set<String> listed) {
+        String path = null;
+        String splitId = null;
+        while (description.next()) {
+            if (description.field == APK_PATH) {
+                path = description.string();
+            } else if (description.field == APK_SPLIT_METADATA) {
+                ProtoReader metadata = description.message();
+                splitId = "";
+                while (metadata.next()) {
+                    if (metadata.field == SPLIT_ID) {
+                        splitId = metadata.string();
+                    }
+                }
+            }
+        }
+        if (path != null) {
+            listed.add(path);
+            if (splitId != null) {
+                ids.put(path, splitId);
+            }
+        }
+    }
+
+    private static boolean isStandalone(String name) {
+        return name.startsWith("standalones/");
+    }
+
+    /**
+     * Just enough of the protobuf wire format to walk nested messages: varints,
+     * length-delimited fields, and skipping fixed-width ones.
+     */
+    private static class ProtoReader {
+        private final byte[] data;
+        private int pos;
+        private final int end;
+        int field;
+        long varint;
+        private int start;
+        private int length;
+
+        ProtoReader(byte[] data, int offset, int end) {
+            this.data = data;
+            this.pos = offset;
+            this.end = end;
+        }
+
+        boolean next() {
+            if (pos >= end) {
+                return false;
+            }
+            long key = readVarint();
+            field = (int) (key >>> 3);
+            switch ((int) (key & 7)) {
+                case 0:
+                    varint = readVarint();
+                    break;
+                case 1:
+                    pos += 8;
+                    break;
+                case 2:
+                    length = (int) readVarint();
+                    start = pos;
+                    pos += length;
+                    break;
+                case 5:
+                    pos += 4;
+                    break;
+                default:
+                    throw new IndexOutOfBoundsException("Unsupported wire type in toc.pb");
+            }
+            if (pos > end) {
+                throw new IndexOutOfBoundsException("Truncated toc.pb");
+            }
+            return true;
+        }
+
+        ProtoReader message() {
+            return new ProtoReader(data, start, start + length);
+        }
+
+        String string() {
+            return new String(data, start, length, UTF_8);
+        }
+
+        private long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = data[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IndexOutOfBoundsException("Bad varint in toc.pb");
+        }
+    }
+
+    // ======== Streams ========
+
+    /**
+     * Split ID for an entry from its name alone, for bundles without usable
+     * metadata. Knows the "config.xx.apk" / "split_config.xx.apk" naming of XAPK,
+     * APKM and SAI and bundletool's "splits/&lt;module&gt;-&lt;qualifier&gt;.apk".
+     */
+    public static String getSplitIdFromName(String entryName) {
+        if (entryName.startsWith("splits/") && entryName.endsWith(".apk")) {
+            String name = entryName.substring("splits/".length(), entryName.length() - 4);
+            int dash = name.lastIndexOf('-');
+            if (dash > 0) {
+                String module = name.substring(0, dash);
+                String suffix = stripVariantNumber(name.substring(dash + 1));
+                String prefix = "base".equals(module) ? "" : module;
+                if ("master".equals(suffix)) {
+                    return prefix;
+                }
+                return (prefix.isEmpty() ? "" : prefix + ".") + "config." + suffix;
+            }
+        }
+        return SplitSelector.getSplitIdFromName(new java.io.File(entryName).getName());
+    }
+
+    /**
+     * bundletool numbers the splits of later variants "base-master_2"; x86_64 is
+     * an ABI, not x86 of variant 64.
+     */
+    private static String stripVariantNumber(String suffix) {
+        if (SplitSelector.isKnownQualifier(suffix)) {
+            return suffix;
+        }
+        int underscore = suffix.lastIndexOf('_');
+        if (underscore > 0 && suffix.substring(underscore + 1).matches("\\d+")) {
+            return suffix.substring(0, underscore);
+        }
+        return suffix;
+    }
+
+    /**
+     * Entries a streamed bundle should never install: the pre-Lollipop
+     * standalones of a bundletool set, which sit next to its splits.
+     */
+    public static boolean isExcludedFromStream(String entryName) {
+        return isStandalone(entryName);
+    }
+
+    /**
+     * Split IDs of the given entries: from the metadata where it names them,
+     * otherwise from the entry name.
+     */
+    public List<String> getSplitIds(List<BundleReader.Entry> entries) {
+        List<String> ids = new ArrayList<>();
+        for (BundleReader.Entry entry : entries) {
+            String id = splitIds.get(entry.name);
+            ids.add(id != null ? id : getSplitIdFromName(entry.name));
+        }
+        return ids;
+    }
+
+    @Override
+    public String toString() {
+        return (label != null ? label + " " : "") + packageName + (versionCode != 0 ? " v" + versionCode : "")
+                + (splitIds.isEmpty() ? "" : ", " + splitIds.size() + " named splits")
+                + (excluded.isEmpty() ? "" : ", " + excluded.size() + " excluded");
+    }
+}
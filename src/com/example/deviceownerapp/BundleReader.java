@@ -0,0 +1,74 @@
+package com.example.deviceownerapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the entries of an XAPK/ZIP bundle straight from its content URI.
+ *
+ * If the URI can be opened as a seekable file descriptor, the central directory is
+ * read in place ({@link SeekableBundleReader}). Pipes and other one-shot streams
+ * (e.g. ACTION_SEND from some file managers) fall back to a single ZipInputStream
+ * pass ({@link StreamingBundleReader}). Either way nothing is copied to the cache.
+ * {@link PackageFormatDetector} decides which one to open.
+ */
+public abstract class BundleReader implements Closeable {
+
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 8;
+
+    /**
+     * A single file inside the bundle. Sizes are -1 when the streaming reader
+     * hasn't seen them yet (entries written with a data descriptor).
+     */
+    public static class Entry {
+        public final String name;
+        public final int method;
+        public final long compressedSize;
+        public final long size;
+        public final long localHeaderOffset;
+
+        public Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        public boolean isApk() {
+            return !isDirectory() && name.toLowerCase().endsWith(".apk");
+        }
+
+        /**
+         * Name without any directory prefix, used as the session split name.
+         */
+        public String getFileName() {
+            return new File(name).getName();
+        }
+    }
+
+    public interface EntryVisitor {
+        /**
+         * Called once per entry, in archive order. The stream is only valid for the
+         * duration of the call and must not be closed by the visitor.
+         */
+        void onEntry(Entry entry, InputStream in) throws IOException;
+    }
+
+    /**
+     * True if entries can be opened in any order (central directory available).
+     */
+    public abstract boolean isSeekable();
+
+    /**
+     * Visit every entry in archive order.
+     */
+    public abstract void forEachEntry(EntryVisitor visitor) throws IOException;
+}
@@ -0,0 +1,111 @@
+package com.example.deviceownerapp;
+
+import android.content.ComponentName;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import com.rosan.dhizuku.api.Dhizuku;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dhizuku-wrapped system service handles, built once and shared by every caller.
+ *
+ * Wrapping a service costs a ServiceManager lookup and a Dhizuku call, and the
+ * installer needs a chain of them (package, then IPackageManager, then
+ * IPackageInstaller), so each handle is built on first use and kept. The service
+ * binders behind them are linked to death: when one dies, or {@link #reset} is
+ * called, every handle is dropped and the next caller rebuilds it.
+ */
+public class DhizukuHandles {
+
+    // All guarded by DhizukuHandles.class
+    private static IBinder devicePolicy = null;
+    private static Object packageInstaller = null;
+    private static ComponentName owner = null;
+    private static final List<IBinder> linked = new ArrayList<>();
+
+    private static final IBinder.DeathRecipient death = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {
+            reset();
+        }
+    };
+
+    private DhizukuHandles() {
+    }
+
+    /**
+     * The device_policy binder, wrapped so transactions run as Dhizuku.
+     */
+    public static synchronized IBinder devicePolicy() throws Exception {
+        if (devicePolicy == null) {
+            IBinder binder = HiddenApi.getService("device_policy");
+            if (binder == null) {
+                throw new Exception("Could not get DevicePolicyManager binder");
+            }
+            link(binder);
+            devicePolicy = Dhizuku.binderWrapper(binder);
+        }
+        return devicePolicy;
+    }
+
+    /**
+     * IPackageInstaller reached through wrapped binders, so calls run with Dhizuku's UID.
+     */
+    public static synchronized Object packageInstaller() throws Exception {
+        if (packageInstaller == null) {
+            IBinder pmBinder = HiddenApi.getService("package");
+            if (pmBinder == null) {
+                throw new Exception("Could not get PackageManager binder");
+            }
+            link(pmBinder);
+
+            // IPackageManager from the wrapped binder, then its installer, wrapped too
+            Object iPackageManager = HiddenApi.asInterface(HiddenApi.PACKAGE_MANAGER, Dhizuku.binderWrapper(pmBinder));
+            Object iPackageInstaller = HiddenApi.method(iPackageManager.getClass(), "getPackageInstaller")
+                    .invoke(iPackageManager);
+            IBinder installerBinder = HiddenApi.asBinder(iPackageInstaller);
+            link(installerBinder);
+
+            packageInstaller = HiddenApi.asInterface(HiddenApi.PACKAGE_INSTALLER,
+                    Dhizuku.binderWrapper(installerBinder));
+        }
+        return packageInstaller;
+    }
+
+    /**
+     * Dhizuku's device owner component, the admin and caller package for DPM calls.
+     */
+    public static synchronized ComponentName owner() {
+        if (owner == null) {
+            owner = Dhizuku.getOwnerComponent();
+        }
+        return owner;
+    }
+
+    /**
+     * Drop every handle; the next call rebuilds what it needs.
+     */
+    public static synchronized void reset() {
+        for (IBinder binder : linked) {
+            try {
+                binder.unlinkToDeath(death, 0);
+            } catch (Exception ignored) {
+            }
+        }
+        linked.clear();
+        devicePolicy = null;
+        packageInstaller = null;
+        owner = null;
+    }
+
+    private static void link(IBinder binder) throws RemoteException {
+        if (!linked.contains(binder)) {
+            // Throws if the binder is already dead
+            binder.linkToDeath(death, 0);
+            linked.add(binder);
+        }
+    }
+}
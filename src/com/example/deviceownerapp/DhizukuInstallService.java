@@ -1,8 +1,9 @@
 package com.example.deviceownerapp;
 
-import android.app.PendingIntent;
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
+import android.content.IntentSender;
 import android.content.pm.PackageInstaller;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
@@ -10,6 +11,7 @@ import android.os.RemoteException;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 
 /**
  * AIDL interface for the Dhizuku UserService.
@@ -17,6 +19,8 @@ import java.io.OutputStream;
  */
 public class DhizukuInstallService extends IDhizukuInstallService.Stub {
 
+    private volatile ComponentName ownerComponent = null;
+
     /**
      * Default constructor required by Dhizuku.
      * Dhizuku instantiates this service using reflection.
@@ -37,15 +41,11 @@ public class DhizukuInstallService extends IDhizukuInstallService.Stub {
     private Context getContext() {
         try {
             // Get context via ActivityThread.currentApplication()
-            Class<?> activityThreadClass = Class.forName("android.app.ActivityThread");
-            java.lang.reflect.Method currentApplicationMethod = activityThreadClass.getMethod("currentApplication");
-            return (Context) currentApplicationMethod.invoke(null);
+            return (Context) HiddenApi.method("android.app.ActivityThread", "currentApplication").invoke(null);
         } catch (Exception e) {
             try {
                 // Fallback: try AppGlobals.getInitialApplication()
-                Class<?> appGlobalsClass = Class.forName("android.app.AppGlobals");
-                java.lang.reflect.Method getInitialApplicationMethod = appGlobalsClass.getMethod("getInitialApplication");
-                return (Context) getInitialApplicationMethod.invoke(null);
+                return (Context) HiddenApi.method("android.app.AppGlobals", "getInitialApplication").invoke(null);
             } catch (Exception e2) {
                 return null;
             }
@@ -79,13 +79,10 @@ public class DhizukuInstallService extends IDhizukuInstallService.Stub {
             PackageInstaller installer = context.getPackageManager().getPackageInstaller();
             session = installer.openSession(sessionId);
 
+            long size = pfd.getStatSize();
             try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
-                 OutputStream out = session.openWrite(name, 0, -1)) {
-                byte[] buffer = new byte[65536];
-                int len;
-                while ((len = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, len);
-                }
+                 OutputStream out = session.openWrite(name, 0, size)) {
+                FileTransfer.copy(in, out, new byte[FileTransfer.BUFFER_SIZE]);
                 session.fsync(out);
             }
         } catch (Exception e) {
@@ -97,7 +94,7 @@ public class DhizukuInstallService extends IDhizukuInstallService.Stub {
     }
 
     @Override
-    public void commitSession(int sessionId) throws RemoteException {
+    public void commitSession(int sessionId, IntentSender statusReceiver) throws RemoteException {
         PackageInstaller.Session session = null;
         try {
             Context context = getContext();
@@ -107,14 +104,12 @@ public class DhizukuInstallService extends IDhizukuInstallService.Stub {
             PackageInstaller installer = context.getPackageManager().getPackageInstaller();
             session = installer.openSession(sessionId);
 
-            Intent intent = new Intent(Intent.ACTION_PACKAGE_ADDED);
-            int flags = PendingIntent.FLAG_UPDATE_CURRENT;
-            if (android.os.Build.VERSION.SDK_INT >= 31) {
-                flags |= 33554432; // FLAG_MUTABLE
+            // The caller's sender: a PendingIntent made here would be sent as Dhizuku
+            // and could never reach the app's non-exported result receiver
+            if (statusReceiver == null) {
+                throw new RemoteException("No status receiver for session " + sessionId);
             }
-            PendingIntent pendingIntent = PendingIntent.getBroadcast(
-                    context, sessionId, intent, flags);
-            session.commit(pendingIntent.getIntentSender());
+            session.commit(statusReceiver);
         } catch (Exception e) {
             if (session != null) {
                 try { session.abandon(); } catch (Exception ignored) {}
@@ -135,6 +130,39 @@ public class DhizukuInstallService extends IDhizukuInstallService.Stub {
         }
     }
 
+    @Override
+    public int[] batchExecute(DpmBatch batch) throws RemoteException {
+        Context context = getContext();
+        if (context == null) {
+            throw new RemoteException("Dhizuku context not available");
+        }
+        DevicePolicyManager dpm = (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
+        ComponentName admin = getOwnerComponent(context, dpm);
+        if (admin == null) {
+            throw new RemoteException("Dhizuku is not the device owner");
+        }
+        return batch.execute(dpm, admin);
+    }
+
+    /**
+     * This process's device owner admin, looked up once.
+     */
+    private ComponentName getOwnerComponent(Context context, DevicePolicyManager dpm) {
+        if (ownerComponent == null) {
+            String packageName = context.getPackageName();
+            List<ComponentName> admins = dpm.getActiveAdmins();
+            if (admins != null && dpm.isDeviceOwnerApp(packageName)) {
+                for (ComponentName admin : admins) {
+                    if (packageName.equals(admin.getPackageName())) {
+                        ownerComponent = admin;
+                        break;
+                    }
+                }
+            }
+        }
+        return ownerComponent;
+    }
+
     @Override
     public void destroy() throws RemoteException {
         // Cleanup if needed
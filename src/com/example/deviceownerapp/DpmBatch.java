@@ -0,0 +1,241 @@
+package com.example.deviceownerapp;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Parcel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of DevicePolicyManager operations sent in one transaction.
+ *
+ * Package and permission names go into a string table once; each operation is
+ * four ints (type, package index, permission index, argument). The results come
+ * back as one int per operation, in order: {@link #RESULT_OK}, {@link #RESULT_FAILED}
+ * or {@link #RESULT_ERROR} for changes, and the grant state (or RESULT_ERROR) for
+ * {@link #TYPE_GET_GRANT_STATE}.
+ *
+ * In Dhizuku mode {@link DpmHelper#executeBatch} runs the whole list inside the
+ * Dhizuku UserService, so it costs one hop instead of one per operation.
+ */
+public class DpmBatch {
+
+    public static final int TYPE_SET_HIDDEN = 1;
+    public static final int TYPE_SET_SUSPENDED = 2;
+    public static final int TYPE_SET_GRANT_STATE = 3;
+    public static final int TYPE_GET_GRANT_STATE = 4;
+    public static final int TYPE_SET_UNINSTALL_BLOCKED = 5;
+
+    public static final int RESULT_OK = 1;
+    public static final int RESULT_FAILED = 0;
+    public static final int RESULT_ERROR = -1;
+
+    private static final int FIELDS = 4;
+
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> stringIndex = new HashMap<>();
+    private int[] ops = new int[16 * FIELDS];
+    private int count = 0;
+
+    public DpmBatch setHidden(String packageName, boolean hidden) {
+        return add(TYPE_SET_HIDDEN, packageName, null, hidden ? 1 : 0);
+    }
+
+    public DpmBatch setSuspended(String packageName, boolean suspended) {
+        return add(TYPE_SET_SUSPENDED, packageName, null, suspended ? 1 : 0);
+    }
+
+    public DpmBatch setPermissionGrantState(String packageName, String permission, int grantState) {
+        return add(TYPE_SET_GRANT_STATE, packageName, permission, grantState);
+    }
+
+    public DpmBatch getPermissionGrantState(String packageName, String permission) {
+        return add(TYPE_GET_GRANT_STATE, packageName, permission, 0);
+    }
+
+    public DpmBatch setUninstallBlocked(String packageName, boolean blocked) {
+        return add(TYPE_SET_UNINSTALL_BLOCKED, packageName, null, blocked ? 1 : 0);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getType(int i) {
+        return ops[i * FIELDS];
+    }
+
+    public String getPackageName(int i) {
+        return strings.get(ops[i * FIELDS + 1]);
+    }
+
+    public String getPermission(int i) {
+        int index = ops[i * FIELDS + 2];
+        return index >= 0 ? strings.get(index) : null;
+    }
+
+    public int getArg(int i) {
+        return ops[i * FIELDS + 3];
+    }
+
+    private DpmBatch add(int type, String packageName, String permission, int arg) {
+        if ((count + 1) * FIELDS > ops.length) {
+            int[] grown = new int[ops.length * 2];
+            System.arraycopy(ops, 0, grown, 0, count * FIELDS);
+            ops = grown;
+        }
+        int base = count * FIELDS;
+        ops[base] = type;
+        ops[base + 1] = intern(packageName);
+        ops[base + 2] = permission != null ? intern(permission) : -1;
+        ops[base + 3] = arg;
+        count++;
+        return this;
+    }
+
+    private int intern(String s) {
+        Integer index = stringIndex.get(s);
+        if (index == null) {
+            index = strings.size();
+            strings.add(s);
+            stringIndex.put(s, index);
+        }
+        return index;
+    }
+
+    // ======== Parcelling ========
+
+    public void writeToParcel(Parcel dest) {
+        dest.writeStringArray(strings.toArray(new String[0]));
+        int[] packed = new int[count * FIELDS];
+        System.arraycopy(ops, 0, packed, 0, packed.length);
+        dest.writeIntArray(packed);
+    }
+
+    public static DpmBatch readFromParcel(Parcel source) {
+        DpmBatch batch = new DpmBatch();
+        String[] strings = source.createStringArray();
+        int[] packed = source.createIntArray();
+        if (strings != null) {
+            for (String s : strings) {
+                batch.intern(s);
+            }
+        }
+        if (packed != null) {
+            batch.ops = packed.length > 0 ? packed : new int[FIELDS];
+            batch.count = packed.length / FIELDS;
+        }
+        return batch;
+    }
+
+    // ======== Running ========
+
+    /**
+     * Run every operation directly against DevicePolicyManager as admin. Used in
+     * the Dhizuku process, and in our own when we are the device owner. Suspensions
+     * with the same argument go out as one setPackagesSuspended call.
+     */
+    public int[] execute(DevicePolicyManager dpm, ComponentName admin) {
+        int[] results = new int[count];
+        List<Integer> suspend = new ArrayList<>();
+        List<Integer> unsuspend = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            try {
+                switch (getType(i)) {
+                    case TYPE_SET_HIDDEN:
+                        results[i] = dpm.setApplicationHidden(admin, getPackageName(i), getArg(i) != 0)
+                                ? RESULT_OK : RESULT_FAILED;
+                        break;
+                    case TYPE_SET_SUSPENDED:
+                        (getArg(i) != 0 ? suspend : unsuspend).add(i);
+                        break;
+                    case TYPE_SET_GRANT_STATE:
+                        results[i] = dpm.setPermissionGrantState(admin, getPackageName(i), getPermission(i), getArg(i))
+                                ? RESULT_OK : RESULT_FAILED;
+                        break;
+                    case TYPE_GET_GRANT_STATE:
+                        results[i] = dpm.getPermissionGrantState(admin, getPackageName(i), getPermission(i));
+                        break;
+                    case TYPE_SET_UNINSTALL_BLOCKED:
+                        dpm.setUninstallBlocked(admin, getPackageName(i), getArg(i) != 0);
+                        results[i] = RESULT_OK;
+                        break;
+                    default:
+                        results[i] = RESULT_ERROR;
+                        break;
+                }
+            } catch (Exception e) {
+                results[i] = RESULT_ERROR;
+            }
+        }
+        suspend(dpm, admin, suspend, true, results);
+        suspend(dpm, admin, unsuspend, false, results);
+        return results;
+    }
+
+    /**
+     * Run every operation through the single-call DpmHelper methods, one
+     * transaction each. The fallback when the UserService isn't bound.
+     */
+    public int[] executeEach(Context context) {
+        int[] results = new int[count];
+        for (int i = 0; i < count; i++) {
+            String packageName = getPackageName(i);
+            boolean on = getArg(i) != 0;
+            switch (getType(i)) {
+                case TYPE_SET_HIDDEN:
+                    results[i] = DpmHelper.setApplicationHidden(context, packageName, on) ? RESULT_OK : RESULT_FAILED;
+                    break;
+                case TYPE_SET_SUSPENDED:
+                    results[i] = DpmHelper.setPackagesSuspended(context, new String[] {packageName}, on).length == 0
+                            ? RESULT_OK : RESULT_FAILED;
+                    break;
+                case TYPE_SET_GRANT_STATE:
+                    results[i] = DpmHelper.setPermissionGrantState(context, packageName, getPermission(i), getArg(i))
+                            ? RESULT_OK : RESULT_FAILED;
+                    break;
+                case TYPE_GET_GRANT_STATE:
+                    results[i] = DpmHelper.readPermissionGrantState(context, packageName, getPermission(i));
+                    break;
+                case TYPE_SET_UNINSTALL_BLOCKED:
+                    results[i] = DpmHelper.setUninstallBlocked(context, packageName, on) ? RESULT_OK : RESULT_FAILED;
+                    break;
+                default:
+                    results[i] = RESULT_ERROR;
+                    break;
+            }
+        }
+        return results;
+    }
+
+    private void suspend(DevicePolicyManager dpm, ComponentName admin, List<Integer> indexes,
+                         boolean suspended, int[] results) {
+        if (indexes.isEmpty()) {
+            return;
+        }
+        String[] packageNames = new String[indexes.size()];
+        for (int i = 0; i < packageNames.length; i++) {
+            packageNames[i] = getPackageName(indexes.get(i));
+        }
+        try {
+            String[] failed = dpm.setPackagesSuspended(admin, packageNames, suspended);
+            List<String> failedList = new ArrayList<>();
+            if (failed != null) {
+                for (String packageName : failed) {
+                    failedList.add(packageName);
+                }
+            }
+            for (int index : indexes) {
+                results[index] = failedList.contains(getPackageName(index)) ? RESULT_FAILED : RESULT_OK;
+            }
+        } catch (Exception e) {
+            for (int index : indexes) {
+                results[index] = RESULT_ERROR;
+            }
+        }
+    }
+}
@@ -3,14 +3,19 @@ package com.example.deviceownerapp;
 import android.app.Activity;
 import android.app.PendingIntent;
 import android.app.admin.DevicePolicyManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.IntentSender;
 import android.content.ServiceConnection;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInstaller;
 import android.content.pm.PackageManager;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
@@ -19,6 +24,17 @@ import com.rosan.dhizuku.api.Dhizuku;
 import com.rosan.dhizuku.api.DhizukuRequestPermissionListener;
 import com.rosan.dhizuku.api.DhizukuUserServiceArgs;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Helper class that abstracts DevicePolicyManager access for both
  * native Device Owner mode and Dhizuku mode.
@@ -41,10 +57,49 @@ public class DpmHelper {
     // Cache for Dhizuku initialization state
     private static Boolean dhizukuInitialized = null;
 
+    // Resolved mode, null until the next getActiveMode after invalidateMode
+    private static volatile Mode cachedMode = null;
+    // Bumped by invalidateMode so a resolve racing with it isn't cached
+    private static volatile int modeGeneration = 0;
+    private static BroadcastReceiver modeReceiver = null;
+    private static IBinder watchedDhizukuBinder = null;
+    private static final IBinder.DeathRecipient dhizukuDeath = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {
+            invalidateMode();
+            DhizukuHandles.reset();
+        }
+    };
+
     /**
      * Get the current active mode for Device Owner operations.
+     * Resolved once and cached until {@link #invalidateMode}, which device admin,
+     * Dhizuku permission, Dhizuku package and Dhizuku binder death events call.
      */
     public static Mode getActiveMode(Context context) {
+        Mode mode = cachedMode;
+        if (mode != null) {
+            return mode;
+        }
+        int generation = modeGeneration;
+        mode = resolveActiveMode(context);
+        watchModeChanges(context, mode);
+        if (generation == modeGeneration) {
+            cachedMode = mode;
+        }
+        return mode;
+    }
+
+    /**
+     * Forget the cached mode so the next {@link #getActiveMode} checks again.
+     */
+    public static void invalidateMode() {
+        modeGeneration++;
+        cachedMode = null;
+        dhizukuInitialized = null;
+    }
+
+    private static Mode resolveActiveMode(Context context) {
         DevicePolicyManager dpm = getDpm(context);
         String packageName = context.getPackageName();
 
@@ -65,6 +120,66 @@ public class DpmHelper {
         return Mode.NONE;
     }
 
+    /**
+     * Listen for the events that can change the mode: Dhizuku being installed,
+     * updated or removed, the device owner changing, and the Dhizuku server dying.
+     */
+    private static synchronized void watchModeChanges(Context context, Mode mode) {
+        Context app = context.getApplicationContext();
+        if (modeReceiver == null && app != null) {
+            modeReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    if (DevicePolicyManager.ACTION_DEVICE_OWNER_CHANGED.equals(intent.getAction())
+                            || (intent.getData() != null
+                                && DHIZUKU_PACKAGE.equals(intent.getData().getSchemeSpecificPart()))) {
+                        invalidateMode();
+                        DhizukuHandles.reset();
+                    }
+                }
+            };
+            // Implicit package broadcasts only reach receivers registered at runtime
+            IntentFilter packageFilter = new IntentFilter();
+            packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            packageFilter.addDataScheme("package");
+            try {
+                app.registerReceiver(modeReceiver, packageFilter);
+                app.registerReceiver(modeReceiver, new IntentFilter(DevicePolicyManager.ACTION_DEVICE_OWNER_CHANGED));
+            } catch (Exception e) {
+                Logger.log(context, TAG, "Could not watch for mode changes: " + e.getMessage());
+            }
+        }
+
+        if (mode != Mode.DHIZUKU) {
+            return;
+        }
+        try {
+            // Dhizuku keeps its server binder private
+            Object remote = HiddenApi.field(Dhizuku.class, "remote").get(null);
+            IBinder binder = remote != null ? HiddenApi.asBinder(remote) : null;
+            if (binder != null && binder != watchedDhizukuBinder) {
+                binder.linkToDeath(dhizukuDeath, 0);
+                watchedDhizukuBinder = binder;
+            }
+        } catch (Exception e) {
+            Logger.log(context, TAG, "Could not watch the Dhizuku binder: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A privileged call failed: if it was a dead binder or a refused permission,
+     * the cached mode may be stale.
+     */
+    private static void invalidateModeIfLost(Exception e) {
+        if (e instanceof SecurityException || isBinderDeath(e)) {
+            invalidateMode();
+            DhizukuHandles.reset();
+        }
+    }
+
     /**
      * Check if Device Owner functionality is available through any mode.
      */
@@ -137,7 +252,7 @@ public class DpmHelper {
                 public void onRequestPermission(int grantResult) throws RemoteException {
                     final boolean granted = grantResult == PackageManager.PERMISSION_GRANTED;
                     // Clear cache to re-check
-                    dhizukuInitialized = null;
+                    invalidateMode();
                     // Run callback on UI thread
                     activity.runOnUiThread(new Runnable() {
                         @Override
@@ -175,6 +290,7 @@ public class DpmHelper {
             }
         } catch (Exception e) {
             Logger.log(context, TAG, "setApplicationHidden error: " + e.getMessage());
+            invalidateModeIfLost(e);
             return false;
         }
     }
@@ -199,17 +315,27 @@ public class DpmHelper {
             }
         } catch (Exception e) {
             Logger.log(context, TAG, "isApplicationHidden error: " + e.getMessage());
+            invalidateModeIfLost(e);
             return false;
         }
     }
 
     /**
-     * Get the permission grant state for an app.
+     * Get the permission grant state for an app. Errors read as DEFAULT; use
+     * {@link #readPermissionGrantState} where they must be told apart.
      */
     public static int getPermissionGrantState(Context context, String packageName, String permission) {
+        int state = readPermissionGrantState(context, packageName, permission);
+        return state >= 0 ? state : DevicePolicyManager.PERMISSION_GRANT_STATE_DEFAULT;
+    }
+
+    /**
+     * Get the permission grant state for an app, or -1 if it could not be read.
+     */
+    public static int readPermissionGrantState(Context context, String packageName, String permission) {
         Mode mode = getActiveMode(context);
         if (mode == Mode.NONE) {
-            return DevicePolicyManager.PERMISSION_GRANT_STATE_DEFAULT;
+            return -1;
         }
 
         try {
@@ -219,11 +345,13 @@ public class DpmHelper {
                 return dpm.getPermissionGrantState(admin, packageName, permission);
             } else {
                 // Dhizuku mode
-                return getPermissionGrantStateDhizuku(context, packageName, permission);
+                return transactGetPermissionGrantState(DhizukuHandles.devicePolicy(), DhizukuHandles.owner(),
+                        packageName, permission);
             }
         } catch (Exception e) {
             Logger.log(context, TAG, "getPermissionGrantState error: " + e.getMessage());
-            return DevicePolicyManager.PERMISSION_GRANT_STATE_DEFAULT;
+            invalidateModeIfLost(e);
+            return -1;
         }
     }
 
@@ -248,6 +376,88 @@ public class DpmHelper {
             }
         } catch (Exception e) {
             Logger.log(context, TAG, "setPermissionGrantState error: " + e.getMessage());
+            invalidateModeIfLost(e);
+            return false;
+        }
+    }
+
+    /**
+     * Suspend or unsuspend several packages in one call. A suspended package stays
+     * installed and visible but can't be launched. Returns the packages that could
+     * not be changed (all of them if the call itself failed).
+     */
+    public static String[] setPackagesSuspended(Context context, String[] packageNames, boolean suspended) {
+        Mode mode = getActiveMode(context);
+        if (mode == Mode.NONE) {
+            return packageNames;
+        }
+
+        try {
+            String[] failed;
+            if (mode == Mode.NATIVE_OWNER) {
+                DevicePolicyManager dpm = getDpm(context);
+                ComponentName admin = getAdminComponent(context);
+                failed = dpm.setPackagesSuspended(admin, packageNames, suspended);
+            } else {
+                // Dhizuku mode
+                failed = transactSetPackagesSuspended(DhizukuHandles.devicePolicy(), DhizukuHandles.owner(),
+                        packageNames, suspended);
+            }
+            return failed != null ? failed : new String[0];
+        } catch (Exception e) {
+            Logger.log(context, TAG, "setPackagesSuspended error: " + e.getMessage());
+            invalidateModeIfLost(e);
+            return packageNames;
+        }
+    }
+
+    /**
+     * Check if a package is suspended.
+     */
+    public static boolean isPackageSuspended(Context context, String packageName) {
+        Mode mode = getActiveMode(context);
+        if (mode == Mode.NONE) {
+            return false;
+        }
+
+        try {
+            if (mode == Mode.NATIVE_OWNER) {
+                DevicePolicyManager dpm = getDpm(context);
+                ComponentName admin = getAdminComponent(context);
+                return dpm.isPackageSuspended(admin, packageName);
+            } else {
+                // Dhizuku mode
+                return transactIsPackageSuspended(DhizukuHandles.devicePolicy(), DhizukuHandles.owner(), packageName);
+            }
+        } catch (Exception e) {
+            Logger.log(context, TAG, "isPackageSuspended error: " + e.getMessage());
+            invalidateModeIfLost(e);
+            return false;
+        }
+    }
+
+    /**
+     * Block or allow uninstalling a package.
+     */
+    public static boolean setUninstallBlocked(Context context, String packageName, boolean blocked) {
+        Mode mode = getActiveMode(context);
+        if (mode == Mode.NONE) {
+            return false;
+        }
+
+        try {
+            if (mode == Mode.NATIVE_OWNER) {
+                DevicePolicyManager dpm = getDpm(context);
+                ComponentName admin = getAdminComponent(context);
+                dpm.setUninstallBlocked(admin, packageName, blocked);
+            } else {
+                // Dhizuku mode
+                transactSetUninstallBlocked(DhizukuHandles.devicePolicy(), DhizukuHandles.owner(), packageName, blocked);
+            }
+            return true;
+        } catch (Exception e) {
+            Logger.log(context, TAG, "setUninstallBlocked error: " + e.getMessage());
+            invalidateModeIfLost(e);
             return false;
         }
     }
@@ -282,6 +492,161 @@ public class DpmHelper {
         }
     }
 
+    // ======== Bulk operations ========
+
+    /**
+     * Outcome for one package of a bulk call.
+     */
+    public enum BulkResult {
+        CHANGED,        // The call went through
+        UNCHANGED,      // Already in the requested state, no call made
+        FAILED          // The call failed or there are no privileges
+    }
+
+    public interface BulkCallback {
+        /** Results in the order the packages were given, on the main thread */
+        void onResult(Map<String, BulkResult> results);
+    }
+
+    // One pass at a time, off the UI thread
+    private static final ExecutorService bulkExecutor = Executors.newSingleThreadExecutor();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Hide or unhide many applications in one background pass. The mode, admin
+     * and binder are resolved once; packages already in the requested state are
+     * skipped. A dead binder fails the rest of the pass.
+     */
+    public static void setApplicationsHidden(Context context, Collection<String> packageNames,
+                                             final boolean hidden, final BulkCallback callback) {
+        final Context app = context.getApplicationContext();
+        final List<String> packages = new ArrayList<>(new LinkedHashSet<>(packageNames));
+        bulkExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final Map<String, BulkResult> results = setApplicationsHiddenNow(app, packages, hidden);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResult(results);
+                    }
+                });
+            }
+        });
+    }
+
+    private static Map<String, BulkResult> setApplicationsHiddenNow(Context context, List<String> packages,
+                                                                    boolean hidden) {
+        Map<String, BulkResult> results = new LinkedHashMap<>();
+        for (String packageName : packages) {
+            results.put(packageName, BulkResult.FAILED);
+        }
+        Mode mode = getActiveMode(context);
+        if (mode == Mode.NONE) {
+            return results;
+        }
+
+        DevicePolicyManager dpm = null;
+        ComponentName admin;
+        IBinder wrappedBinder = null;
+        try {
+            if (mode == Mode.NATIVE_OWNER) {
+                dpm = getDpm(context);
+                admin = getAdminComponent(context);
+            } else {
+                wrappedBinder = DhizukuHandles.devicePolicy();
+                admin = DhizukuHandles.owner();
+            }
+        } catch (Exception e) {
+            Logger.log(context, TAG, "setApplicationsHidden error: " + e.getMessage());
+            invalidateModeIfLost(e);
+            return results;
+        }
+
+        int changed = 0;
+        for (String packageName : packages) {
+            try {
+                boolean current = dpm != null
+                        ? dpm.isApplicationHidden(admin, packageName)
+                        : transactIsApplicationHidden(wrappedBinder, admin, packageName);
+                if (current == hidden) {
+                    results.put(packageName, BulkResult.UNCHANGED);
+                    continue;
+                }
+                boolean ok = dpm != null
+                        ? dpm.setApplicationHidden(admin, packageName, hidden)
+                        : transactSetApplicationHidden(wrappedBinder, admin, packageName, hidden);
+                if (ok) {
+                    results.put(packageName, BulkResult.CHANGED);
+                    changed++;
+                }
+            } catch (Exception e) {
+                Logger.log(context, TAG, "setApplicationsHidden " + packageName + " error: " + e.getMessage());
+                invalidateModeIfLost(e);
+                if (isBinderDeath(e)) {
+                    break;
+                }
+            }
+        }
+        Logger.log(context, TAG, (hidden ? "Hid " : "Unhid ") + changed + " of " + packages.size() + " apps");
+        return results;
+    }
+
+    /**
+     * Suspend ("freeze") or unsuspend many packages in one background pass. Packages
+     * already in the requested state (read from their FLAG_SUSPENDED, which costs no
+     * DPM call) are UNCHANGED; the rest go out in a single setPackagesSuspended call,
+     * and every one it didn't report as failed is CHANGED.
+     */
+    public static void setPackagesSuspended(Context context, Collection<String> packageNames,
+                                            final boolean suspended, final BulkCallback callback) {
+        final Context app = context.getApplicationContext();
+        final List<String> packages = new ArrayList<>(new LinkedHashSet<>(packageNames));
+        bulkExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final Map<String, BulkResult> results = new LinkedHashMap<>();
+                List<String> toChange = new ArrayList<>();
+                for (String packageName : packages) {
+                    if (isSuspendedFlagSet(app, packageName) == suspended) {
+                        results.put(packageName, BulkResult.UNCHANGED);
+                    } else {
+                        results.put(packageName, BulkResult.CHANGED);
+                        toChange.add(packageName);
+                    }
+                }
+                String[] failed = toChange.isEmpty()
+                        ? new String[0]
+                        : setPackagesSuspended(app, toChange.toArray(new String[0]), suspended);
+                for (String packageName : failed) {
+                    results.put(packageName, BulkResult.FAILED);
+                }
+                Logger.log(app, TAG, (suspended ? "Suspended " : "Unsuspended ")
+                        + (toChange.size() - failed.length) + " of " + packages.size() + " apps");
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResult(results);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * FLAG_SUSPENDED of an installed (or hidden) package. An unknown package reads
+     * as not suspended, so the suspend call is still made and reports it.
+     */
+    private static boolean isSuspendedFlagSet(Context context, String packageName) {
+        try {
+            ApplicationInfo info = context.getPackageManager()
+                    .getApplicationInfo(packageName, PackageManager.MATCH_UNINSTALLED_PACKAGES);
+            return (info.flags & ApplicationInfo.FLAG_SUSPENDED) != 0;
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
     // ======== Private helpers ========
 
     private static DevicePolicyManager getDpm(Context context) {
@@ -293,139 +658,191 @@ public class DpmHelper {
     }
 
     // ======== Dhizuku binder operations ========
-    // These use Dhizuku.binderWrapper to execute DPM operations with elevated privileges
+    // These transact on the wrapped binder from DhizukuHandles to execute DPM operations with elevated privileges
 
     private static boolean setApplicationHiddenDhizuku(Context context, String packageName, boolean hidden) {
         try {
-            // Get the DevicePolicyManager service binder
-            Object dpmService = getDpmService();
-            if (dpmService == null) return false;
-
-            // Get the wrapped binder through Dhizuku
-            IBinder originalBinder = (IBinder) dpmService.getClass()
-                    .getMethod("asBinder").invoke(dpmService);
-            IBinder wrappedBinder = Dhizuku.binderWrapper(originalBinder);
-
-            // Get Dhizuku's owner component - use Dhizuku's package as caller since we're proxying through it
-            ComponentName dhizukuAdmin = Dhizuku.getOwnerComponent();
-            String callerPackage = dhizukuAdmin.getPackageName(); // Use Dhizuku's package, not ours
-
-            // Build the transaction manually
-            Parcel data = Parcel.obtain();
-            Parcel reply = Parcel.obtain();
-            try {
-                data.writeInterfaceToken("android.app.admin.IDevicePolicyManager");
-                // Method signature varies by Android version
-                // For Android 8.1 (API 27): setApplicationHidden(ComponentName admin, String callerPackage, String packageName, boolean hidden)
-                data.writeInt(1); // admin is not null
-                dhizukuAdmin.writeToParcel(data, 0);
-                data.writeString(callerPackage); // callerPackage - must be Dhizuku's package
-                data.writeString(packageName);
-                data.writeInt(hidden ? 1 : 0);
-
-                // Transaction code for setApplicationHidden (varies by Android version)
-                int transactionCode = getTransactionCode("setApplicationHidden");
-                wrappedBinder.transact(transactionCode, data, reply, 0);
-                reply.readException();
-                return reply.readInt() != 0;
-            } finally {
-                data.recycle();
-                reply.recycle();
-            }
+            // The DevicePolicyManager binder, wrapped through Dhizuku, and Dhizuku's owner component
+            return transactSetApplicationHidden(DhizukuHandles.devicePolicy(), DhizukuHandles.owner(),
+                    packageName, hidden);
         } catch (Exception e) {
             Logger.log(context, TAG, "setApplicationHiddenDhizuku error: " + e.getMessage());
+            invalidateModeIfLost(e);
             return false;
         }
     }
 
     private static boolean isApplicationHiddenDhizuku(Context context, String packageName) {
         try {
-            Object dpmService = getDpmService();
-            if (dpmService == null) return false;
+            return transactIsApplicationHidden(DhizukuHandles.devicePolicy(), DhizukuHandles.owner(), packageName);
+        } catch (Exception e) {
+            Logger.log(context, TAG, "isApplicationHiddenDhizuku error: " + e.getMessage());
+            invalidateModeIfLost(e);
+            return false;
+        }
+    }
 
-            IBinder originalBinder = (IBinder) dpmService.getClass()
-                    .getMethod("asBinder").invoke(dpmService);
-            IBinder wrappedBinder = Dhizuku.binderWrapper(originalBinder);
+    private static boolean transactSetApplicationHidden(IBinder wrappedBinder, ComponentName dhizukuAdmin,
+                                                        String packageName, boolean hidden) throws Exception {
+        // Use Dhizuku's package as caller since we're proxying through it
+        String callerPackage = dhizukuAdmin.getPackageName();
 
-            ComponentName dhizukuAdmin = Dhizuku.getOwnerComponent();
-            String callerPackage = dhizukuAdmin.getPackageName(); // Use Dhizuku's package
+        // Build the transaction manually
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(HiddenApi.DEVICE_POLICY_MANAGER);
+            // Method signature varies by Android version
+            // For Android 8.1 (API 27): setApplicationHidden(ComponentName admin, String callerPackage, String packageName, boolean hidden)
+            data.writeInt(1); // admin is not null
+            dhizukuAdmin.writeToParcel(data, 0);
+            data.writeString(callerPackage); // callerPackage - must be Dhizuku's package
+            data.writeString(packageName);
+            data.writeInt(hidden ? 1 : 0);
+
+            // Transaction code for setApplicationHidden (varies by Android version)
+            int transactionCode = getTransactionCode("setApplicationHidden");
+            wrappedBinder.transact(transactionCode, data, reply, 0);
+            reply.readException();
+            return reply.readInt() != 0;
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
 
-            Parcel data = Parcel.obtain();
-            Parcel reply = Parcel.obtain();
-            try {
-                data.writeInterfaceToken("android.app.admin.IDevicePolicyManager");
-                data.writeInt(1); // admin is not null
-                dhizukuAdmin.writeToParcel(data, 0);
-                data.writeString(callerPackage);
-                data.writeString(packageName);
+    private static boolean transactIsApplicationHidden(IBinder wrappedBinder, ComponentName dhizukuAdmin,
+                                                       String packageName) throws Exception {
+        String callerPackage = dhizukuAdmin.getPackageName(); // Use Dhizuku's package
 
-                int transactionCode = getTransactionCode("isApplicationHidden");
-                wrappedBinder.transact(transactionCode, data, reply, 0);
-                reply.readException();
-                return reply.readInt() != 0;
-            } finally {
-                data.recycle();
-                reply.recycle();
-            }
-        } catch (Exception e) {
-            Logger.log(context, TAG, "isApplicationHiddenDhizuku error: " + e.getMessage());
-            return false;
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(HiddenApi.DEVICE_POLICY_MANAGER);
+            data.writeInt(1); // admin is not null
+            dhizukuAdmin.writeToParcel(data, 0);
+            data.writeString(callerPackage);
+            data.writeString(packageName);
+
+            int transactionCode = getTransactionCode("isApplicationHidden");
+            wrappedBinder.transact(transactionCode, data, reply, 0);
+            reply.readException();
+            return reply.readInt() != 0;
+        } finally {
+            data.recycle();
+            reply.recycle();
         }
     }
 
-    private static int getPermissionGrantStateDhizuku(Context context, String packageName, String permission) {
+    private static String[] transactSetPackagesSuspended(IBinder wrappedBinder, ComponentName dhizukuAdmin,
+                                                         String[] packageNames, boolean suspended) throws Exception {
+        String callerPackage = dhizukuAdmin.getPackageName(); // Use Dhizuku's package
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
         try {
-            Object dpmService = getDpmService();
-            if (dpmService == null) return DevicePolicyManager.PERMISSION_GRANT_STATE_DEFAULT;
+            // setPackagesSuspended(ComponentName admin, String callerPackage, String[] packageNames, boolean suspended)
+            data.writeInterfaceToken(HiddenApi.DEVICE_POLICY_MANAGER);
+            data.writeInt(1); // admin is not null
+            dhizukuAdmin.writeToParcel(data, 0);
+            data.writeString(callerPackage);
+            data.writeStringArray(packageNames);
+            data.writeInt(suspended ? 1 : 0);
+
+            int transactionCode = requireTransactionCode("setPackagesSuspended");
+            wrappedBinder.transact(transactionCode, data, reply, 0);
+            reply.readException();
+            // The packages that could not be changed
+            return reply.createStringArray();
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
 
-            IBinder originalBinder = (IBinder) dpmService.getClass()
-                    .getMethod("asBinder").invoke(dpmService);
-            IBinder wrappedBinder = Dhizuku.binderWrapper(originalBinder);
+    private static boolean transactIsPackageSuspended(IBinder wrappedBinder, ComponentName dhizukuAdmin,
+                                                      String packageName) throws Exception {
+        String callerPackage = dhizukuAdmin.getPackageName(); // Use Dhizuku's package
 
-            ComponentName dhizukuAdmin = Dhizuku.getOwnerComponent();
-            String callerPackage = dhizukuAdmin.getPackageName(); // Use Dhizuku's package
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(HiddenApi.DEVICE_POLICY_MANAGER);
+            data.writeInt(1); // admin is not null
+            dhizukuAdmin.writeToParcel(data, 0);
+            data.writeString(callerPackage);
+            data.writeString(packageName);
+
+            int transactionCode = requireTransactionCode("isPackageSuspended");
+            wrappedBinder.transact(transactionCode, data, reply, 0);
+            reply.readException();
+            return reply.readInt() != 0;
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
 
-            Parcel data = Parcel.obtain();
-            Parcel reply = Parcel.obtain();
-            try {
-                data.writeInterfaceToken("android.app.admin.IDevicePolicyManager");
-                data.writeInt(1); // admin is not null
-                dhizukuAdmin.writeToParcel(data, 0);
-                data.writeString(callerPackage);
-                data.writeString(packageName);
-                data.writeString(permission);
+    private static void transactSetUninstallBlocked(IBinder wrappedBinder, ComponentName dhizukuAdmin,
+                                                    String packageName, boolean blocked) throws Exception {
+        String callerPackage = dhizukuAdmin.getPackageName(); // Use Dhizuku's package
 
-                int transactionCode = getTransactionCode("getPermissionGrantState");
-                wrappedBinder.transact(transactionCode, data, reply, 0);
-                reply.readException();
-                return reply.readInt();
-            } finally {
-                data.recycle();
-                reply.recycle();
-            }
-        } catch (Exception e) {
-            Logger.log(context, TAG, "getPermissionGrantStateDhizuku error: " + e.getMessage());
-            return DevicePolicyManager.PERMISSION_GRANT_STATE_DEFAULT;
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            // setUninstallBlocked(ComponentName admin, String callerPackage, String packageName, boolean uninstallBlocked)
+            data.writeInterfaceToken(HiddenApi.DEVICE_POLICY_MANAGER);
+            data.writeInt(1); // admin is not null
+            dhizukuAdmin.writeToParcel(data, 0);
+            data.writeString(callerPackage);
+            data.writeString(packageName);
+            data.writeInt(blocked ? 1 : 0);
+
+            int transactionCode = requireTransactionCode("setUninstallBlocked");
+            wrappedBinder.transact(transactionCode, data, reply, 0);
+            reply.readException();
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+
+    private static int transactGetPermissionGrantState(IBinder wrappedBinder, ComponentName dhizukuAdmin,
+                                                       String packageName, String permission) throws Exception {
+        String callerPackage = dhizukuAdmin.getPackageName(); // Use Dhizuku's package
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(HiddenApi.DEVICE_POLICY_MANAGER);
+            data.writeInt(1); // admin is not null
+            dhizukuAdmin.writeToParcel(data, 0);
+            data.writeString(callerPackage);
+            data.writeString(packageName);
+            data.writeString(permission);
+
+            int transactionCode = requireTransactionCode("getPermissionGrantState");
+            wrappedBinder.transact(transactionCode, data, reply, 0);
+            reply.readException();
+            return reply.readInt();
+        } finally {
+            data.recycle();
+            reply.recycle();
         }
     }
 
     private static boolean setPermissionGrantStateDhizuku(Context context, String packageName,
                                                           String permission, int grantState) {
         try {
-            Object dpmService = getDpmService();
-            if (dpmService == null) return false;
-
-            IBinder originalBinder = (IBinder) dpmService.getClass()
-                    .getMethod("asBinder").invoke(dpmService);
-            IBinder wrappedBinder = Dhizuku.binderWrapper(originalBinder);
+            IBinder wrappedBinder = DhizukuHandles.devicePolicy();
 
-            ComponentName dhizukuAdmin = Dhizuku.getOwnerComponent();
+            ComponentName dhizukuAdmin = DhizukuHandles.owner();
             String callerPackage = dhizukuAdmin.getPackageName(); // Use Dhizuku's package
 
             Parcel data = Parcel.obtain();
             Parcel reply = Parcel.obtain();
             try {
-                data.writeInterfaceToken("android.app.admin.IDevicePolicyManager");
+                data.writeInterfaceToken(HiddenApi.DEVICE_POLICY_MANAGER);
                 data.writeInt(1); // admin is not null
                 dhizukuAdmin.writeToParcel(data, 0);
                 data.writeString(callerPackage);
@@ -443,54 +860,45 @@ public class DpmHelper {
             }
         } catch (Exception e) {
             Logger.log(context, TAG, "setPermissionGrantStateDhizuku error: " + e.getMessage());
+            invalidateModeIfLost(e);
             return false;
         }
     }
 
-    private static Object getDpmService() {
-        try {
-            Class<?> serviceManagerClass = Class.forName("android.os.ServiceManager");
-            java.lang.reflect.Method getServiceMethod = serviceManagerClass
-                    .getMethod("getService", String.class);
-            IBinder binder = (IBinder) getServiceMethod.invoke(null, "device_policy");
-            if (binder == null) return null;
-
-            Class<?> stubClass = Class.forName("android.app.admin.IDevicePolicyManager$Stub");
-            java.lang.reflect.Method asInterfaceMethod = stubClass
-                    .getMethod("asInterface", IBinder.class);
-            return asInterfaceMethod.invoke(null, binder);
-        } catch (Exception e) {
-            return null;
+    /**
+     * Get the transaction code for a DevicePolicyManager method.
+     * Read once from the TRANSACTION_* field in IDevicePolicyManager.Stub
+     */
+    private static int getTransactionCode(String methodName) {
+        int code = HiddenApi.getTransactionCode(HiddenApi.DEVICE_POLICY_MANAGER + "$Stub", methodName);
+        if (code >= 0) {
+            return code;
+        }
+        // Fallback to hardcoded values for Android 8.1 (API 27)
+        // These may need adjustment for different Android versions
+        switch (methodName) {
+            case "setApplicationHidden":
+                return 132;
+            case "isApplicationHidden":
+                return 133;
+            case "getPermissionGrantState":
+                return 213;
+            case "setPermissionGrantState":
+                return 212;
+            default:
+                return 0;
         }
     }
 
     /**
-     * Get the transaction code for a DevicePolicyManager method.
-     * Uses reflection to find the TRANSACTION_* field in IDevicePolicyManager.Stub
+     * Same, for methods with no known fallback code: throws instead of returning 0.
      */
-    private static int getTransactionCode(String methodName) {
-        try {
-            Class<?> stubClass = Class.forName("android.app.admin.IDevicePolicyManager$Stub");
-            String fieldName = "TRANSACTION_" + methodName;
-            java.lang.reflect.Field field = stubClass.getDeclaredField(fieldName);
-            field.setAccessible(true);
-            return field.getInt(null);
-        } catch (Exception e) {
-            // Fallback to hardcoded values for Android 8.1 (API 27)
-            // These may need adjustment for different Android versions
-            switch (methodName) {
-                case "setApplicationHidden":
-                    return 132;
-                case "isApplicationHidden":
-                    return 133;
-                case "getPermissionGrantState":
-                    return 213;
-                case "setPermissionGrantState":
-                    return 212;
-                default:
-                    return 0;
-            }
+    private static int requireTransactionCode(String methodName) throws Exception {
+        int code = getTransactionCode(methodName);
+        if (code <= 0) {
+            throw new Exception("No transaction code for " + methodName);
         }
+        return code;
     }
 
     // ======== Package Installation Support ========
@@ -503,165 +911,208 @@ public class DpmHelper {
                 PackageInstaller.SessionParams.MODE_FULL_INSTALL);
     }
 
+    /**
+     * SessionParams for an incremental update of an installed package: splits not
+     * written or removed in the session are kept from the installed version.
+     */
+    public static PackageInstaller.SessionParams createInheritSessionParams(Context context, String packageName) {
+        PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
+                PackageInstaller.SessionParams.MODE_INHERIT_EXISTING);
+        params.setAppPackageName(packageName);
+        return params;
+    }
+
     /**
      * Result holder for Dhizuku installation.
      */
     public static class DhizukuInstallResult {
         public boolean success;
         public String error;
+        public int sessionId = -1;
+        /** The failure was a dead binder (Dhizuku or system_server restarted), worth a retry */
+        public boolean binderDied = false;
         public DhizukuInstallResult(boolean success, String error) {
             this.success = success;
             this.error = error;
         }
+        public DhizukuInstallResult(int sessionId) {
+            this(true, null);
+            this.sessionId = sessionId;
+        }
+    }
+
+    /**
+     * Writes the APKs of one install into an open session.
+     */
+    public interface SessionWriter {
+        void writeTo(PackageInstaller.Session session) throws Exception;
     }
 
     /**
-     * Install an APK through Dhizuku's wrapped PackageInstaller binder.
+     * Install through Dhizuku's wrapped PackageInstaller binder.
      * This creates the session with Dhizuku's UID for silent installation.
      *
      * Based on AuroraStore's DhizukuInstaller approach:
      * 1. Get IPackageInstaller through Dhizuku-wrapped binder
      * 2. Create session through wrapped installer
      * 3. Open session - this returns a session that's owned by Dhizuku
-     * 4. Write APK data directly to session
-     * 5. Commit session
+     * 4. Let the writer stream every APK into the session
+     * 5. Commit session once
      */
-    public static DhizukuInstallResult installApkThroughDhizuku(Context context, java.io.InputStream apkStream, String apkName) {
+    public static DhizukuInstallResult installThroughDhizuku(Context context, SessionWriter writer) {
+        return installThroughDhizuku(context, createSessionParams(context), writer);
+    }
+
+    /**
+     * Same as {@link #installThroughDhizuku(Context, SessionWriter)} with the given session params.
+     */
+    public static DhizukuInstallResult installThroughDhizuku(Context context, PackageInstaller.SessionParams params,
+                                                             SessionWriter writer) {
+        return installThroughDhizuku(context, params, -1, writer);
+    }
+
+    /**
+     * Install into an already created Dhizuku session (see {@link #createDhizukuSession}),
+     * or into a new one created with params when sessionId is -1.
+     */
+    public static DhizukuInstallResult installThroughDhizuku(Context context, PackageInstaller.SessionParams params,
+                                                             int sessionId, SessionWriter writer) {
+        return installThroughDhizuku(context, params, sessionId, new Intent(context, InstallResultReceiver.class), writer);
+    }
+
+    /**
+     * Same, reporting the commit result with resultIntent (see
+     * {@link InstallResultReceiver#createIntent}).
+     */
+    public static DhizukuInstallResult installThroughDhizuku(Context context, PackageInstaller.SessionParams params,
+                                                             int sessionId, Intent resultIntent, SessionWriter writer) {
         if (getActiveMode(context) != Mode.DHIZUKU) {
             return new DhizukuInstallResult(false, "Not in Dhizuku mode");
         }
 
         PackageInstaller.Session session = null;
-        int sessionId = -1;
 
         try {
-            // Get the PackageInstaller service binder and wrap it
-            IBinder pmBinder = getPackageManagerBinder();
-            if (pmBinder == null) {
-                return new DhizukuInstallResult(false, "Could not get PackageManager binder");
+            if (sessionId < 0) {
+                sessionId = createDhizukuSession(context, params);
             }
+            session = openDhizukuSession(sessionId);
 
-            IBinder wrappedPmBinder = Dhizuku.binderWrapper(pmBinder);
-
-            // Get IPackageManager from wrapped binder
-            Class<?> pmStubClass = Class.forName("android.content.pm.IPackageManager$Stub");
-            java.lang.reflect.Method asInterfaceMethod = pmStubClass.getMethod("asInterface", IBinder.class);
-            Object iPackageManager = asInterfaceMethod.invoke(null, wrappedPmBinder);
+            // Write every APK into the one session
+            writer.writeTo(session);
 
-            // Get IPackageInstaller from IPackageManager
-            java.lang.reflect.Method getInstallerMethod = iPackageManager.getClass().getMethod("getPackageInstaller");
-            Object iPackageInstaller = getInstallerMethod.invoke(iPackageManager);
-
-            // Wrap the installer binder too
-            java.lang.reflect.Method asBinderMethod = iPackageInstaller.getClass().getMethod("asBinder");
-            IBinder installerBinder = (IBinder) asBinderMethod.invoke(iPackageInstaller);
-            IBinder wrappedInstallerBinder = Dhizuku.binderWrapper(installerBinder);
-
-            // Get IPackageInstaller interface from wrapped binder
-            Class<?> installerStubClass = Class.forName("android.content.pm.IPackageInstaller$Stub");
-            java.lang.reflect.Method installerAsInterface = installerStubClass.getMethod("asInterface", IBinder.class);
-            Object wrappedIPackageInstaller = installerAsInterface.invoke(null, wrappedInstallerBinder);
-
-            // Create session params
-            PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
-                    PackageInstaller.SessionParams.MODE_FULL_INSTALL);
-
-            // Create session through wrapped installer
-            java.lang.reflect.Method createSessionMethod = wrappedIPackageInstaller.getClass()
-                    .getMethod("createSession", PackageInstaller.SessionParams.class, String.class, String.class, int.class);
-
-            String dhizukuPackage = Dhizuku.getOwnerComponent().getPackageName();
-            sessionId = (int) createSessionMethod.invoke(wrappedIPackageInstaller, params, dhizukuPackage, null, 0);
-
-            Logger.log(context, TAG, "Created Dhizuku session: " + sessionId);
-
-            // Open session through wrapped installer
-            java.lang.reflect.Method openSessionMethod = wrappedIPackageInstaller.getClass()
-                    .getMethod("openSession", int.class);
-            Object iSession = openSessionMethod.invoke(wrappedIPackageInstaller, sessionId);
-
-            // Wrap the session binder
-            java.lang.reflect.Method sessionAsBinderMethod = iSession.getClass().getMethod("asBinder");
-            IBinder sessionBinder = (IBinder) sessionAsBinderMethod.invoke(iSession);
-            IBinder wrappedSessionBinder = Dhizuku.binderWrapper(sessionBinder);
-
-            // Get IPackageInstallerSession from wrapped binder
-            Class<?> sessionStubClass = Class.forName("android.content.pm.IPackageInstallerSession$Stub");
-            java.lang.reflect.Method sessionAsInterface = sessionStubClass.getMethod("asInterface", IBinder.class);
-            Object wrappedISession = sessionAsInterface.invoke(null, wrappedSessionBinder);
-
-            // Create a PackageInstaller.Session wrapper using reflection
-            // The session has a private constructor that takes IPackageInstallerSession
-            java.lang.reflect.Constructor<?> sessionConstructor = PackageInstaller.Session.class
-                    .getDeclaredConstructor(Class.forName("android.content.pm.IPackageInstallerSession"));
-            sessionConstructor.setAccessible(true);
-            session = (PackageInstaller.Session) sessionConstructor.newInstance(wrappedISession);
-
-            // Write APK data to session
-            try (java.io.OutputStream out = session.openWrite(apkName, 0, -1)) {
-                byte[] buffer = new byte[65536];
-                int len;
-                while ((len = apkStream.read(buffer)) != -1) {
-                    out.write(buffer, 0, len);
-                }
-                session.fsync(out);
-            }
-
-            Logger.log(context, TAG, "Written APK to Dhizuku session");
+            Logger.log(context, TAG, "Written APKs to Dhizuku session");
 
             // Commit the session
-            Intent intent = new Intent(context, InstallResultReceiver.class);
-            int flags = PendingIntent.FLAG_UPDATE_CURRENT;
-            if (android.os.Build.VERSION.SDK_INT >= 31) {
-                flags |= 33554432; // FLAG_MUTABLE
-            }
-            PendingIntent pendingIntent = PendingIntent.getBroadcast(context, sessionId, intent, flags);
-            session.commit(pendingIntent.getIntentSender());
+            session.commit(getResultSender(context, sessionId, resultIntent));
             session.close();
 
             Logger.log(context, TAG, "Committed Dhizuku session");
 
-            return new DhizukuInstallResult(true, null);
+            return new DhizukuInstallResult(sessionId);
 
         } catch (Exception e) {
-            Logger.log(context, TAG, "installApkThroughDhizuku error: " + e.getMessage());
+            Logger.log(context, TAG, "installThroughDhizuku error: " + e.getMessage());
             e.printStackTrace();
             if (session != null) {
                 try { session.abandon(); } catch (Exception ignored) {}
+            } else if (sessionId >= 0) {
+                abandonDhizukuSession(context, sessionId);
             }
-            return new DhizukuInstallResult(false, e.getMessage());
+            // A dead wrapped installer is rebuilt on the next install
+            invalidateModeIfLost(e);
+            DhizukuInstallResult result = new DhizukuInstallResult(false, e.getMessage());
+            result.binderDied = isBinderDeath(e);
+            return result;
         }
     }
 
-    private static IBinder getPackageManagerBinder() {
+    /**
+     * Resolve everything a Dhizuku install needs before the first byte is written:
+     * the mode, the wrapped installer binder and the reflection lookups.
+     * Returns false if Dhizuku isn't usable.
+     */
+    public static boolean prewarmDhizuku(Context context) {
+        if (getActiveMode(context) != Mode.DHIZUKU) {
+            return false;
+        }
         try {
-            Class<?> serviceManagerClass = Class.forName("android.os.ServiceManager");
-            java.lang.reflect.Method getServiceMethod = serviceManagerClass.getMethod("getService", String.class);
-            return (IBinder) getServiceMethod.invoke(null, "package");
+            DhizukuHandles.packageInstaller();
+            getSessionConstructor();
+            return true;
         } catch (Exception e) {
-            return null;
+            Logger.log(context, TAG, "Dhizuku prewarm failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static java.lang.reflect.Constructor<?> getSessionConstructor() throws Exception {
+        // The session has a private constructor that takes IPackageInstallerSession
+        return HiddenApi.constructor(PackageInstaller.Session.class,
+                HiddenApi.findClass(HiddenApi.PACKAGE_INSTALLER_SESSION));
+    }
+
+    /**
+     * Create a session owned by Dhizuku. Returns the session ID.
+     */
+    public static int createDhizukuSession(Context context, PackageInstaller.SessionParams params) throws Exception {
+        Object installer = DhizukuHandles.packageInstaller();
+        java.lang.reflect.Method createSessionMethod = HiddenApi.method(installer.getClass(),
+                "createSession", PackageInstaller.SessionParams.class, String.class, String.class, int.class);
+
+        String dhizukuPackage = DhizukuHandles.owner().getPackageName();
+        int sessionId = (int) createSessionMethod.invoke(installer, params, dhizukuPackage, null, 0);
+
+        Logger.log(context, TAG, "Created Dhizuku session: " + sessionId);
+        return sessionId;
+    }
+
+    /**
+     * Open a Dhizuku-owned session as a regular PackageInstaller.Session whose calls
+     * all go through wrapped binders.
+     */
+    private static PackageInstaller.Session openDhizukuSession(int sessionId) throws Exception {
+        Object installer = DhizukuHandles.packageInstaller();
+
+        // Open session through wrapped installer
+        Object iSession = HiddenApi.method(installer.getClass(), "openSession", int.class)
+                .invoke(installer, sessionId);
+
+        // Wrap the session binder
+        IBinder wrappedSessionBinder = Dhizuku.binderWrapper(HiddenApi.asBinder(iSession));
+
+        // Get IPackageInstallerSession from wrapped binder
+        Object wrappedISession = HiddenApi.asInterface(HiddenApi.PACKAGE_INSTALLER_SESSION, wrappedSessionBinder);
+
+        return (PackageInstaller.Session) getSessionConstructor().newInstance(wrappedISession);
+    }
+
+    /**
+     * Abandon a Dhizuku-owned session that was never used.
+     */
+    public static void abandonDhizukuSession(Context context, int sessionId) {
+        try {
+            Object installer = DhizukuHandles.packageInstaller();
+            HiddenApi.method(installer.getClass(), "abandonSession", int.class).invoke(installer, sessionId);
+            Logger.log(context, TAG, "Abandoned Dhizuku session: " + sessionId);
+        } catch (Exception e) {
+            Logger.log(context, TAG, "Could not abandon Dhizuku session " + sessionId + ": " + e.getMessage());
         }
     }
 
     private static IBinder getPackageInstallerBinder() {
         try {
-            Class<?> serviceManagerClass = Class.forName("android.os.ServiceManager");
-            java.lang.reflect.Method getServiceMethod = serviceManagerClass.getMethod("getService", String.class);
-            IBinder pmBinder = (IBinder) getServiceMethod.invoke(null, "package");
+            IBinder pmBinder = HiddenApi.getService("package");
             if (pmBinder == null) return null;
 
             // Get PackageManager stub
-            Class<?> pmStubClass = Class.forName("android.content.pm.IPackageManager$Stub");
-            java.lang.reflect.Method asInterfaceMethod = pmStubClass.getMethod("asInterface", IBinder.class);
-            Object pm = asInterfaceMethod.invoke(null, pmBinder);
+            Object pm = HiddenApi.asInterface(HiddenApi.PACKAGE_MANAGER, pmBinder);
 
             // Get PackageInstaller from PackageManager
-            java.lang.reflect.Method getInstallerMethod = pm.getClass().getMethod("getPackageInstaller");
-            Object installer = getInstallerMethod.invoke(pm);
+            Object installer = HiddenApi.method(pm.getClass(), "getPackageInstaller").invoke(pm);
 
             // Get the binder from the installer proxy
-            java.lang.reflect.Method asBinderMethod = installer.getClass().getMethod("asBinder");
-            return (IBinder) asBinderMethod.invoke(installer);
+            return HiddenApi.asBinder(installer);
         } catch (Exception e) {
             return null;
         }
@@ -671,7 +1122,7 @@ public class DpmHelper {
         Parcel data = Parcel.obtain();
         Parcel reply = Parcel.obtain();
         try {
-            data.writeInterfaceToken("android.content.pm.IPackageInstaller");
+            data.writeInterfaceToken(HiddenApi.PACKAGE_INSTALLER);
             // SessionParams
             PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
                     PackageInstaller.SessionParams.MODE_FULL_INSTALL);
@@ -696,7 +1147,7 @@ public class DpmHelper {
         Parcel data = Parcel.obtain();
         Parcel reply = Parcel.obtain();
         try {
-            data.writeInterfaceToken("android.content.pm.IPackageInstaller");
+            data.writeInterfaceToken(HiddenApi.PACKAGE_INSTALLER);
             data.writeInt(sessionId);
 
             int transactionCode = getPackageInstallerTransactionCode("openSession");
@@ -718,7 +1169,7 @@ public class DpmHelper {
         Parcel data = Parcel.obtain();
         Parcel reply = Parcel.obtain();
         try {
-            data.writeInterfaceToken("android.content.pm.IPackageInstaller");
+            data.writeInterfaceToken(HiddenApi.PACKAGE_INSTALLER);
             data.writeInt(sessionId);
 
             int transactionCode = getPackageInstallerTransactionCode("abandonSession");
@@ -731,8 +1182,10 @@ public class DpmHelper {
         }
     }
 
-    private static boolean writeToSessionThroughBinder(IBinder session, String name, java.io.InputStream apkStream) {
+    private static boolean writeToSessionThroughBinder(IBinder session, String name, java.io.InputStream apkStream,
+                                                       final InstallProgress progress) {
         ParcelFileDescriptor[] pipe = null;
+        final java.io.IOException[] writeError = new java.io.IOException[1];
         try {
             // Create a pipe to transfer data
             pipe = ParcelFileDescriptor.createPipe();
@@ -745,23 +1198,25 @@ public class DpmHelper {
                 @Override
                 public void run() {
                     try (java.io.OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(writeEnd)) {
-                        byte[] buffer = new byte[65536];
-                        int len;
-                        while ((len = finalStream.read(buffer)) != -1) {
-                            out.write(buffer, 0, len);
-                        }
-                    } catch (Exception e) {
-                        // Ignore
+                        // The token is checked per buffer; a cancel fails the copy here
+                        FileTransfer.copy(finalStream, out, new byte[FileTransfer.BUFFER_SIZE], progress);
+                    } catch (java.io.IOException e) {
+                        writeError[0] = e;
                     }
                 }
             });
             writerThread.start();
+            // Closing both ends unblocks whichever side is waiting when cancelled
+            if (progress != null) {
+                progress.onCancel(readEnd);
+                progress.onCancel(writeEnd);
+            }
 
             // Call openWrite on the session
             Parcel data = Parcel.obtain();
             Parcel reply = Parcel.obtain();
             try {
-                data.writeInterfaceToken("android.content.pm.IPackageInstallerSession");
+                data.writeInterfaceToken(HiddenApi.PACKAGE_INSTALLER_SESSION);
                 data.writeString(name);
                 data.writeLong(0); // offsetBytes
                 data.writeLong(-1); // lengthBytes (-1 = unknown)
@@ -780,13 +1235,20 @@ public class DpmHelper {
                     // Write the APK data through the returned fd
                     try (java.io.OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pfd);
                          java.io.InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(readEnd)) {
-                        byte[] buffer = new byte[65536];
+                        byte[] buffer = new byte[FileTransfer.BUFFER_SIZE];
                         int len;
                         while ((len = in.read(buffer)) != -1) {
+                            if (progress != null) {
+                                progress.checkCancelled();
+                            }
                             out.write(buffer, 0, len);
                         }
                     }
                     writerThread.join(30000);
+                    // A failed or cancelled writer closes the pipe early; don't fsync a truncated APK
+                    if (writeError[0] != null) {
+                        throw writeError[0];
+                    }
 
                     // Call fsync
                     fsyncSessionThroughBinder(session, name);
@@ -801,6 +1263,15 @@ public class DpmHelper {
             return false;
         } catch (Exception e) {
             return false;
+        } finally {
+            if (pipe != null) {
+                if (progress != null) {
+                    progress.removeOnCancel(pipe[0]);
+                    progress.removeOnCancel(pipe[1]);
+                }
+                try { pipe[0].close(); } catch (java.io.IOException ignored) {}
+                try { pipe[1].close(); } catch (java.io.IOException ignored) {}
+            }
         }
     }
 
@@ -808,7 +1279,7 @@ public class DpmHelper {
         Parcel data = Parcel.obtain();
         Parcel reply = Parcel.obtain();
         try {
-            data.writeInterfaceToken("android.content.pm.IPackageInstallerSession");
+            data.writeInterfaceToken(HiddenApi.PACKAGE_INSTALLER_SESSION);
             data.writeString(name);
 
             int transactionCode = getSessionTransactionCode("fsync");
@@ -821,20 +1292,15 @@ public class DpmHelper {
         }
     }
 
-    private static void commitSessionThroughBinder(Context context, IBinder session, int sessionId) {
+    private static void commitSessionThroughBinder(Context context, IBinder session, int sessionId,
+                                                   Intent resultIntent) {
         Parcel data = Parcel.obtain();
         Parcel reply = Parcel.obtain();
         try {
-            data.writeInterfaceToken("android.content.pm.IPackageInstallerSession");
+            data.writeInterfaceToken(HiddenApi.PACKAGE_INSTALLER_SESSION);
 
             // Create an IntentSender for the result
-            Intent intent = new Intent(Intent.ACTION_PACKAGE_ADDED);
-            int flags = PendingIntent.FLAG_UPDATE_CURRENT;
-            if (android.os.Build.VERSION.SDK_INT >= 31) {
-                flags |= 33554432; // FLAG_MUTABLE
-            }
-            PendingIntent pendingIntent = PendingIntent.getBroadcast(context, sessionId, intent, flags);
-            IntentSender intentSender = pendingIntent.getIntentSender();
+            IntentSender intentSender = getResultSender(context, sessionId, resultIntent);
 
             data.writeInt(1); // intentSender not null
             intentSender.writeToParcel(data, 0);
@@ -854,20 +1320,16 @@ public class DpmHelper {
     }
 
     private static int getPackageInstallerTransactionCode(String methodName) {
-        try {
-            Class<?> stubClass = Class.forName("android.content.pm.IPackageInstaller$Stub");
-            String fieldName = "TRANSACTION_" + methodName;
-            java.lang.reflect.Field field = stubClass.getDeclaredField(fieldName);
-            field.setAccessible(true);
-            return field.getInt(null);
-        } catch (Exception e) {
-            // Fallback - these are approximate for Android 8.1+
-            switch (methodName) {
-                case "createSession": return 1;
-                case "openSession": return 3;
-                case "abandonSession": return 5;
-                default: return 0;
-            }
+        int code = HiddenApi.getTransactionCode(HiddenApi.PACKAGE_INSTALLER + "$Stub", methodName);
+        if (code >= 0) {
+            return code;
+        }
+        // Fallback - these are approximate for Android 8.1+
+        switch (methodName) {
+            case "createSession": return 1;
+            case "openSession": return 3;
+            case "abandonSession": return 5;
+            default: return 0;
         }
     }
 
@@ -875,70 +1337,55 @@ public class DpmHelper {
      * Commit a PackageInstaller session with Device Owner privileges.
      * In native mode, uses standard commit.
      * In Dhizuku mode, wraps the session binder for elevated privileges.
+     * Throws if the session could not be committed, in which case no result
+     * will be broadcast for it.
      */
     public static void commitSession(Context context, PackageInstaller.Session session,
-                                     int sessionId, Intent resultIntent) {
+                                     int sessionId, Intent resultIntent) throws Exception {
         Mode mode = getActiveMode(context);
 
-        try {
-            if (mode == Mode.DHIZUKU) {
-                commitSessionDhizuku(context, session, sessionId, resultIntent);
-            } else {
-                // Native mode or no privileges - use standard commit
-                commitSessionStandard(context, session, sessionId, resultIntent);
-            }
-        } catch (Exception e) {
-            Logger.log(context, TAG, "commitSession error: " + e.getMessage());
-            // Fall back to standard commit
+        if (mode == Mode.DHIZUKU) {
+            // Falls back to the standard commit itself
+            commitSessionDhizuku(context, session, sessionId, resultIntent);
+        } else {
+            // Native mode or no privileges - use standard commit
             commitSessionStandard(context, session, sessionId, resultIntent);
         }
     }
 
     private static void commitSessionStandard(Context context, PackageInstaller.Session session,
-                                              int sessionId, Intent resultIntent) {
+                                              int sessionId, Intent resultIntent) throws Exception {
         try {
-            int flags = PendingIntent.FLAG_UPDATE_CURRENT;
-            // Add FLAG_MUTABLE for Android 12+
-            if (android.os.Build.VERSION.SDK_INT >= 31) {
-                flags |= 33554432; // FLAG_MUTABLE
-            }
-            PendingIntent pendingIntent = PendingIntent.getBroadcast(
-                    context, sessionId, resultIntent, flags);
-            session.commit(pendingIntent.getIntentSender());
+            session.commit(getResultSender(context, sessionId, resultIntent));
         } catch (Exception e) {
             Logger.log(context, TAG, "commitSessionStandard error: " + e.getMessage());
+            throw e;
         }
     }
 
     private static void commitSessionDhizuku(Context context, PackageInstaller.Session session,
-                                             int sessionId, Intent resultIntent) {
-        try {
-            // Get the session's underlying binder
-            IBinder sessionBinder = getSessionBinder(session);
-            if (sessionBinder == null) {
-                Logger.log(context, TAG, "Could not get session binder, falling back to standard");
-                commitSessionStandard(context, session, sessionId, resultIntent);
-                return;
-            }
+                                             int sessionId, Intent resultIntent) throws Exception {
+        // Get the session's underlying binder
+        IBinder sessionBinder = getSessionBinder(session);
+        if (sessionBinder == null) {
+            Logger.log(context, TAG, "Could not get session binder, falling back to standard");
+            commitSessionStandard(context, session, sessionId, resultIntent);
+            return;
+        }
 
+        try {
             // Wrap the binder through Dhizuku
             IBinder wrappedBinder = Dhizuku.binderWrapper(sessionBinder);
 
             // Create the IntentSender for the result
-            int flags = PendingIntent.FLAG_UPDATE_CURRENT;
-            if (android.os.Build.VERSION.SDK_INT >= 31) {
-                flags |= 33554432; // FLAG_MUTABLE
-            }
-            PendingIntent pendingIntent = PendingIntent.getBroadcast(
-                    context, sessionId, resultIntent, flags);
-            IntentSender intentSender = pendingIntent.getIntentSender();
+            IntentSender intentSender = getResultSender(context, sessionId, resultIntent);
 
             // Call commit through the wrapped binder
             // IPackageInstallerSession.commit(IntentSender statusReceiver, boolean forTransferred)
             Parcel data = Parcel.obtain();
             Parcel reply = Parcel.obtain();
             try {
-                data.writeInterfaceToken("android.content.pm.IPackageInstallerSession");
+                data.writeInterfaceToken(HiddenApi.PACKAGE_INSTALLER_SESSION);
                 // Write the IntentSender
                 data.writeInt(1); // intentSender is not null
                 intentSender.writeToParcel(data, 0);
@@ -962,43 +1409,69 @@ public class DpmHelper {
         }
     }
 
+    /**
+     * Status receiver for committing sessionId. The intent is tagged with the
+     * session ID so the result can be matched even where the installer leaves it out.
+     * It must address a component of this app: results sent to an implicit
+     * broadcast such as ACTION_PACKAGE_ADDED never reach InstallResultReceiver.
+     */
+    public static IntentSender getResultSender(Context context, int sessionId, Intent resultIntent) {
+        Intent intent = new Intent(resultIntent);
+        intent.putExtra(InstallResultReceiver.EXTRA_COMMIT_SESSION_ID, sessionId);
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        // Add FLAG_MUTABLE for Android 12+ so the installer can fill in the status
+        if (android.os.Build.VERSION.SDK_INT >= 31) {
+            flags |= 33554432; // FLAG_MUTABLE
+        }
+        return PendingIntent.getBroadcast(context, sessionId, intent, flags).getIntentSender();
+    }
+
+    /**
+     * True if the failure (or one of its causes) is a dead binder.
+     */
+    public static boolean isBinderDeath(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof android.os.DeadObjectException) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
     private static IBinder getSessionBinder(PackageInstaller.Session session) {
         try {
             // PackageInstaller.Session has a mSession field of type IPackageInstallerSession
-            java.lang.reflect.Field sessionField = PackageInstaller.Session.class.getDeclaredField("mSession");
-            sessionField.setAccessible(true);
-            Object iSession = sessionField.get(session);
+            Object iSession = HiddenApi.field(PackageInstaller.Session.class, "mSession").get(session);
             if (iSession == null) return null;
 
             // Get the binder from the IPackageInstallerSession
-            java.lang.reflect.Method asBinderMethod = iSession.getClass().getMethod("asBinder");
-            return (IBinder) asBinderMethod.invoke(iSession);
+            return HiddenApi.asBinder(iSession);
         } catch (Exception e) {
             return null;
         }
     }
 
     private static int getSessionTransactionCode(String methodName) {
-        try {
-            Class<?> stubClass = Class.forName("android.content.pm.IPackageInstallerSession$Stub");
-            String fieldName = "TRANSACTION_" + methodName;
-            java.lang.reflect.Field field = stubClass.getDeclaredField(fieldName);
-            field.setAccessible(true);
-            return field.getInt(null);
-        } catch (Exception e) {
-            // Fallback for Android 8.1 (API 27)
-            // commit is typically the first method
-            if ("commit".equals(methodName)) {
-                return 1; // FIRST_CALL_TRANSACTION + 0
-            }
-            return 0;
+        int code = HiddenApi.getTransactionCode(HiddenApi.PACKAGE_INSTALLER_SESSION + "$Stub", methodName);
+        if (code >= 0) {
+            return code;
+        }
+        // Fallback for Android 8.1 (API 27)
+        // commit is typically the first method
+        if ("commit".equals(methodName)) {
+            return 1; // FIRST_CALL_TRANSACTION + 0
         }
+        return 0;
     }
 
     // ======== Dhizuku UserService for Installation ========
 
     private static IDhizukuInstallService installService = null;
     private static final Object serviceLock = new Object();
+    private static final long SERVICE_BIND_TIMEOUT_MS = 5000;
 
     public interface InstallServiceCallback {
         void onServiceConnected(IDhizukuInstallService service);
@@ -1063,6 +1536,85 @@ public class DpmHelper {
         }
     }
 
+    /**
+     * The install service, binding it first if needed and waiting up to timeoutMs.
+     * Null if it can't be bound in time. Must be called off the main thread: the
+     * bind callback arrives there, so waiting on it would only time out. On the
+     * main thread the bind is started and null returned straight away.
+     */
+    public static IDhizukuInstallService awaitInstallService(final Context context, long timeoutMs) {
+        IDhizukuInstallService service = getInstallService();
+        if (service != null || getActiveMode(context) != Mode.DHIZUKU) {
+            return service;
+        }
+        final CountDownLatch bound = new CountDownLatch(1);
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Logger.log(context, TAG, "awaitInstallService called on the main thread, not waiting");
+            timeoutMs = 0;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                bindInstallService(context, new InstallServiceCallback() {
+                    @Override
+                    public void onServiceConnected(IDhizukuInstallService service) {
+                        bound.countDown();
+                    }
+
+                    @Override
+                    public void onServiceDisconnected() {
+                    }
+
+                    @Override
+                    public void onBindingFailed(String error) {
+                        bound.countDown();
+                    }
+                });
+            }
+        });
+        try {
+            if (timeoutMs > 0) {
+                bound.await(timeoutMs, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return getInstallService();
+    }
+
+    /**
+     * Run a batch of DPM operations with the fewest transactions the mode allows:
+     * one hop into the Dhizuku UserService, directly in our process as device owner,
+     * or one transaction per operation through the wrapped binder if the service
+     * isn't bound. Blocking, so it must be called off the main thread; there it
+     * won't wait for the service to bind and runs the operations one by one.
+     */
+    public static int[] executeBatch(Context context, DpmBatch batch) {
+        Mode mode = getActiveMode(context);
+        if (mode == Mode.NATIVE_OWNER) {
+            return batch.execute(getDpm(context), getAdminComponent(context));
+        }
+        if (mode == Mode.DHIZUKU) {
+            IDhizukuInstallService service = awaitInstallService(context, SERVICE_BIND_TIMEOUT_MS);
+            if (service != null) {
+                try {
+                    int[] results = service.batchExecute(batch);
+                    if (results != null && results.length == batch.size()) {
+                        return results;
+                    }
+                } catch (Exception e) {
+                    Logger.log(context, TAG, "batchExecute error, running one by one: " + e.getMessage());
+                    if (isBinderDeath(e)) {
+                        synchronized (serviceLock) {
+                            installService = null;
+                        }
+                    }
+                }
+            }
+        }
+        return batch.executeEach(context);
+    }
+
     /**
      * Check if we should use Dhizuku UserService for installation.
      */
@@ -0,0 +1,120 @@
+package com.example.deviceownerapp;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copy helpers shared by the install paths.
+ *
+ * When both ends are file descriptors the bytes move with FileChannel.transferTo
+ * (sendfile in the kernel) and never enter the Java heap. Everything else goes
+ * through a single reused buffer. Note that on Android 8.1 the stream returned by
+ * PackageInstaller.Session.openWrite is a FileBridge socket with its own framing,
+ * so session writes always take the buffered path; STORED entries still skip the
+ * inflater and the extra stream layers.
+ *
+ * Every copy takes an optional {@link InstallProgress} that is credited once per
+ * buffer (or per transfer slice on the zero-copy path). Crediting it also checks
+ * for cancellation, so a cancelled install stops within one buffer or slice.
+ */
+public class FileTransfer {
+
+    public static final int BUFFER_SIZE = 65536;
+
+    // Largest single transferTo call, so progress still moves on big zero-copy ranges
+    private static final long TRANSFER_SLICE = 8 * 1024 * 1024;
+
+    /**
+     * Copy count bytes starting at position from the channel to out.
+     */
+    public static long copyRange(FileChannel source, long position, long count,
+                                 OutputStream out, byte[] buffer) throws IOException {
+        return copyRange(source, position, count, out, buffer, null);
+    }
+
+    public static long copyRange(FileChannel source, long position, long count,
+                                 OutputStream out, byte[] buffer, InstallProgress progress) throws IOException {
+        if (out instanceof FileOutputStream) {
+            FileChannel target = ((FileOutputStream) out).getChannel();
+            long done = 0;
+            if (progress != null) progress.checkCancelled();
+            while (done < count) {
+                long sent = source.transferTo(position + done, Math.min(count - done, TRANSFER_SLICE), target);
+                if (sent <= 0) {
+                    break;
+                }
+                done += sent;
+                if (progress != null) progress.add(sent);
+            }
+            if (done == count) {
+                return done;
+            }
+            // Target refused a direct transfer part way; finish with the buffer
+            return done + copyRangeBuffered(source, position + done, count - done, out, buffer, progress);
+        }
+        return copyRangeBuffered(source, position, count, out, buffer, progress);
+    }
+
+    /**
+     * Copy everything from in to out. Regular files copied into file-backed
+     * streams use a channel transfer from the current read position.
+     */
+    public static long copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        return copy(in, out, buffer, null);
+    }
+
+    public static long copy(InputStream in, OutputStream out, byte[] buffer,
+                            InstallProgress progress) throws IOException {
+        if (in instanceof FileInputStream && out instanceof FileOutputStream) {
+            FileChannel source = ((FileInputStream) in).getChannel();
+            long size = -1;
+            long position = 0;
+            try {
+                size = source.size();
+                position = source.position();
+            } catch (IOException e) {
+                // Pipes and sockets have no size; fall through to the buffered copy
+            }
+            if (size > 0 && position < size) {
+                long copied = copyRange(source, position, size - position, out, buffer, progress);
+                source.position(position + copied);
+                // Pick up anything appended since size() was read
+                return copied + copyBuffered(in, out, buffer, progress);
+            }
+        }
+        return copyBuffered(in, out, buffer, progress);
+    }
+
+    private static long copyRangeBuffered(FileChannel source, long position, long count,
+                                          OutputStream out, byte[] buffer, InstallProgress progress) throws IOException {
+        long done = 0;
+        while (done < count) {
+            int toRead = (int) Math.min(buffer.length, count - done);
+            int read = source.read(ByteBuffer.wrap(buffer, 0, toRead), position + done);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            out.write(buffer, 0, read);
+            done += read;
+            if (progress != null) progress.add(read);
+        }
+        return done;
+    }
+
+    private static long copyBuffered(InputStream in, OutputStream out, byte[] buffer,
+                                     InstallProgress progress) throws IOException {
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            total += read;
+            if (progress != null) progress.add(read);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.deviceownerapp;
+
+import android.os.IBinder;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolved call sites for the hidden APIs the binder plumbing uses.
+ *
+ * Every class, method, field, constructor and AIDL transaction code is looked up
+ * by reflection the first time it is needed and kept for the life of the process,
+ * so later calls cost one map lookup. A lookup that fails is remembered too
+ * (transaction codes as -1), so callers fall back to their defaults without
+ * paying for the exception again.
+ */
+public class HiddenApi {
+
+    /** AIDL interface descriptors, as written by writeInterfaceToken */
+    public static final String DEVICE_POLICY_MANAGER = "android.app.admin.IDevicePolicyManager";
+    public static final String PACKAGE_MANAGER = "android.content.pm.IPackageManager";
+    public static final String PACKAGE_INSTALLER = "android.content.pm.IPackageInstaller";
+    public static final String PACKAGE_INSTALLER_SESSION = "android.content.pm.IPackageInstallerSession";
+
+    // Stands in for a failed lookup in the maps, which can't hold null
+    private static final Object MISSING = new Object();
+
+    private static final ConcurrentHashMap<String, Object> classes = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Object> members = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Integer> transactionCodes = new ConcurrentHashMap<>();
+
+    private HiddenApi() {
+    }
+
+    public static Class<?> findClass(String name) throws ClassNotFoundException {
+        Object cached = classes.get(name);
+        if (cached == null) {
+            try {
+                cached = Class.forName(name);
+            } catch (ClassNotFoundException e) {
+                cached = MISSING;
+            }
+            classes.put(name, cached);
+        }
+        if (cached == MISSING) {
+            throw new ClassNotFoundException(name);
+        }
+        return (Class<?>) cached;
+    }
+
+    /**
+     * Public method of cls, by name and parameter types.
+     */
+    public static Method method(Class<?> cls, String name, Class<?>... parameterTypes) throws NoSuchMethodException {
+        String key = key(cls, "#" + name, parameterTypes);
+        Object cached = members.get(key);
+        if (cached == null) {
+            try {
+                cached = cls.getMethod(name, parameterTypes);
+            } catch (NoSuchMethodException e) {
+                cached = MISSING;
+            }
+            members.put(key, cached);
+        }
+        if (cached == MISSING) {
+            throw new NoSuchMethodException(cls.getName() + "." + name);
+        }
+        return (Method) cached;
+    }
+
+    public static Method method(String className, String name, Class<?>... parameterTypes)
+            throws ClassNotFoundException, NoSuchMethodException {
+        return method(findClass(className), name, parameterTypes);
+    }
+
+    /**
+     * Declared field of cls, made accessible.
+     */
+    public static Field field(Class<?> cls, String name) throws NoSuchFieldException {
+        String key = key(cls, "." + name);
+        Object cached = members.get(key);
+        if (cached == null) {
+            try {
+                Field field = cls.getDeclaredField(name);
+                field.setAccessible(true);
+                cached = field;
+            } catch (NoSuchFieldException e) {
+                cached = MISSING;
+            }
+            members.put(key, cached);
+        }
+        if (cached == MISSING) {
+            throw new NoSuchFieldException(cls.getName() + "." + name);
+        }
+        return (Field) cached;
+    }
+
+    /**
+     * Declared constructor of cls, made accessible.
+     */
+    public static Constructor<?> constructor(Class<?> cls, Class<?>... parameterTypes) throws NoSuchMethodException {
+        String key = key(cls, "<init>", parameterTypes);
+        Object cached = members.get(key);
+        if (cached == null) {
+            try {
+                Constructor<?> constructor = cls.getDeclaredConstructor(parameterTypes);
+                constructor.setAccessible(true);
+                cached = constructor;
+            } catch (NoSuchMethodException e) {
+                cached = MISSING;
+            }
+            members.put(key, cached);
+        }
+        if (cached == MISSING) {
+            throw new NoSuchMethodException(cls.getName() + ".<init>");
+        }
+        return (Constructor<?>) cached;
+    }
+
+    /**
+     * TRANSACTION_&lt;method&gt; of an AIDL Stub class, or -1 if it can't be read.
+     */
+    public static int getTransactionCode(String stubClassName, String methodName) {
+        String key = stubClassName + "#" + methodName;
+        Integer code = transactionCodes.get(key);
+        if (code == null) {
+            try {
+                code = field(findClass(stubClassName), "TRANSACTION_" + methodName).getInt(null);
+            } catch (Exception e) {
+                code = -1;
+            }
+            transactionCodes.put(key, code);
+        }
+        return code;
+    }
+
+    // ======== Common calls ========
+
+    /**
+     * ServiceManager.getService(name), or null.
+     */
+    public static IBinder getService(String name) {
+        try {
+            return (IBinder) method("android.os.ServiceManager", "getService", String.class).invoke(null, name);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * &lt;descriptor&gt;$Stub.asInterface(binder) for an AIDL interface descriptor.
+     */
+    public static Object asInterface(String descriptor, IBinder binder) throws Exception {
+        return method(descriptor + "$Stub", "asInterface", IBinder.class).invoke(null, binder);
+    }
+
+    /**
+     * The binder behind an AIDL interface object.
+     */
+    public static IBinder asBinder(Object iface) throws Exception {
+        return (IBinder) method(iface.getClass(), "asBinder").invoke(iface);
+    }
+
+    private static String key(Class<?> cls, String member, Class<?>... parameterTypes) {
+        StringBuilder sb = new StringBuilder(cls.getName()).append(member);
+        for (Class<?> type : parameterTypes) {
+            sb.append(',').append(type.getName());
+        }
+        return sb.toString();
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.deviceownerapp;
 
+import android.content.IntentSender;
 import android.os.Binder;
 import android.os.IBinder;
 import android.os.IInterface;
@@ -14,9 +15,17 @@ public interface IDhizukuInstallService extends IInterface {
 
     int createInstallSession() throws RemoteException;
     void writeToSession(int sessionId, String name, ParcelFileDescriptor pfd) throws RemoteException;
-    void commitSession(int sessionId) throws RemoteException;
+    /**
+     * Commit the session; the installer reports the result to statusReceiver,
+     * which should be created by the calling app so the result comes back to it.
+     */
+    void commitSession(int sessionId, IntentSender statusReceiver) throws RemoteException;
     void abandonSession(int sessionId) throws RemoteException;
     void destroy() throws RemoteException;
+    /**
+     * Run a list of DPM operations in the service's process; one result per operation.
+     */
+    int[] batchExecute(DpmBatch batch) throws RemoteException;
 
     abstract class Stub extends Binder implements IDhizukuInstallService {
         private static final String DESCRIPTOR = "com.example.deviceownerapp.IDhizukuInstallService";
@@ -26,6 +35,7 @@ public interface IDhizukuInstallService extends IInterface {
         static final int TRANSACTION_commitSession = IBinder.FIRST_CALL_TRANSACTION + 2;
         static final int TRANSACTION_abandonSession = IBinder.FIRST_CALL_TRANSACTION + 3;
         static final int TRANSACTION_destroy = IBinder.FIRST_CALL_TRANSACTION + 4;
+        static final int TRANSACTION_batchExecute = IBinder.FIRST_CALL_TRANSACTION + 5;
 
         public Stub() {
             this.attachInterface(this, DESCRIPTOR);
@@ -72,7 +82,11 @@ public interface IDhizukuInstallService extends IInterface {
                 case TRANSACTION_commitSession: {
                     data.enforceInterface(DESCRIPTOR);
                     int sessionId = data.readInt();
-                    this.commitSession(sessionId);
+                    IntentSender statusReceiver = null;
+                    if (data.readInt() != 0) {
+                        statusReceiver = IntentSender.CREATOR.createFromParcel(data);
+                    }
+                    this.commitSession(sessionId, statusReceiver);
                     reply.writeNoException();
                     return true;
                 }
@@ -89,6 +103,14 @@ public interface IDhizukuInstallService extends IInterface {
                     reply.writeNoException();
                     return true;
                 }
+                case TRANSACTION_batchExecute: {
+                    data.enforceInterface(DESCRIPTOR);
+                    DpmBatch batch = DpmBatch.readFromParcel(data);
+                    int[] result = this.batchExecute(batch);
+                    reply.writeNoException();
+                    reply.writeIntArray(result);
+                    return true;
+                }
             }
             return super.onTransact(code, data, reply, flags);
         }
@@ -143,12 +165,18 @@ public interface IDhizukuInstallService extends IInterface {
             }
 
             @Override
-            public void commitSession(int sessionId) throws RemoteException {
+            public void commitSession(int sessionId, IntentSender statusReceiver) throws RemoteException {
                 Parcel data = Parcel.obtain();
                 Parcel reply = Parcel.obtain();
                 try {
                     data.writeInterfaceToken(DESCRIPTOR);
                     data.writeInt(sessionId);
+                    if (statusReceiver != null) {
+                        data.writeInt(1);
+                        statusReceiver.writeToParcel(data, 0);
+                    } else {
+                        data.writeInt(0);
+                    }
                     remote.transact(TRANSACTION_commitSession, data, reply, 0);
                     reply.readException();
                 } finally {
@@ -185,6 +213,22 @@ public interface IDhizukuInstallService extends IInterface {
                     reply.recycle();
                 }
             }
+
+            @Override
+            public int[] batchExecute(DpmBatch batch) throws RemoteException {
+                Parcel data = Parcel.obtain();
+                Parcel reply = Parcel.obtain();
+                try {
+                    data.writeInterfaceToken(DESCRIPTOR);
+                    batch.writeToParcel(data);
+                    remote.transact(TRANSACTION_batchExecute, data, reply, 0);
+                    reply.readException();
+                    return reply.createIntArray();
+                } finally {
+                    data.recycle();
+                    reply.recycle();
+                }
+            }
         }
     }
 }
@@ -0,0 +1,13 @@
+package com.example.deviceownerapp;
+
+import java.io.IOException;
+
+/**
+ * Thrown from a copy loop once its install has been cancelled.
+ */
+public class InstallCancelledException extends IOException {
+
+    public InstallCancelledException() {
+        super("Install cancelled");
+    }
+}
@@ -0,0 +1,430 @@
+package com.example.deviceownerapp;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInstaller;
+import android.os.Environment;
+import android.os.StatFs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes one detected package into an install session and commits it.
+ *
+ * Has no UI of its own: every call returns a {@link Result} holding the committed
+ * session ID, or an error string for failures before the commit. The outcome of
+ * the commit itself arrives later through {@link InstallResultReceiver}.
+ *
+ * OBB files of a seekable bundle are extracted after the commit, while the
+ * package manager is still busy with the APKs.
+ *
+ * Each phase is timed into the plan's {@link InstallTrace}, which goes to
+ * {@link InstallHistory} when the install is over.
+ */
+public class InstallEngine {
+
+    private static final String TAG = "InstallEngine";
+
+    // Room the package manager needs on /data besides the APKs themselves (dexopt, lib extraction)
+    private static final long DATA_MARGIN_BYTES = 100L * 1024 * 1024;
+
+    private final Context context;
+
+    /**
+     * Outcome of writing and committing one package.
+     */
+    public static class Result {
+        public final int sessionId;
+        public final String error;
+        /** Problem after the commit (e.g. OBB copy), reported with the outcome */
+        public final String warning;
+        /** The failure is transient (a dead binder) and the install can be retried */
+        public final boolean retryable;
+
+        private Result(int sessionId, String error, String warning, boolean retryable) {
+            this.sessionId = sessionId;
+            this.error = error;
+            this.warning = warning;
+            this.retryable = retryable;
+        }
+
+        public static Result committed(int sessionId) {
+            return new Result(sessionId, null, null, false);
+        }
+
+        public static Result committed(int sessionId, String warning) {
+            return new Result(sessionId, null, warning, false);
+        }
+
+        public static Result failed(String error) {
+            return new Result(-1, error, null, false);
+        }
+
+        /**
+         * Failed, with retryable set when e comes from a dead binder.
+         */
+        public static Result failed(String error, Exception e) {
+            return new Result(-1, error, null, DpmHelper.isBinderDeath(e));
+        }
+
+        /**
+         * Failed for a reason that may pass on a retry.
+         */
+        public static Result failedTransient(String error) {
+            return new Result(-1, error, null, true);
+        }
+
+        /**
+         * Nothing to commit: the installed package already matches.
+         */
+        public static Result unchanged(String warning) {
+            return new Result(-1, null, warning, false);
+        }
+
+        public boolean isCommitted() {
+            return error == null;
+        }
+    }
+
+    public InstallEngine(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Install the plan using the best path for the current privilege mode.
+     */
+    public Result install(PackageFormatDetector.InstallPlan plan) {
+        return install(plan, null);
+    }
+
+    /**
+     * Install the plan, crediting every byte written into the session to progress.
+     */
+    public Result install(PackageFormatDetector.InstallPlan plan, InstallProgress progress) {
+        Result result = run(plan, progress);
+        if (result.sessionId >= 0) {
+            InstallHistory.awaitResult(context, result.sessionId, plan.trace);
+        } else {
+            InstallHistory.finish(context, plan.trace,
+                    result.error != null ? InstallHistory.STATUS_FAILED : InstallHistory.STATUS_UNCHANGED);
+        }
+        return result;
+    }
+
+    private Result run(PackageFormatDetector.InstallPlan plan, InstallProgress progress) {
+        // Seekable plans are normally selected and validated ahead of time by the queue
+        long start = InstallTrace.now();
+        SplitSelector.apply(context, plan);
+        String invalid = ApkValidator.validate(context, plan);
+        if (invalid != null) {
+            return Result.failed("Validation failed: " + invalid);
+        }
+        ApkSignatureVerifier.verifyAsync(context, plan);
+        String noSpace = checkFreeSpace(plan);
+        if (noSpace != null) {
+            return Result.failed(noSpace);
+        }
+
+        // Same version already installed: only write the splits that differ
+        UpdatePlanner.Update update = plan.isBundle() ? UpdatePlanner.plan(context, plan) : null;
+        plan.trace.record(InstallTrace.VALIDATE, start, 0);
+        String packageName = getPackageName(plan);
+        if (packageName != null) {
+            plan.trace.setPackageName(packageName);
+        }
+        if (update != null && update.isEmpty()) {
+            Logger.log(context, TAG, update.packageName + " is already installed with these APKs");
+            return Result.unchanged(installObbs(plan, progress));
+        }
+
+        DpmHelper.Mode mode = DpmHelper.getActiveMode(context);
+        plan.trace.setMode(mode.name());
+        if (mode == DpmHelper.Mode.DHIZUKU) {
+            // Use full Dhizuku binder wrapping for silent install
+            return plan.isBundle() ? installXapkDhizukuBinder(plan, update, progress) : installSingleApkDhizukuBinder(plan, progress);
+        }
+        // Use native install (shows UI if not Device Owner)
+        return plan.isBundle() ? installXapk(plan, update, mode, progress) : installSingleApk(plan, mode, progress);
+    }
+
+    // ======== Dhizuku Binder Installation ========
+
+    /**
+     * All PackageInstaller operations (create session, write, commit) go through Dhizuku's UID.
+     */
+    private Result installSingleApkDhizukuBinder(final PackageFormatDetector.InstallPlan plan,
+                                                 final InstallProgress progress) {
+        try {
+            final long[] written = {InstallTrace.now()};
+            DpmHelper.DhizukuInstallResult result = DpmHelper.installThroughDhizuku(
+                    context, DpmHelper.createSessionParams(context),
+                    InstallPrewarm.takeSession(DpmHelper.Mode.DHIZUKU),
+                    InstallResultReceiver.createIntent(context, plan.getJobId()), new DpmHelper.SessionWriter() {
+                        @Override
+                        public void writeTo(PackageInstaller.Session session) throws Exception {
+                            plan.trace.record(InstallTrace.SESSION, written[0], 0);
+                            writeSingleApk(session, "base.apk", plan, progress);
+                            written[0] = InstallTrace.now();
+                        }
+                    });
+            if (!result.success) {
+                return failed("Dhizuku APK install failed: " + result.error, result);
+            }
+            recordCommit(plan, written[0]);
+            return Result.committed(result.sessionId);
+        } catch (Exception e) {
+            return Result.failed("Dhizuku APK install failed: " + e.getMessage(), e);
+        }
+    }
+
+    private Result installXapkDhizukuBinder(final PackageFormatDetector.InstallPlan plan,
+                                            final UpdatePlanner.Update update, final InstallProgress progress) {
+        try {
+            final long[] written = {InstallTrace.now()};
+            DpmHelper.DhizukuInstallResult result = DpmHelper.installThroughDhizuku(
+                    context, createSessionParams(update),
+                    update == null ? InstallPrewarm.takeSession(DpmHelper.Mode.DHIZUKU) : -1,
+                    InstallResultReceiver.createIntent(context, plan.getJobId()),
+                    new DpmHelper.SessionWriter() {
+                        @Override
+                        public void writeTo(PackageInstaller.Session session) throws Exception {
+                            plan.trace.record(InstallTrace.SESSION, written[0], 0);
+                            writeBundle(session, plan, update, progress);
+                            written[0] = InstallTrace.now();
+                        }
+                    });
+            if (!result.success) {
+                return failed("Dhizuku XAPK install failed: " + result.error, result);
+            }
+            recordCommit(plan, written[0]);
+            return Result.committed(result.sessionId, installObbs(plan, progress));
+        } catch (Exception e) {
+            return Result.failed("Dhizuku XAPK install failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static Result failed(String error, DpmHelper.DhizukuInstallResult result) {
+        return result.binderDied ? Result.failedTransient(error) : Result.failed(error);
+    }
+
+    // ======== Native Installation (for non-Dhizuku mode) ========
+
+    private Result installSingleApk(PackageFormatDetector.InstallPlan plan, DpmHelper.Mode mode,
+                                    InstallProgress progress) {
+        PackageInstaller.Session session = null;
+        try {
+            long start = InstallTrace.now();
+            PackageInstaller installer = context.getPackageManager().getPackageInstaller();
+            int sessionId = InstallPrewarm.takeSession(mode);
+            if (sessionId < 0) {
+                sessionId = installer.createSession(DpmHelper.createSessionParams(context));
+            }
+            session = installer.openSession(sessionId);
+            plan.trace.record(InstallTrace.SESSION, start, 0);
+
+            writeSingleApk(session, "package", plan, progress);
+
+            commitSession(session, sessionId, plan);
+            return Result.committed(sessionId);
+
+        } catch (Exception e) {
+            if (session != null) {
+                try { session.abandon(); } catch (Exception ignored) {}
+            }
+            return Result.failed("Single APK install failed: " + e.getMessage(), e);
+        }
+    }
+
+    private Result installXapk(PackageFormatDetector.InstallPlan plan, UpdatePlanner.Update update,
+                               DpmHelper.Mode mode, InstallProgress progress) {
+        PackageInstaller.Session session = null;
+        try {
+            long start = InstallTrace.now();
+            PackageInstaller installer = context.getPackageManager().getPackageInstaller();
+            // A pre-created session is full-install, so incremental updates make their own
+            int sessionId = update == null ? InstallPrewarm.takeSession(mode) : -1;
+            if (sessionId < 0) {
+                sessionId = installer.createSession(createSessionParams(update));
+            }
+            session = installer.openSession(sessionId);
+            plan.trace.record(InstallTrace.SESSION, start, 0);
+
+            writeBundle(session, plan, update, progress);
+
+            commitSession(session, sessionId, plan);
+            session = null;
+            return Result.committed(sessionId, installObbs(plan, progress));
+
+        } catch (Exception e) {
+            if (session != null) {
+                try { session.abandon(); } catch (Exception ignored) {}
+            }
+            return Result.failed("XAPK install failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write a single-APK plan into the session under the given name.
+     */
+    private void writeSingleApk(PackageInstaller.Session session, String name,
+                                PackageFormatDetector.InstallPlan plan, InstallProgress progress) throws IOException {
+        byte[] buffer = new byte[FileTransfer.BUFFER_SIZE];
+        long start = InstallTrace.now();
+        long written;
+        SeekableBundleReader seekable = plan.getSeekableReader();
+        if (seekable != null) {
+            // Regular file: copy the whole byte range without stream layers
+            long size = seekable.getSize();
+            if (progress != null) progress.setTotalBytes(size);
+            try (OutputStream out = session.openWrite(name, 0, size)) {
+                written = FileTransfer.copyRange(seekable.getChannel(), 0, size, out, buffer, progress);
+                fsync(session, out, plan.trace);
+            }
+            plan.trace.record(InstallTrace.WRITE, start, written);
+            ApkSignatureVerifier.await(plan);
+        } else {
+            // Stream: check the manifest while the bytes go by
+            ApkValidator.StreamCheck check = new ApkValidator(context).newStreamCheck();
+            try (OutputStream out = session.openWrite(name, 0, -1)) {
+                written = FileTransfer.copy(check.wrap(plan.stream), out, buffer, progress);
+                check.finish();
+                fsync(session, out, plan.trace);
+            }
+            plan.trace.record(InstallTrace.WRITE, start, written);
+            if (check.getPackageName() != null) {
+                plan.trace.setPackageName(check.getPackageName());
+            }
+        }
+        if (progress != null) progress.finish();
+    }
+
+    private PackageInstaller.SessionParams createSessionParams(UpdatePlanner.Update update) {
+        return update != null
+                ? DpmHelper.createInheritSessionParams(context, update.packageName)
+                : DpmHelper.createSessionParams(context);
+    }
+
+    /**
+     * Write the APKs of a bundle plan into the session, or for an incremental
+     * update only the changed ones plus removal markers for obsolete splits.
+     */
+    private void writeBundle(PackageInstaller.Session session, PackageFormatDetector.InstallPlan plan,
+                             UpdatePlanner.Update update, InstallProgress progress) throws Exception {
+        long start = InstallTrace.now();
+        SplitWriter writer = new SplitWriter(session, progress);
+        writer.setTrace(plan.trace);
+        writer.setExtraBytes(ObbInstaller.getTotalSize(plan.obbEntries));
+        ApkValidator.StreamCheck check = null;
+        if (plan.getSeekableReader() == null) {
+            check = new ApkValidator(context).newStreamCheck();
+            writer.setStreamCheck(check);
+            writer.setSelector(new SplitSelector(context));
+            writer.setObbInstaller(new ObbInstaller(context, progress));
+        }
+        if (update != null) {
+            writer.writeApks(plan.getSeekableReader(), update.changed);
+            for (String splitName : update.removed) {
+                session.removeSplit(splitName);
+            }
+        } else if (writer.writeApks(plan) == 0) {
+            throw new Exception("No .apk files found inside the XAPK/ZIP.");
+        }
+        if (check != null) {
+            check.finish();
+            if (check.getPackageName() != null) {
+                plan.trace.setPackageName(check.getPackageName());
+            }
+        }
+        plan.trace.record(InstallTrace.WRITE, start, writer.getBytesWritten());
+        ApkSignatureVerifier.await(plan);
+        // With OBBs still to copy, progress finishes in installObbs
+        if (progress != null && plan.obbEntries.isEmpty()) progress.finish();
+    }
+
+    // ======== OBB files and free space ========
+
+    /**
+     * Copy the OBB entries of a committed seekable bundle. Returns an error
+     * message, or null when there was nothing to copy or it all worked.
+     */
+    private String installObbs(PackageFormatDetector.InstallPlan plan, InstallProgress progress) {
+        if (plan.obbEntries.isEmpty() || plan.getSeekableReader() == null) {
+            return null;
+        }
+        try {
+            String packageName = getPackageName(plan);
+            if (packageName == null) {
+                return "OBB files not copied: package name unknown";
+            }
+            long start = InstallTrace.now();
+            int written = new ObbInstaller(context, progress)
+                    .extract(plan.getSeekableReader(), plan.obbEntries, packageName);
+            plan.trace.record(InstallTrace.OBB, start, ObbInstaller.getTotalSize(plan.obbEntries));
+            Logger.log(context, TAG, "Copied " + written + " OBB files for " + packageName);
+            return null;
+        } catch (IOException e) {
+            Logger.log(context, TAG, "OBB copy failed: " + e.getMessage());
+            return "Installed, but OBB files could not be copied: " + e.getMessage();
+        } finally {
+            if (progress != null) progress.finish();
+        }
+    }
+
+    private static String getPackageName(PackageFormatDetector.InstallPlan plan) {
+        java.util.Map<String, ApkManifest> manifests = plan.getManifests();
+        if (manifests == null || manifests.isEmpty()) {
+            return null;
+        }
+        return manifests.values().iterator().next().packageName;
+    }
+
+    /**
+     * Check /data can take the APKs and shared storage the OBBs before anything
+     * is written. Sizes unknown up front (streams) are checked as they arrive.
+     * Returns an error message or null.
+     */
+    private String checkFreeSpace(PackageFormatDetector.InstallPlan plan) {
+        long apkBytes = plan.getSeekableReader() == null ? -1
+                : plan.isBundle() ? SplitWriter.getTotalSize(plan.getSelectedApkEntries())
+                : plan.getSeekableReader().getSize();
+        if (apkBytes > 0) {
+            long free = new StatFs(Environment.getDataDirectory().getPath()).getAvailableBytes();
+            if (free < apkBytes + DATA_MARGIN_BYTES) {
+                return "Not enough space: need " + ((apkBytes + DATA_MARGIN_BYTES) / (1024 * 1024))
+                        + " MB, " + (free / (1024 * 1024)) + " MB free";
+            }
+        }
+        if (!plan.obbEntries.isEmpty()) {
+            try {
+                new ObbInstaller(context, null).checkSpace(ObbInstaller.getTotalSize(plan.obbEntries),
+                        plan.obbEntries, getPackageName(plan));
+            } catch (IOException e) {
+                return e.getMessage();
+            }
+        }
+        return null;
+    }
+
+    private void commitSession(PackageInstaller.Session session, int sessionId,
+                               PackageFormatDetector.InstallPlan plan) throws Exception {
+        long start = InstallTrace.now();
+        Intent intent = InstallResultReceiver.createIntent(context, plan.getJobId());
+        // Use DpmHelper to commit - it will use Dhizuku binder wrapper if in Dhizuku mode
+        DpmHelper.commitSession(context, session, sessionId, intent);
+        recordCommit(plan, start);
+        Logger.log(context, TAG, "Committed session " + sessionId);
+    }
+
+    private static void recordCommit(PackageFormatDetector.InstallPlan plan, long start) {
+        plan.trace.record(InstallTrace.COMMIT, start, 0);
+        plan.trace.markCommitted();
+    }
+
+    private static void fsync(PackageInstaller.Session session, OutputStream out, InstallTrace trace)
+            throws IOException {
+        long start = InstallTrace.now();
+        session.fsync(out);
+        trace.record(InstallTrace.FSYNC, start, 0);
+    }
+}
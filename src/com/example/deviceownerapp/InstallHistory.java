@@ -0,0 +1,407 @@
+package com.example.deviceownerapp;
+
+import android.content.Context;
+import android.content.pm.PackageInstaller;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * On-device history of install timings.
+ *
+ * Every install ends up here as one line of a small text file in the app's files
+ * dir, holding its {@link InstallTrace} phases. A committed install is held in
+ * memory by session ID until {@link InstallResultReceiver} reports the outcome,
+ * which closes its result phase. The newest {@link #MAX_RECORDS} installs are kept.
+ */
+public class InstallHistory {
+
+    private static final String TAG = "InstallHistory";
+    private static final String FILE_NAME = "install_history.tsv";
+    private static final String EXPORT_NAME = "install_history.csv";
+    private static final int MAX_RECORDS = 500;
+    // A result that hasn't arrived by then never will (e.g. the app was restarted)
+    private static final long PENDING_TIMEOUT_MS = 30 * 60 * 1000;
+
+    public static final String STATUS_OK = "ok";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_UNCHANGED = "unchanged";
+    public static final String STATUS_NO_RESULT = "no result";
+
+    /**
+     * One stored install.
+     */
+    public static class Record {
+        public long time;
+        public String format = "";
+        public String mode = "";
+        public String packageName = "";
+        public String status = "";
+        public Map<String, InstallTrace.Span> spans = new LinkedHashMap<>();
+        // -1 for records stored before the wall time was kept
+        public long totalMillis = -1;
+
+        /**
+         * Wall time of the install, from opening the source to the later of the
+         * result and the engine finishing. Older records only have their phases,
+         * which are summed (fsync left out, it is part of write).
+         */
+        public long getTotalMillis() {
+            if (totalMillis >= 0) {
+                return totalMillis;
+            }
+            long total = 0;
+            for (Map.Entry<String, InstallTrace.Span> entry : spans.entrySet()) {
+                if (!InstallTrace.FSYNC.equals(entry.getKey())) {
+                    total += entry.getValue().millis;
+                }
+            }
+            return total;
+        }
+    }
+
+    // Guarded by pending: committed traces, and results that beat their trace here
+    private static final Map<Integer, InstallTrace> pending = new HashMap<>();
+    private static final Map<Integer, long[]> earlyResults = new HashMap<>();
+
+    // Lines in the history file, -1 until first counted. Guarded by InstallHistory.class
+    private static int storedLines = -1;
+
+    private InstallHistory() {
+    }
+
+    // ======== Recording ========
+
+    /**
+     * The trace's session was committed ({@link InstallTrace#markCommitted}); the
+     * trace is stored when its result arrives. Called once the engine is done
+     * with the install, which may be after the result (e.g. OBB copies).
+     */
+    public static void awaitResult(Context context, int sessionId, InstallTrace trace) {
+        trace.markEnded(InstallTrace.now());
+        List<InstallTrace> expired = new ArrayList<>();
+        long[] early;
+        synchronized (pending) {
+            Iterator<InstallTrace> it = pending.values().iterator();
+            while (it.hasNext()) {
+                InstallTrace old = it.next();
+                if (InstallTrace.now() - old.getCommittedAt() > PENDING_TIMEOUT_MS) {
+                    expired.add(old);
+                    it.remove();
+                }
+            }
+            Iterator<long[]> results = earlyResults.values().iterator();
+            while (results.hasNext()) {
+                if (InstallTrace.now() - results.next()[1] > PENDING_TIMEOUT_MS) {
+                    results.remove();
+                }
+            }
+            early = earlyResults.remove(sessionId);
+            if (early == null) {
+                pending.put(sessionId, trace);
+            }
+        }
+        for (InstallTrace old : expired) {
+            finish(context, old, STATUS_NO_RESULT);
+        }
+        if (early != null) {
+            finishResult(context, trace, (int) early[0], early[1]);
+        }
+    }
+
+    /**
+     * Result broadcast for a session. Waits on through a user confirmation.
+     */
+    public static void onResult(Context context, int sessionId, int status) {
+        if (status == PackageInstaller.STATUS_PENDING_USER_ACTION) {
+            return;
+        }
+        InstallTrace trace;
+        synchronized (pending) {
+            trace = pending.remove(sessionId);
+            if (trace == null) {
+                earlyResults.put(sessionId, new long[]{status, InstallTrace.now()});
+                return;
+            }
+        }
+        finishResult(context, trace, status, InstallTrace.now());
+    }
+
+    private static void finishResult(Context context, InstallTrace trace, int status, long at) {
+        // The phase ends when the result arrived, not now
+        trace.record(InstallTrace.RESULT, trace.getCommittedAt() + (InstallTrace.now() - at), 0);
+        trace.markEnded(at);
+        finish(context, trace, status == PackageInstaller.STATUS_SUCCESS ? STATUS_OK : "status " + status);
+    }
+
+    /**
+     * Store a finished trace.
+     */
+    public static void finish(Context context, InstallTrace trace, String status) {
+        Record record = new Record();
+        record.time = trace.startedAt;
+        record.format = trace.getFormat();
+        record.mode = trace.getMode();
+        record.packageName = trace.getPackageName();
+        record.status = status;
+        record.spans = trace.getSpans();
+        record.totalMillis = trace.getElapsedMillis();
+        try {
+            append(context.getApplicationContext(), record);
+        } catch (IOException e) {
+            Logger.log(context, TAG, "Could not store install timing: " + e.getMessage());
+        }
+    }
+
+    // ======== Store ========
+
+    private static synchronized void append(Context context, Record record) throws IOException {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (storedLines < 0) {
+            storedLines = countLines(file);
+        }
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8")) {
+            out.write(format(record));
+            out.write("\n");
+        }
+        storedLines++;
+        // Trim in batches so most installs only append
+        if (storedLines <= MAX_RECORDS + MAX_RECORDS / 10) {
+            return;
+        }
+        List<Record> records = load(context);
+        if (records.size() > MAX_RECORDS) {
+            records = records.subList(records.size() - MAX_RECORDS, records.size());
+        }
+        File tmp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")) {
+            for (Record r : records) {
+                out.write(format(r));
+                out.write("\n");
+            }
+        }
+        if (tmp.renameTo(file)) {
+            storedLines = records.size();
+        } else {
+            tmp.delete();
+            storedLines = -1;
+        }
+    }
+
+    private static int countLines(File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        int lines = 0;
+        byte[] buffer = new byte[8192];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == '\n') lines++;
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * All stored installs, oldest first.
+     */
+    public static synchronized List<Record> load(Context context) {
+        List<Record> records = new ArrayList<>();
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (!file.exists()) {
+            return records;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Record record = parse(line);
+                if (record != null) {
+                    records.add(record);
+                }
+            }
+        } catch (IOException e) {
+            Logger.log(context, TAG, "Could not read install history: " + e.getMessage());
+        }
+        return records;
+    }
+
+    public static synchronized void clear(Context context) {
+        new File(context.getFilesDir(), FILE_NAME).delete();
+        storedLines = 0;
+    }
+
+    // time \t format \t mode \t package \t status \t phase=millis/bytes,... \t total
+    private static String format(Record record) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(record.time).append('\t').append(record.format).append('\t').append(record.mode)
+                .append('\t').append(record.packageName).append('\t').append(record.status).append('\t');
+        boolean first = true;
+        for (Map.Entry<String, InstallTrace.Span> entry : record.spans.entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append(entry.getKey()).append('=').append(entry.getValue().millis)
+                    .append('/').append(entry.getValue().bytes);
+        }
+        sb.append('\t').append(record.totalMillis);
+        return sb.toString();
+    }
+
+    private static Record parse(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length < 6) {
+            return null;
+        }
+        try {
+            Record record = new Record();
+            record.time = Long.parseLong(fields[0]);
+            record.format = fields[1];
+            record.mode = fields[2];
+            record.packageName = fields[3];
+            record.status = fields[4];
+            if (!fields[5].isEmpty()) {
+                for (String part : fields[5].split(",")) {
+                    int eq = part.indexOf('=');
+                    int slash = part.indexOf('/', eq);
+                    if (eq <= 0 || slash < 0) continue;
+                    InstallTrace.Span span = new InstallTrace.Span();
+                    span.millis = Long.parseLong(part.substring(eq + 1, slash));
+                    span.bytes = Long.parseLong(part.substring(slash + 1));
+                    record.spans.put(part.substring(0, eq), span);
+                }
+            }
+            if (fields.length > 6 && !fields[6].isEmpty()) {
+                record.totalMillis = Long.parseLong(fields[6]);
+            }
+            return record;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // ======== Reports ========
+
+    /**
+     * Nearest-rank percentile of an ascending list, 0 if it is empty.
+     */
+    public static long percentile(List<Long> sorted, int p) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, rank - 1)));
+    }
+
+    /**
+     * Plain-text p50/p95 per phase, per format and per mode, then the latest installs.
+     */
+    public static String summarize(List<Record> records) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(records.size()).append(" installs recorded\n\n");
+        if (records.isEmpty()) {
+            return sb.toString();
+        }
+
+        sb.append(String.format(Locale.US, "%-9s %4s %8s %8s %8s\n", "Phase", "n", "p50 ms", "p95 ms", "p50 MB/s"));
+        for (String phase : InstallTrace.PHASES) {
+            List<Long> millis = new ArrayList<>();
+            List<Long> rates = new ArrayList<>();
+            for (Record record : records) {
+                InstallTrace.Span span = record.spans.get(phase);
+                if (span == null) continue;
+                millis.add(span.millis);
+                if (span.bytes > 0 && span.millis > 0) {
+                    // KB per second, so the median keeps one decimal of MB/s
+                    rates.add(span.bytes * 1000 / span.millis / 1024);
+                }
+            }
+            if (millis.isEmpty()) continue;
+            Collections.sort(millis);
+            Collections.sort(rates);
+            sb.append(String.format(Locale.US, "%-9s %4d %8d %8d %8s\n", phase, millis.size(),
+                    percentile(millis, 50), percentile(millis, 95),
+                    rates.isEmpty() ? "-" : String.format(Locale.US, "%.1f", percentile(rates, 50) / 1024.0)));
+        }
+
+        appendTotals(sb, "Format", records, true);
+        appendTotals(sb, "Mode", records, false);
+
+        sb.append("\nLatest\n");
+        SimpleDateFormat date = new SimpleDateFormat("MM-dd HH:mm", Locale.US);
+        for (int i = records.size() - 1; i >= 0 && i >= records.size() - 20; i--) {
+            Record record = records.get(i);
+            sb.append(date.format(new Date(record.time))).append(' ')
+                    .append(record.packageName.isEmpty() ? "?" : record.packageName).append(' ')
+                    .append(record.format).append(' ').append(record.status).append(' ')
+                    .append(String.format(Locale.US, "%.1f s", record.getTotalMillis() / 1000.0)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void appendTotals(StringBuilder sb, String title, List<Record> records, boolean byFormat) {
+        Map<String, List<Long>> totals = new LinkedHashMap<>();
+        for (Record record : records) {
+            String key = byFormat ? record.format : record.mode;
+            List<Long> list = totals.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                totals.put(key, list);
+            }
+            list.add(record.getTotalMillis());
+        }
+        sb.append(String.format(Locale.US, "\n%-9s %4s %8s %8s\n", title, "n", "p50 ms", "p95 ms"));
+        for (Map.Entry<String, List<Long>> entry : totals.entrySet()) {
+            List<Long> list = entry.getValue();
+            Collections.sort(list);
+            sb.append(String.format(Locale.US, "%-9s %4d %8d %8d\n", entry.getKey(), list.size(),
+                    percentile(list, 50), percentile(list, 95)));
+        }
+    }
+
+    /**
+     * Write every record as CSV into the external cache dir, where
+     * {@link SimpleFileProvider} can share it.
+     */
+    public static File export(Context context) throws IOException {
+        File dir = context.getExternalCacheDir();
+        if (dir == null) {
+            throw new IOException("External storage not available");
+        }
+        File file = new File(dir, EXPORT_NAME);
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            out.write("time,format,mode,package,status,total_ms");
+            for (String phase : InstallTrace.PHASES) {
+                out.write("," + phase + "_ms," + phase + "_bytes");
+            }
+            out.write("\n");
+            for (Record record : load(context)) {
+                out.write(record.time + "," + record.format + "," + record.mode + "," + record.packageName
+                        + "," + record.status + "," + record.getTotalMillis());
+                for (String phase : InstallTrace.PHASES) {
+                    InstallTrace.Span span = record.spans.get(phase);
+                    out.write(span == null ? ",," : "," + span.millis + "," + span.bytes);
+                }
+                out.write("\n");
+            }
+        }
+        return file;
+    }
+}
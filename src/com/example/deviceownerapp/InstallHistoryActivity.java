@@ -0,0 +1,102 @@
+package com.example.deviceownerapp;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Shows p50/p95 install time per phase from {@link InstallHistory}, and exports
+ * the raw records as CSV.
+ */
+public class InstallHistoryActivity extends Activity {
+
+    private static final String TAG = "InstallHistoryActivity";
+
+    private TextView historyText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_history);
+        historyText = findViewById(R.id.history_text);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        new LoadTask().execute();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.history_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+        if (id == R.id.action_export_history) {
+            new ExportTask().execute();
+            return true;
+        } else if (id == R.id.action_clear_history) {
+            InstallHistory.clear(this);
+            new LoadTask().execute();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private class LoadTask extends AsyncTask<Void, Void, String> {
+        @Override
+        protected String doInBackground(Void... params) {
+            return InstallHistory.summarize(InstallHistory.load(InstallHistoryActivity.this));
+        }
+
+        @Override
+        protected void onPostExecute(String summary) {
+            historyText.setText(summary);
+        }
+    }
+
+    private class ExportTask extends AsyncTask<Void, Void, File> {
+        @Override
+        protected File doInBackground(Void... params) {
+            try {
+                return InstallHistory.export(InstallHistoryActivity.this);
+            } catch (IOException e) {
+                Logger.log(InstallHistoryActivity.this, TAG, "Export failed: " + e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(File file) {
+            if (file == null) {
+                Toast.makeText(InstallHistoryActivity.this, "Export failed. Check log.", Toast.LENGTH_LONG).show();
+                return;
+            }
+            // Served from the external cache dir by SimpleFileProvider
+            Uri uri = Uri.parse("content://" + getPackageName() + ".fileprovider/" + file.getName());
+            Intent intent = new Intent(Intent.ACTION_SEND);
+            intent.setType("text/csv");
+            intent.putExtra(Intent.EXTRA_STREAM, uri);
+            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            try {
+                startActivity(Intent.createChooser(intent, "Export install history"));
+            } catch (Exception e) {
+                Toast.makeText(InstallHistoryActivity.this, "Saved to " + file.getAbsolutePath(),
+                        Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+}
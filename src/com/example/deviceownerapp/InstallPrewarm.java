@@ -0,0 +1,160 @@
+package com.example.deviceownerapp;
+
+import android.content.Context;
+import android.content.pm.PackageInstaller;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Gets the installer ready while the user is still in the file picker.
+ *
+ * {@link #start} resolves the privilege mode, builds the Dhizuku binder wrappers
+ * and reflection lookups, loads the install classes and creates one full-install
+ * session ahead of time. The first install in the same mode takes that session
+ * ({@link #takeSession}) instead of creating its own. A session nobody takes is
+ * abandoned when the pick is cancelled or after {@link #SESSION_TTL_MS}, so
+ * pre-created sessions never pile up in the package installer.
+ */
+public class InstallPrewarm {
+
+    private static final String TAG = "InstallPrewarm";
+
+    // How long a pre-created session waits for an install
+    private static final long SESSION_TTL_MS = 5 * 60 * 1000;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by InstallPrewarm.class
+    private static DpmHelper.Mode sessionMode = null;
+    private static int sessionId = -1;
+    private static long sessionCreatedAt = 0;
+
+    private static Context appContext = null;
+    private static final Runnable expire = new Runnable() {
+        @Override
+        public void run() {
+            abandonAsync(appContext);
+        }
+    };
+
+    private InstallPrewarm() {
+    }
+
+    /**
+     * Warm up in the background. Safe to call repeatedly; at most one session is held.
+     */
+    public static void start(Context context) {
+        final Context app = context.getApplicationContext();
+        appContext = app;
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                DpmHelper.Mode mode = DpmHelper.getActiveMode(app);
+                if (mode == DpmHelper.Mode.DHIZUKU && !DpmHelper.prewarmDhizuku(app)) {
+                    return;
+                }
+                // Touch the classes the install path needs so they're loaded and verified
+                PackageFormatDetector.Format.values();
+                new StagingCache(app);
+
+                synchronized (InstallPrewarm.class) {
+                    if (sessionId >= 0) {
+                        if (sessionMode == mode) {
+                            scheduleExpiry();
+                            return;
+                        }
+                        abandon(app);
+                    }
+                }
+
+                int id;
+                try {
+                    id = createSession(app, mode);
+                } catch (Exception e) {
+                    Logger.log(app, TAG, "Could not pre-create session: " + e.getMessage());
+                    return;
+                }
+                synchronized (InstallPrewarm.class) {
+                    sessionMode = mode;
+                    sessionId = id;
+                    sessionCreatedAt = SystemClock.elapsedRealtime();
+                }
+                scheduleExpiry();
+                Logger.log(app, TAG, "Ready in " + (SystemClock.elapsedRealtime() - start)
+                        + " ms (" + mode + ", session " + id + ")");
+            }
+        });
+    }
+
+    /**
+     * The pre-created full-install session if there is one for this mode, else -1.
+     * The caller owns the session from then on.
+     */
+    public static synchronized int takeSession(DpmHelper.Mode mode) {
+        if (sessionId < 0 || sessionMode != mode
+                || SystemClock.elapsedRealtime() - sessionCreatedAt > SESSION_TTL_MS) {
+            return -1;
+        }
+        int id = sessionId;
+        sessionId = -1;
+        sessionMode = null;
+        mainHandler.removeCallbacks(expire);
+        return id;
+    }
+
+    /**
+     * Nothing was picked: drop the pre-created session.
+     */
+    public static void cancel(Context context) {
+        mainHandler.removeCallbacks(expire);
+        abandonAsync(context.getApplicationContext());
+    }
+
+    private static void scheduleExpiry() {
+        mainHandler.removeCallbacks(expire);
+        mainHandler.postDelayed(expire, SESSION_TTL_MS);
+    }
+
+    private static void abandonAsync(final Context app) {
+        if (app == null) return;
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (InstallPrewarm.class) {
+                    abandon(app);
+                }
+            }
+        });
+    }
+
+    private static void abandon(Context app) {
+        if (sessionId < 0) {
+            return;
+        }
+        if (sessionMode == DpmHelper.Mode.DHIZUKU) {
+            DpmHelper.abandonDhizukuSession(app, sessionId);
+        } else {
+            try {
+                app.getPackageManager().getPackageInstaller().abandonSession(sessionId);
+            } catch (Exception e) {
+                Logger.log(app, TAG, "Could not abandon session " + sessionId + ": " + e.getMessage());
+            }
+        }
+        sessionId = -1;
+        sessionMode = null;
+    }
+
+    private static int createSession(Context app, DpmHelper.Mode mode) throws Exception {
+        PackageInstaller.SessionParams params = DpmHelper.createSessionParams(app);
+        if (mode == DpmHelper.Mode.DHIZUKU) {
+            return DpmHelper.createDhizukuSession(app, params);
+        }
+        return app.getPackageManager().getPackageInstaller().createSession(params);
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.deviceownerapp;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte counter for one install, fed from every copy loop.
+ *
+ * Writers call {@link #add} once per buffer from any thread; that is a single
+ * atomic add. At most once per {@link #PUBLISH_INTERVAL_MS} one of the writers
+ * also computes the smoothed throughput and posts a snapshot to the registered
+ * listeners on the main thread, so a 1 GB copy makes a few hundred UI updates
+ * rather than one per 64K buffer.
+ *
+ * It is also the install's cancellation token. Since every copy loop already
+ * reports here once per buffer, {@link #add} throws {@link InstallCancelledException}
+ * after {@link #cancel}. Cancelling also closes the resources registered with
+ * {@link #onCancel}, so a loop blocked in read() on a slow provider or pipe
+ * fails right away instead of at its next buffer.
+ */
+public class InstallProgress {
+
+    private static final long PUBLISH_INTERVAL_MS = 250;
+    // Weight of the newest interval in the throughput average
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final String label;
+    private final int index;
+    private final int count;
+    private final AtomicLong bytesDone = new AtomicLong();
+    private final AtomicLong lastPublish = new AtomicLong();
+    private volatile long totalBytes = -1;
+    private volatile boolean finished = false;
+    private volatile boolean cancelled = false;
+    private final List<Closeable> cancelActions = new CopyOnWriteArrayList<>();
+
+    // Only touched by the thread that wins the publish slot
+    private long lastBytes = 0;
+    private volatile double bytesPerSecond = 0;
+
+    public interface Listener {
+        /**
+         * Called on the main thread with the latest figures.
+         */
+        void onProgress(InstallProgress progress);
+    }
+
+    /**
+     * @param label name shown to the user
+     * @param index position of this install in the queue, from 1
+     * @param count size of the queue
+     */
+    public InstallProgress(String label, int index, int count) {
+        this.label = label;
+        this.index = index;
+        this.count = count;
+        this.lastPublish.set(SystemClock.elapsedRealtime());
+    }
+
+    public static void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Set the number of bytes that will be written, or -1 if unknown.
+     */
+    public void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+        publish();
+    }
+
+    /**
+     * Record bytes written. Safe to call from several writer threads.
+     * Throws once the install has been cancelled.
+     */
+    public void add(long bytes) throws InstallCancelledException {
+        checkCancelled();
+        bytesDone.addAndGet(bytes);
+        long now = SystemClock.elapsedRealtime();
+        long last = lastPublish.get();
+        if (now - last >= PUBLISH_INTERVAL_MS && lastPublish.compareAndSet(last, now)) {
+            long done = bytesDone.get();
+            double instant = (done - lastBytes) * 1000.0 / (now - last);
+            bytesPerSecond = bytesPerSecond == 0 ? instant
+                    : RATE_SMOOTHING * instant + (1 - RATE_SMOOTHING) * bytesPerSecond;
+            lastBytes = done;
+            publish();
+        }
+    }
+
+    /**
+     * All bytes are written; push a final update regardless of the throttle.
+     */
+    public void finish() {
+        finished = true;
+        publish();
+    }
+
+    // ======== Cancellation ========
+
+    /**
+     * Stop the install: every copy loop fails at its next buffer and the
+     * registered resources are closed. Blocking I/O is closed on a helper
+     * thread, so this is safe to call from the main thread.
+     */
+    public void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (Closeable action : cancelActions) {
+                    try {
+                        action.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }, "InstallCancel").start();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void checkCancelled() throws InstallCancelledException {
+        if (cancelled) {
+            throw new InstallCancelledException();
+        }
+    }
+
+    /**
+     * Close this when the install is cancelled; closed at once if it already was.
+     */
+    public void onCancel(Closeable action) {
+        cancelActions.add(action);
+        if (cancelled) {
+            try {
+                action.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Stop closing action on cancel, e.g. once the resource is closed normally.
+     */
+    public void removeOnCancel(Closeable action) {
+        cancelActions.remove(action);
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getBytesDone() {
+        return bytesDone.get();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Estimated milliseconds left, or -1 if the total or the rate isn't known yet.
+     */
+    public long getEtaMillis() {
+        long total = totalBytes;
+        double rate = bytesPerSecond;
+        if (total <= 0 || rate <= 0) {
+            return -1;
+        }
+        return (long) (Math.max(0, total - bytesDone.get()) * 1000 / rate);
+    }
+
+    /**
+     * Done/total in per mille, or -1 if the total isn't known.
+     */
+    public int getPermille() {
+        long total = totalBytes;
+        if (total <= 0) {
+            return -1;
+        }
+        return (int) Math.min(1000, bytesDone.get() * 1000 / total);
+    }
+
+    /**
+     * Human readable summary, e.g. "12.5 / 80.0 MB  3.2 MB/s  0:21 left".
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(formatMb(getBytesDone()));
+        if (totalBytes > 0) {
+            sb.append(" / ").append(formatMb(totalBytes));
+        }
+        sb.append(" MB");
+        if (bytesPerSecond > 0 && !finished) {
+            sb.append("  ").append(formatMb((long) bytesPerSecond)).append(" MB/s");
+            long eta = getEtaMillis();
+            if (eta >= 0) {
+                long seconds = eta / 1000;
+                sb.append("  ").append(seconds / 60).append(':')
+                        .append(String.format("%02d", seconds % 60)).append(" left");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String formatMb(long bytes) {
+        return String.format("%.1f", bytes / (1024.0 * 1024.0));
+    }
+
+    private void publish() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : listeners) {
+                    listener.onProgress(InstallProgress.this);
+                }
+            }
+        });
+    }
+}
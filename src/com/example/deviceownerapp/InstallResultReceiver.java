@@ -8,11 +8,25 @@ import android.os.Bundle;
 
 /**
  * This receiver catches the result from the PackageInstaller.
+ * Commits made by the install queue tag the result with their install job
+ * ({@link #createIntent}) so the service can tell which package it belongs to.
  */
 public class InstallResultReceiver extends BroadcastReceiver {
 
     private static final String TAG = "InstallReceiver";
 
+    public static final String EXTRA_JOB_ID = "com.example.deviceownerapp.extra.JOB_ID";
+    public static final String EXTRA_COMMIT_SESSION_ID = "com.example.deviceownerapp.extra.SESSION_ID";
+
+    /**
+     * Result intent for a commit made on behalf of an install job, or -1 for none.
+     */
+    public static Intent createIntent(Context context, int jobId) {
+        Intent intent = new Intent(context, InstallResultReceiver.class);
+        intent.putExtra(EXTRA_JOB_ID, jobId);
+        return intent;
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
         Bundle extras = intent.getExtras();
@@ -23,6 +37,16 @@ public class InstallResultReceiver extends BroadcastReceiver {
 
         int status = extras.getInt(PackageInstaller.EXTRA_STATUS);
         String message = extras.getString(PackageInstaller.EXTRA_STATUS_MESSAGE);
+        int sessionId = extras.getInt(PackageInstaller.EXTRA_SESSION_ID,
+                extras.getInt(EXTRA_COMMIT_SESSION_ID, -1));
+        int jobId = extras.getInt(EXTRA_JOB_ID, -1);
+        InstallHistory.onResult(context, sessionId, status);
+
+        // Sessions committed by the install queue are summarised by the service
+        if (status != PackageInstaller.STATUS_PENDING_USER_ACTION
+                && InstallService.onSessionResult(sessionId, jobId, status, message)) {
+            return;
+        }
 
         if (status == PackageInstaller.STATUS_SUCCESS) {
             // Show success dialog via ProgressActivity
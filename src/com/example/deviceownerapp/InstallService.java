@@ -0,0 +1,622 @@
+package com.example.deviceownerapp;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.ClipData;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInstaller;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Foreground service that installs a queue of packages.
+ *
+ * Each queued URI goes through two single-thread stages: a prepare stage that
+ * opens, classifies and validates the file, and an install stage that writes the session and
+ * commits it. The prepare stage runs ahead of the install stage, so item N+1 is
+ * already open and checked while item N is being written and committed, and the
+ * install stage moves on to the next item as soon as commit() returns instead of
+ * waiting for the package manager. Committed sessions are tracked until
+ * {@link InstallResultReceiver} reports them, or fail after RESULT_TIMEOUT_MS,
+ * then the batch is summarised. Every commit carries its job ID, so results are
+ * matched to the right package.
+ *
+ * Transient failures (a dead binder, or STATUS_FAILURE_STORAGE after the staging
+ * cache has been trimmed) are run through the pipeline again with exponential
+ * backoff, reopening the URI or its staged copy.
+ *
+ * All queue state is only touched on the main thread.
+ */
+public class InstallService extends Service {
+
+    private static final String TAG = "InstallService";
+
+    public static final String ACTION_ENQUEUE = "com.example.deviceownerapp.action.ENQUEUE_INSTALL";
+
+    private static final String CHANNEL_ID = "installs";
+    private static final int NOTIFICATION_ID = 1;
+
+    // Items opened ahead of the one being written; bounds open descriptors
+    private static final int PREPARE_AHEAD = 2;
+
+    // Retries per job, waiting RETRY_BASE_MS, then twice as long each time
+    private static final int MAX_RETRIES = 3;
+    private static final long RETRY_BASE_MS = 2000;
+
+    // A committed session whose result hasn't arrived by then has lost its broadcast;
+    // long enough for a confirmation prompt when we aren't device owner
+    private static final long RESULT_TIMEOUT_MS = 10 * 60 * 1000;
+
+    // Main thread only; unique across service restarts in one process
+    private static int nextJobId = 0;
+
+    private static InstallService instance = null;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Semaphore prepareSlots = new Semaphore(PREPARE_AHEAD);
+    private ExecutorService prepareExecutor;
+    private ExecutorService installExecutor;
+    private InstallEngine engine;
+
+    private final List<Job> jobs = new ArrayList<>();
+    private final Map<Integer, Job> pendingSessions = new HashMap<>();
+    // Results that arrived before the install stage reported the session ID
+    private final Map<Integer, SessionResult> earlyResults = new HashMap<>();
+    private int finishedCount = 0;
+    private int failedCount = 0;
+    private int lastStartId = 0;
+    // Queue size as seen by the install stage, for "N of M" labels
+    private volatile int queuedCount = 0;
+    private int lastNotifiedPermille = -1;
+    private boolean cancelRequested = false;
+
+    private final InstallProgress.Listener progressListener = new InstallProgress.Listener() {
+        @Override
+        public void onProgress(InstallProgress progress) {
+            // The notification only needs whole percent steps
+            int permille = progress.getPermille();
+            if (permille / 10 != lastNotifiedPermille / 10 || progress.isFinished()) {
+                lastNotifiedPermille = permille;
+                updateNotification(progress);
+            }
+        }
+    };
+
+    /**
+     * One queued package.
+     */
+    private static class Job {
+        final int id = nextJobId++;
+        final Uri uri;
+        final String label;
+        int index;
+        int retries = 0;
+        // Evict other staged payloads before the next attempt
+        volatile boolean trimStaging = false;
+        volatile String stagingKey = null;
+        // SHA-256 of the copy the last attempt staged, so a retry reopens only that
+        volatile String stagedSha256 = null;
+        Future<PackageFormatDetector.InstallPlan> plan;
+        int sessionId = -1;
+        boolean finished = false;
+        String error;
+        String warning;
+        // Set on the main thread, read by the pipeline stages
+        volatile boolean cancelled = false;
+        volatile InstallProgress progress = null;
+
+        Job(Uri uri) {
+            this.uri = uri;
+            String name = uri.getLastPathSegment();
+            this.label = name != null ? name : uri.toString();
+        }
+    }
+
+    private static class SessionResult {
+        final int status;
+        final String message;
+
+        SessionResult(int status, String message) {
+            this.status = status;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Queue one or more packages for installation. Read access to the URIs is
+     * handed on to the service so they stay readable after the caller finishes.
+     */
+    public static void enqueue(Context context, List<Uri> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        Intent intent = new Intent(context, InstallService.class);
+        intent.setAction(ACTION_ENQUEUE);
+        ClipData clip = ClipData.newRawUri("packages", uris.get(0));
+        for (int i = 1; i < uris.size(); i++) {
+            clip.addItem(new ClipData.Item(uris.get(i)));
+        }
+        intent.setClipData(clip);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+        if (Build.VERSION.SDK_INT >= 26) {
+            context.startForegroundService(intent);
+        } else {
+            context.startService(intent);
+        }
+    }
+
+    /**
+     * Called by InstallResultReceiver on the main thread with the job ID the
+     * commit was tagged with (-1 if none). Returns true if the session belongs
+     * to the running queue and the result has been handled.
+     */
+    public static boolean onSessionResult(int sessionId, int jobId, int status, String message) {
+        InstallService service = instance;
+        return service != null && service.handleSessionResult(sessionId, jobId, status, message);
+    }
+
+    /**
+     * Cancel everything in the queue that hasn't been committed yet. Call on the
+     * main thread. Returns false if there is nothing to cancel.
+     */
+    public static boolean cancelAll() {
+        InstallService service = instance;
+        return service != null && service.cancelQueue();
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        instance = this;
+        engine = new InstallEngine(this);
+        prepareExecutor = Executors.newSingleThreadExecutor();
+        installExecutor = Executors.newSingleThreadExecutor();
+        InstallProgress.addListener(progressListener);
+
+        // Clear out temp files from installs that never finished, before anything is queued
+        final StagingCache cache = new StagingCache(this);
+        prepareExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                cache.sweep();
+            }
+        });
+
+        if (Build.VERSION.SDK_INT >= 26) {
+            NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            nm.createNotificationChannel(new NotificationChannel(
+                    CHANNEL_ID, "Installs", NotificationManager.IMPORTANCE_LOW));
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        lastStartId = startId;
+        startForeground(NOTIFICATION_ID, buildNotification());
+
+        if (intent != null && ACTION_ENQUEUE.equals(intent.getAction()) && intent.getClipData() != null) {
+            ClipData clip = intent.getClipData();
+            for (int i = 0; i < clip.getItemCount(); i++) {
+                Uri uri = clip.getItemAt(i).getUri();
+                if (uri != null) {
+                    submit(new Job(uri));
+                }
+            }
+            updateNotification();
+        }
+
+        if (jobs.isEmpty()) {
+            stopSelf(startId);
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        instance = null;
+        InstallProgress.removeListener(progressListener);
+        prepareExecutor.shutdownNow();
+        installExecutor.shutdownNow();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    // ======== Pipeline ========
+
+    private void submit(final Job job) {
+        jobs.add(job);
+        job.index = jobs.size();
+        queuedCount = jobs.size();
+        Logger.log(this, TAG, "Queued " + job.label);
+        schedule(job);
+    }
+
+    /**
+     * Run the job through both stages, first time or again after a retry.
+     */
+    private void schedule(final Job job) {
+        // Stage 1: open, classify and validate, at most PREPARE_AHEAD items ahead of stage 2
+        job.plan = prepareExecutor.submit(new Callable<PackageFormatDetector.InstallPlan>() {
+            @Override
+            public PackageFormatDetector.InstallPlan call() throws Exception {
+                prepareSlots.acquire();
+                try {
+                    if (job.cancelled) {
+                        throw new InstallCancelledException();
+                    }
+                    if (job.trimStaging) {
+                        job.trimStaging = false;
+                        // Everything but the payload this retry installs from
+                        new StagingCache(InstallService.this).trim(Long.MAX_VALUE / 2, job.stagingKey);
+                    }
+                    // A retry installs from this job's own staged copy when there is one
+                    PackageFormatDetector.InstallPlan plan = job.retries > 0
+                            ? PackageFormatDetector.detectStaged(InstallService.this, job.stagingKey,
+                                    job.stagedSha256)
+                            : null;
+                    if (plan == null) {
+                        plan = PackageFormatDetector.detect(InstallService.this, job.uri);
+                    }
+                    plan.setJobId(job.id);
+                    job.stagingKey = plan.stagingKey;
+                    // Split selection and manifest checks for seekable sources happen here, off the install stage
+                    long start = InstallTrace.now();
+                    SplitSelector.apply(InstallService.this, plan);
+                    String invalid = ApkValidator.validate(InstallService.this, plan);
+                    plan.trace.record(InstallTrace.VALIDATE, start, 0);
+                    if (invalid != null) {
+                        plan.discardStaging();
+                        plan.close();
+                        throw new java.io.IOException("Validation failed: " + invalid);
+                    }
+                    // Digests run on their own pool, alongside the session write
+                    ApkSignatureVerifier.verifyAsync(InstallService.this, plan);
+                    return plan;
+                } catch (Exception e) {
+                    prepareSlots.release();
+                    throw e;
+                }
+            }
+        });
+
+        // Stage 2: write and commit, in queue order
+        installExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final InstallEngine.Result result = runJob(job);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onJobCommitted(job, result);
+                    }
+                });
+            }
+        });
+    }
+
+    private InstallEngine.Result runJob(Job job) {
+        PackageFormatDetector.InstallPlan plan;
+        try {
+            plan = job.plan.get();
+        } catch (ExecutionException e) {
+            return InstallEngine.Result.failed("Error: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return InstallEngine.Result.failed("Install cancelled");
+        }
+
+        final PackageFormatDetector.InstallPlan openPlan = plan;
+        InstallProgress progress = new InstallProgress(job.label, job.index, queuedCount);
+        // Closing the source unblocks a copy stuck in read(); the staged copy goes with it
+        progress.onCancel(new java.io.Closeable() {
+            @Override
+            public void close() throws java.io.IOException {
+                openPlan.discardStaging();
+                openPlan.close();
+            }
+        });
+        job.progress = progress;
+        InstallEngine.Result result = null;
+        try {
+            if (job.cancelled) {
+                progress.cancel();
+                return InstallEngine.Result.failed("Install cancelled");
+            }
+            Logger.log(this, TAG, "Installing " + job.label + " as " + plan.format);
+            result = engine.install(plan, progress);
+            return result;
+        } finally {
+            // Only a commit or a failure we'll retry is worth draining the rest of
+            // a stream into the cache; anything else would stage a bad payload
+            if (progress.isCancelled() || result == null
+                    || (!result.isCommitted() && !result.retryable)) {
+                plan.discardStaging();
+            }
+            try { plan.close(); } catch (Exception ignored) {}
+            // Known once the close has published the copy
+            job.stagedSha256 = plan.getStagedSha256();
+            prepareSlots.release();
+        }
+    }
+
+    private boolean cancelQueue() {
+        boolean any = false;
+        for (Job job : jobs) {
+            if (!job.finished && job.sessionId < 0 && !job.cancelled) {
+                job.cancelled = true;
+                InstallProgress progress = job.progress;
+                if (progress != null) {
+                    progress.cancel();
+                }
+                any = true;
+            }
+        }
+        if (any) {
+            cancelRequested = true;
+            Logger.log(this, TAG, "Cancelling queued installs");
+        }
+        return any;
+    }
+
+    private void onJobCommitted(Job job, InstallEngine.Result result) {
+        if (!result.isCommitted()) {
+            if (!result.retryable || !retry(job, result.error)) {
+                finishJob(job, result.error);
+            }
+            return;
+        }
+        job.sessionId = result.sessionId;
+        job.warning = result.warning;
+        if (result.sessionId < 0) {
+            // Nothing needed committing
+            finishJob(job, null);
+            return;
+        }
+        SessionResult early = earlyResults.remove(result.sessionId);
+        if (early != null) {
+            onResult(job, early.status, early.message);
+            return;
+        }
+        pendingSessions.put(result.sessionId, job);
+        expireResult(job, result.sessionId);
+        updateNotification();
+    }
+
+    /**
+     * Fail the job if its session's result hasn't arrived within RESULT_TIMEOUT_MS,
+     * so a lost broadcast can't keep the batch (and the service) waiting forever.
+     */
+    private void expireResult(final Job job, final int sessionId) {
+        mainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (instance != InstallService.this || job.finished || pendingSessions.get(sessionId) != job) {
+                    return;
+                }
+                pendingSessions.remove(sessionId);
+                finishJob(job, "No result for session " + sessionId + " after "
+                        + (RESULT_TIMEOUT_MS / 60000) + " minutes");
+            }
+        }, RESULT_TIMEOUT_MS);
+    }
+
+    private boolean handleSessionResult(int sessionId, int jobId, int status, String message) {
+        Job job = pendingSessions.get(sessionId);
+        if (job == null && jobId >= 0) {
+            job = findJob(jobId);
+        }
+        if (job == null || (jobId >= 0 && job.id != jobId)) {
+            // Not from this queue: a direct install, or a batch that already finished
+            return false;
+        }
+        if (job.finished) {
+            return true;
+        }
+        if (job.sessionId != sessionId) {
+            // The install stage hasn't reported this commit yet
+            earlyResults.put(sessionId, new SessionResult(status, message));
+            return true;
+        }
+        pendingSessions.remove(sessionId);
+        onResult(job, status, message);
+        return true;
+    }
+
+    private Job findJob(int jobId) {
+        for (Job job : jobs) {
+            if (job.id == jobId) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private void onResult(Job job, int status, String message) {
+        if (status == PackageInstaller.STATUS_SUCCESS) {
+            finishJob(job, null);
+            return;
+        }
+        String error = "Install Failed: " + status + " (" + message + ")";
+        if (status == PackageInstaller.STATUS_FAILURE_STORAGE) {
+            job.trimStaging = true;
+            if (retry(job, error)) {
+                return;
+            }
+        }
+        // Rejected for good: don't keep the payload for a later install
+        if (job.stagingKey != null) {
+            new StagingCache(this).remove(job.stagingKey);
+        }
+        finishJob(job, error);
+    }
+
+    /**
+     * Run a failed job again after a backoff. Returns false when it is out of
+     * retries or was cancelled.
+     */
+    private boolean retry(final Job job, String error) {
+        if (job.cancelled || job.retries >= MAX_RETRIES) {
+            return false;
+        }
+        long delay = RETRY_BASE_MS << job.retries;
+        job.retries++;
+        job.sessionId = -1;
+        job.progress = null;
+        Logger.log(this, TAG, job.label + ": " + error + "; retry " + job.retries + " of "
+                + MAX_RETRIES + " in " + delay + " ms");
+        mainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (instance == InstallService.this) {
+                    schedule(job);
+                }
+            }
+        }, delay);
+        return true;
+    }
+
+    private void finishJob(Job job, String error) {
+        if (error == null) {
+            error = job.warning;
+        }
+        job.finished = true;
+        job.error = error;
+        finishedCount++;
+        if (error != null) {
+            failedCount++;
+            Logger.log(this, TAG, job.label + ": " + error);
+        }
+        updateNotification();
+
+        if (finishedCount == jobs.size()) {
+            finishBatch();
+        }
+    }
+
+    /**
+     * Everything queued has a final status: report it and stop.
+     */
+    private void finishBatch() {
+        Intent resultIntent = new Intent(this, ProgressActivity.class);
+        resultIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        if (cancelRequested) {
+            int installed = jobs.size() - failedCount;
+            resultIntent.putExtra(ProgressActivity.EXTRA_ERROR, "Installation cancelled."
+                    + (installed > 0 ? "\n\n" + installed + " of " + jobs.size()
+                    + " packages had already been installed." : ""));
+        } else if (jobs.size() == 1) {
+            Job job = jobs.get(0);
+            if (job.error == null) {
+                resultIntent.putExtra(ProgressActivity.EXTRA_SUCCESS, "Application installed successfully.");
+            } else {
+                resultIntent.putExtra(ProgressActivity.EXTRA_ERROR, job.error);
+            }
+        } else if (failedCount == 0) {
+            resultIntent.putExtra(ProgressActivity.EXTRA_SUCCESS,
+                    "All " + jobs.size() + " applications installed successfully.");
+        } else {
+            StringBuilder sb = new StringBuilder();
+            sb.append(failedCount).append(" of ").append(jobs.size()).append(" installs failed:");
+            for (Job job : jobs) {
+                if (job.error != null) {
+                    sb.append("\n\n").append(job.label).append(": ").append(job.error);
+                }
+            }
+            resultIntent.putExtra(ProgressActivity.EXTRA_ERROR, sb.toString());
+        }
+        startActivity(resultIntent);
+
+        jobs.clear();
+        pendingSessions.clear();
+        earlyResults.clear();
+        finishedCount = 0;
+        failedCount = 0;
+        queuedCount = 0;
+        cancelRequested = false;
+        stopForeground(true);
+        stopSelf(lastStartId);
+    }
+
+    // ======== Notification ========
+
+    private Notification buildNotification() {
+        return buildNotification(null);
+    }
+
+    /**
+     * Queue status, plus byte progress of the current install when there is one.
+     */
+    private Notification buildNotification(InstallProgress progress) {
+        Notification.Builder builder = Build.VERSION.SDK_INT >= 26
+                ? new Notification.Builder(this, CHANNEL_ID)
+                : new Notification.Builder(this);
+        int total = jobs.size();
+        String text;
+        if (total == 0) {
+            text = "Preparing...";
+        } else if (total == 1) {
+            text = jobs.get(0).label;
+        } else {
+            text = "Installed " + finishedCount + " of " + total
+                    + (failedCount > 0 ? " (" + failedCount + " failed)" : "");
+        }
+
+        Intent progressIntent = new Intent(this, ProgressActivity.class);
+        progressIntent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, progressIntent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+        if (progress != null && !progress.isFinished()) {
+            text = (total > 1 ? progress.getIndex() + "/" + total + " " : "")
+                    + progress.getLabel() + ": " + progress.describe();
+            int permille = progress.getPermille();
+            builder.setProgress(1000, Math.max(permille, 0), permille < 0);
+        } else {
+            builder.setProgress(total, finishedCount, total == 0);
+        }
+
+        return builder
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setContentTitle("Installing...")
+                .setContentText(text)
+                .setContentIntent(contentIntent)
+                .setOnlyAlertOnce(true)
+                .setOngoing(true)
+                .build();
+    }
+
+    private void updateNotification() {
+        updateNotification(null);
+    }
+
+    private void updateNotification(InstallProgress progress) {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        nm.notify(NOTIFICATION_ID, buildNotification(progress));
+    }
+}
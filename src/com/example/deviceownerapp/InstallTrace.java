@@ -0,0 +1,138 @@
+package com.example.deviceownerapp;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Where the time of one install went, phase by phase.
+ *
+ * A phase is recorded with {@link #record} from a start time taken with
+ * {@link #now}. Recording the same phase again adds to it, so parallel split
+ * writes and per-split fsyncs sum up. fsync time is also part of write, and OBB
+ * copies can run while the result is pending, so the phases don't add up to the
+ * install's wall time; that is {@link #getElapsedMillis}. Finished traces are
+ * kept by {@link InstallHistory}.
+ */
+public class InstallTrace {
+
+    /** Opening the URI, reading the zip directory and classifying it */
+    public static final String OPEN = "open";
+    /** Split selection and manifest checks */
+    public static final String VALIDATE = "validate";
+    /** Creating and opening the install session */
+    public static final String SESSION = "session";
+    /** Writing APK bytes into the session */
+    public static final String WRITE = "write";
+    /** Session fsync calls, a part of write */
+    public static final String FSYNC = "fsync";
+    /** The commit call */
+    public static final String COMMIT = "commit";
+    /** Copying OBB files after the commit */
+    public static final String OBB = "obb";
+    /** From the commit to the result broadcast */
+    public static final String RESULT = "result";
+
+    public static final String[] PHASES = {OPEN, VALIDATE, SESSION, WRITE, FSYNC, COMMIT, OBB, RESULT};
+
+    /**
+     * Time and bytes of one phase.
+     */
+    public static class Span {
+        public long millis;
+        public long bytes;
+    }
+
+    public final long startedAt = System.currentTimeMillis();
+    private final long startedElapsed = now();
+    // Guarded by this
+    private final Map<String, Span> spans = new LinkedHashMap<>();
+    private long endedAt = -1;
+    private volatile String format = "";
+    private volatile String mode = "";
+    private volatile String packageName = "";
+    private volatile long committedAt = -1;
+
+    public static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Add the time since start (from {@link #now}) and the bytes to a phase.
+     */
+    public synchronized void record(String phase, long start, long bytes) {
+        Span span = spans.get(phase);
+        if (span == null) {
+            span = new Span();
+            spans.put(phase, span);
+        }
+        span.millis += Math.max(0, now() - start);
+        span.bytes += Math.max(0, bytes);
+    }
+
+    /**
+     * The session was just committed; the result phase starts here.
+     */
+    public void markCommitted() {
+        committedAt = now();
+    }
+
+    /**
+     * When the session was committed ({@link #now} clock), or -1.
+     */
+    public long getCommittedAt() {
+        return committedAt;
+    }
+
+    /**
+     * The install reached an end at this {@link #now} time: the engine finished,
+     * or the result arrived. The latest one counts.
+     */
+    public synchronized void markEnded(long at) {
+        endedAt = Math.max(endedAt, at);
+    }
+
+    /**
+     * Wall time from the trace's creation to its latest end, or to now if none
+     * was marked.
+     */
+    public synchronized long getElapsedMillis() {
+        return Math.max(0, (endedAt >= 0 ? endedAt : now()) - startedElapsed);
+    }
+
+    public synchronized Map<String, Span> getSpans() {
+        Map<String, Span> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, Span> entry : spans.entrySet()) {
+            Span span = new Span();
+            span.millis = entry.getValue().millis;
+            span.bytes = entry.getValue().bytes;
+            copy.put(entry.getKey(), span);
+        }
+        return copy;
+    }
+
+    public void setFormat(String format) {
+        this.format = format != null ? format : "";
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode != null ? mode : "";
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public void setPackageName(String packageName) {
+        this.packageName = packageName != null ? packageName : "";
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+}
@@ -18,6 +18,7 @@ import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.Button;
+import android.widget.CheckedTextView;
 import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.ListView;
@@ -36,7 +37,10 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class MainActivity extends Activity {
 
@@ -52,6 +56,7 @@ public class MainActivity extends Activity {
     private Button installFileButton;
     private Button optionsButton;
     private Button dhizukuButton;
+    private View selectionBar;
     private TextView statusText;
     private DevicePolicyManager dpm;
     private PackageManager pm;
@@ -59,6 +64,10 @@ public class MainActivity extends Activity {
     private List<ApplicationInfo> appList;
     private AppAdapter appAdapter;
 
+    // Multi-select for bulk hide and freeze; packages rather than positions, so a reload keeps them
+    private boolean selecting = false;
+    private final Set<String> selectedPackages = new LinkedHashSet<>();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -77,6 +86,7 @@ public class MainActivity extends Activity {
         optionsButton = findViewById(R.id.options_button);
         statusText = findViewById(R.id.status_text);
         dhizukuButton = findViewById(R.id.dhizuku_button);
+        selectionBar = findViewById(R.id.selection_bar);
 
         appAdapter = new AppAdapter();
         appListView.setAdapter(appAdapter);
@@ -89,12 +99,59 @@ public class MainActivity extends Activity {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
                 ApplicationInfo clickedApp = appList.get(position);
+                if (selecting) {
+                    toggleSelected(clickedApp.packageName);
+                    return;
+                }
                 Intent intent = new Intent(MainActivity.this, AppDetailActivity.class);
                 intent.putExtra("packageName", clickedApp.packageName);
                 startActivity(intent);
             }
         });
 
+        // Long press starts selecting apps for a bulk hide/unhide
+        appListView.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+            @Override
+            public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+                if (!selecting) {
+                    startSelection();
+                }
+                toggleSelected(appList.get(position).packageName);
+                return true;
+            }
+        });
+
+        findViewById(R.id.hide_selected_button).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                confirmHideSelected();
+            }
+        });
+        findViewById(R.id.unhide_selected_button).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                setSelectedHidden(false);
+            }
+        });
+        findViewById(R.id.freeze_selected_button).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                setSelectedSuspended(true);
+            }
+        });
+        findViewById(R.id.unfreeze_selected_button).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                setSelectedSuspended(false);
+            }
+        });
+        findViewById(R.id.cancel_selection_button).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                stopSelection();
+            }
+        });
+
         // Set click listener for the Uninstall button
         uninstallButton.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -125,7 +182,10 @@ public class MainActivity extends Activity {
     @Override
     protected void onResume() {
         super.onResume();
+        // Dhizuku access may have been granted or revoked from its own app meanwhile
+        DpmHelper.invalidateMode();
         updateStatusDisplay();
+        if (selecting) updateSelectionCount();
         loadApplications();
     }
 
@@ -203,6 +263,15 @@ public class MainActivity extends Activity {
         if (id == R.id.action_update) {
             checkForUpdates();
             return true;
+        } else if (id == R.id.action_select_apps) {
+            startSelection();
+            return true;
+        } else if (id == R.id.action_permission_policy) {
+            startActivity(new Intent(this, PermissionPolicyActivity.class));
+            return true;
+        } else if (id == R.id.action_history) {
+            startActivity(new Intent(this, InstallHistoryActivity.class));
+            return true;
         } else if (id == R.id.action_contact) {
             showContactDialog();
             return true;
@@ -210,6 +279,119 @@ public class MainActivity extends Activity {
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    public void onBackPressed() {
+        if (selecting) {
+            stopSelection();
+            return;
+        }
+        super.onBackPressed();
+    }
+
+    // ======== Multi-select ========
+
+    private void startSelection() {
+        if (DpmHelper.getActiveMode(this) == DpmHelper.Mode.NONE) {
+            Toast.makeText(this, "Hiding or freezing apps needs Device Owner or Dhizuku.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        selecting = true;
+        selectedPackages.clear();
+        selectionBar.setVisibility(View.VISIBLE);
+        uninstallButton.setVisibility(View.GONE);
+        updateSelectionCount();
+        appAdapter.notifyDataSetChanged();
+    }
+
+    private void stopSelection() {
+        selecting = false;
+        selectedPackages.clear();
+        selectionBar.setVisibility(View.GONE);
+        uninstallButton.setVisibility(View.VISIBLE);
+        updateStatusDisplay();
+        appAdapter.notifyDataSetChanged();
+    }
+
+    private void toggleSelected(String packageName) {
+        if (!selectedPackages.remove(packageName)) {
+            selectedPackages.add(packageName);
+        }
+        updateSelectionCount();
+        appAdapter.notifyDataSetChanged();
+    }
+
+    private void updateSelectionCount() {
+        if (statusText != null) {
+            statusText.setText(selectedPackages.size() + " selected");
+        }
+    }
+
+    private void confirmHideSelected() {
+        if (selectedPackages.isEmpty()) return;
+        // Same warning as the hide switch on the detail screen
+        new AlertDialog.Builder(this)
+            .setTitle("Warning")
+            .setMessage("Hiding " + selectedPackages.size() + " apps. Hiding apps can cause the applications menu to not show any user installed apps at all.")
+            .setPositiveButton("Yes", new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    setSelectedHidden(true);
+                }
+            })
+            .setNegativeButton("Cancel", null)
+            .show();
+    }
+
+    private void setSelectedHidden(final boolean hidden) {
+        if (selectedPackages.isEmpty()) return;
+        final int count = selectedPackages.size();
+        Toast.makeText(this, (hidden ? "Hiding " : "Unhiding ") + count + " apps...", Toast.LENGTH_SHORT).show();
+        DpmHelper.setApplicationsHidden(this, selectedPackages, hidden, new DpmHelper.BulkCallback() {
+            @Override
+            public void onResult(Map<String, DpmHelper.BulkResult> results) {
+                onBulkResult(hidden ? "Hid " : "Unhid ", hidden ? "hidden" : "visible", results);
+            }
+        });
+    }
+
+    private void setSelectedSuspended(final boolean suspended) {
+        if (selectedPackages.isEmpty()) return;
+        final int count = selectedPackages.size();
+        Toast.makeText(this, (suspended ? "Freezing " : "Unfreezing ") + count + " apps...", Toast.LENGTH_SHORT).show();
+        // One setPackagesSuspended call for the whole selection
+        DpmHelper.setPackagesSuspended(this, selectedPackages, suspended, new DpmHelper.BulkCallback() {
+            @Override
+            public void onResult(Map<String, DpmHelper.BulkResult> results) {
+                onBulkResult(suspended ? "Froze " : "Unfroze ", suspended ? "frozen" : "unfrozen", results);
+            }
+        });
+    }
+
+    private void onBulkResult(String verb, String state, Map<String, DpmHelper.BulkResult> results) {
+        int changed = 0, unchanged = 0, failed = 0;
+        for (Map.Entry<String, DpmHelper.BulkResult> entry : results.entrySet()) {
+            switch (entry.getValue()) {
+                case CHANGED:
+                    changed++;
+                    break;
+                case UNCHANGED:
+                    unchanged++;
+                    break;
+                default:
+                    failed++;
+                    Logger.log(MainActivity.this, TAG, "Could not change " + entry.getKey() + " to " + state);
+                    break;
+            }
+        }
+        String summary = verb + changed + " of " + results.size() + " apps";
+        if (unchanged > 0) summary += ", " + unchanged + " already " + state;
+        if (failed > 0) summary += ", " + failed + " failed";
+        Toast.makeText(MainActivity.this, summary, Toast.LENGTH_LONG).show();
+        if (isFinishing()) return;
+        stopSelection();
+        loadApplications();
+    }
+
     private void checkForUpdates() {
         Toast.makeText(this, "Checking for updates...", Toast.LENGTH_SHORT).show();
         new CheckUpdateTask().execute(UPDATE_API_URL);
@@ -465,6 +647,8 @@ public class MainActivity extends Activity {
 
         try {
             startActivityForResult(Intent.createChooser(intent, "Select File"), REQUEST_PICK_FILE);
+            // Get the installer ready while the picker is up
+            InstallPrewarm.start(this);
         } catch (Exception e) {
             ErrorHandler.showError(this, "Could not open file picker: " + e.getMessage());
         }
@@ -482,8 +666,12 @@ public class MainActivity extends Activity {
                 // Grant read permission to the target activity
                 installIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
                 startActivity(installIntent);
+                return;
             }
         }
+        if (requestCode == REQUEST_PICK_FILE) {
+            InstallPrewarm.cancel(this);
+        }
     }
 
     @SuppressWarnings("deprecation")
@@ -550,11 +738,19 @@ public class MainActivity extends Activity {
         @Override
         public long getItemId(int position) { return position; }
 
+        @Override
+        public int getViewTypeCount() { return 2; }
+        @Override
+        public int getItemViewType(int position) { return selecting ? 1 : 0; }
+
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
             ViewHolder holder;
             if (convertView == null) {
-                convertView = getLayoutInflater().inflate(android.R.layout.simple_list_item_1, parent, false);
+                int layout = selecting
+                        ? android.R.layout.simple_list_item_multiple_choice
+                        : android.R.layout.simple_list_item_1;
+                convertView = getLayoutInflater().inflate(layout, parent, false);
                 holder = new ViewHolder();
                 holder.textView = (TextView) convertView;
                 convertView.setTag(holder);
@@ -566,8 +762,14 @@ public class MainActivity extends Activity {
             String appName = app.loadLabel(pm).toString();
             boolean isHidden = DpmHelper.isApplicationHidden(MainActivity.this, app.packageName);
 
-            String displayName = appName + (isHidden ? " (Hidden)" : "");
+            // Suspension is in the flags we already have, so it costs no call
+            boolean isSuspended = (app.flags & ApplicationInfo.FLAG_SUSPENDED) != 0;
+
+            String displayName = appName + (isHidden ? " (Hidden)" : "") + (isSuspended ? " (Frozen)" : "");
             holder.textView.setText(displayName);
+            if (selecting) {
+                ((CheckedTextView) holder.textView).setChecked(selectedPackages.contains(app.packageName));
+            }
             
             return convertView;
         }
@@ -0,0 +1,195 @@
+package com.example.deviceownerapp;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.StatFs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Extracts the Android/obb/&lt;package&gt;/*.obb entries of an XAPK into the
+ * shared obb directory of the package being installed.
+ *
+ * Each file is written to a .part next to its target and renamed once it has been
+ * synced, so a half-copied OBB never sits under the real name. STORED entries of a
+ * seekable bundle are copied with FileChannel.transferTo (both ends are plain
+ * files); compressed or streamed entries go through one large buffer.
+ */
+public class ObbInstaller {
+
+    private static final String TAG = "ObbInstaller";
+
+    private static final String OBB_PREFIX = "Android/obb/";
+    private static final String PART_SUFFIX = ".part";
+
+    // OBBs are big and written once; large sequential writes beat the 64K default
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    // Leave this much free on shared storage after the copy
+    private static final long SPACE_MARGIN_BYTES = 64L * 1024 * 1024;
+
+    private final Context context;
+    private final InstallProgress progress;
+    private byte[] buffer = null;
+
+    /**
+     * @param progress credited with every byte written, may be null
+     */
+    public ObbInstaller(Context context, InstallProgress progress) {
+        this.context = context;
+        this.progress = progress;
+    }
+
+    public static boolean isObb(BundleReader.Entry entry) {
+        return !entry.isDirectory() && entry.name.toLowerCase().endsWith(".obb");
+    }
+
+    /**
+     * The obb directory of a package on shared storage.
+     */
+    public static File getObbDir(String packageName) {
+        return new File(Environment.getExternalStorageDirectory(), OBB_PREFIX + packageName);
+    }
+
+    /**
+     * Target file for an entry, or null if it isn't an OBB of packageName.
+     * Only Android/obb/&lt;packageName&gt;/&lt;file&gt;.obb is accepted, so a bundle
+     * can't write into another app's directory or anywhere else.
+     */
+    public static File getTarget(BundleReader.Entry entry, String packageName) {
+        if (!isObb(entry) || packageName == null) {
+            return null;
+        }
+        String name = entry.name.replace('\\', '/');
+        int prefix = name.indexOf(OBB_PREFIX);
+        if (prefix < 0 || (prefix > 0 && name.charAt(prefix - 1) != '/')) {
+            return null;
+        }
+        String[] parts = name.substring(prefix + OBB_PREFIX.length()).split("/");
+        if (parts.length != 2 || !parts[0].equals(packageName)
+                || parts[1].isEmpty() || parts[1].startsWith(".")) {
+            return null;
+        }
+        return new File(getObbDir(packageName), parts[1]);
+    }
+
+    /**
+     * Uncompressed size of the OBB entries, or -1 if any size is unknown.
+     */
+    public static long getTotalSize(List<BundleReader.Entry> obbs) {
+        return SplitWriter.getTotalSize(obbs);
+    }
+
+    /**
+     * Throw if shared storage can't hold bytes more. Files that will be replaced
+     * count as free.
+     */
+    public void checkSpace(long bytes, List<BundleReader.Entry> obbs, String packageName) throws IOException {
+        if (bytes <= 0) {
+            return;
+        }
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            throw new IOException("Shared storage is not mounted");
+        }
+        long reclaimed = 0;
+        for (BundleReader.Entry entry : obbs) {
+            File target = getTarget(entry, packageName);
+            if (target != null && target.isFile()) {
+                reclaimed += target.length();
+            }
+        }
+        long free = new StatFs(Environment.getExternalStorageDirectory().getPath()).getAvailableBytes();
+        if (free + reclaimed < bytes + SPACE_MARGIN_BYTES) {
+            throw new IOException("Not enough space for OBB files: need " + (bytes / (1024 * 1024))
+                    + " MB, " + ((free + reclaimed) / (1024 * 1024)) + " MB free");
+        }
+    }
+
+    /**
+     * Extract the OBB entries of a seekable bundle. Returns the number of files written.
+     */
+    public int extract(SeekableBundleReader reader, List<BundleReader.Entry> obbs,
+                       String packageName) throws IOException {
+        checkSpace(getTotalSize(obbs), obbs, packageName);
+        int written = 0;
+        for (BundleReader.Entry entry : obbs) {
+            File target = getTarget(entry, packageName);
+            if (target == null) {
+                Logger.log(context, TAG, "Ignoring " + entry.name + ": not an OBB of " + packageName);
+                continue;
+            }
+            File part = openTarget(target);
+            try (FileOutputStream out = new FileOutputStream(part)) {
+                if (entry.method == BundleReader.METHOD_STORED) {
+                    FileTransfer.copyRange(reader.getChannel(), reader.getDataOffset(entry), entry.size,
+                            out, getBuffer(), progress);
+                } else {
+                    try (InputStream in = reader.openEntry(entry)) {
+                        FileTransfer.copy(in, out, getBuffer(), progress);
+                    }
+                }
+                out.getFD().sync();
+            } catch (IOException e) {
+                part.delete();
+                throw new IOException(entry.getFileName() + ": " + e.getMessage());
+            }
+            publish(part, target);
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * Extract one OBB entry as it goes by in a streamed bundle. Returns false if
+     * the entry isn't an OBB of packageName and was skipped.
+     */
+    public boolean extract(BundleReader.Entry entry, InputStream in, String packageName) throws IOException {
+        File target = getTarget(entry, packageName);
+        if (target == null) {
+            Logger.log(context, TAG, "Ignoring " + entry.name + ": not an OBB of " + packageName);
+            return false;
+        }
+        checkSpace(entry.size, java.util.Collections.singletonList(entry), packageName);
+        File part = openTarget(target);
+        try (FileOutputStream out = new FileOutputStream(part)) {
+            FileTransfer.copy(in, out, getBuffer(), progress);
+            out.getFD().sync();
+        } catch (IOException e) {
+            part.delete();
+            throw new IOException(entry.getFileName() + ": " + e.getMessage());
+        }
+        publish(part, target);
+        return true;
+    }
+
+    private File openTarget(File target) throws IOException {
+        File dir = target.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir.getPath());
+        }
+        return new File(dir, target.getName() + PART_SUFFIX);
+    }
+
+    private void publish(File part, File target) throws IOException {
+        if (target.exists() && !target.delete()) {
+            part.delete();
+            throw new IOException("Cannot replace " + target.getPath());
+        }
+        if (!part.renameTo(target)) {
+            part.delete();
+            throw new IOException("Cannot rename " + part.getPath());
+        }
+        Logger.log(context, TAG, "Wrote " + target.getPath() + " (" + target.length() + " bytes)");
+    }
+
+    private byte[] getBuffer() {
+        if (buffer == null) {
+            buffer = new byte[BUFFER_SIZE];
+        }
+        return buffer;
+    }
+}
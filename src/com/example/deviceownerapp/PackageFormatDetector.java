@@ -0,0 +1,466 @@
+package com.example.deviceownerapp;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Works out what a picked file actually is from its bytes rather than its name or
+ * MIME type, and returns an {@link InstallPlan} holding the already-open source so
+ * the install path never has to reopen the URI.
+ *
+ * Seekable sources are classified from the full central directory (and the APK
+ * signing block magic in front of it). One-shot streams are classified from the
+ * first local file header, peeked through a mark/reset buffer.
+ *
+ * Every plan carries a {@link StagingCache} key. A one-shot stream is always
+ * read and teed into the staging cache again, even if its key is already staged;
+ * only a retry reopens its own verified copy ({@link #detectStaged}).
+ */
+public class PackageFormatDetector {
+
+    private static final String TAG = "FormatDetector";
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int PEEK_LIMIT = 65536;
+    private static final byte[] APK_SIG_BLOCK_MAGIC = "APK Sig Block 42".getBytes(Charset.forName("US-ASCII"));
+
+    public enum Format {
+        APK,        // Single APK
+        XAPK,       // APKPure-style bundle with manifest.json
+        APKS,       // SAI or bundletool split set (meta.sai_v*.json / toc.pb)
+        APKM,       // APKMirror bundle with info.json
+        SPLIT_ZIP   // Plain ZIP of APKs without recognised metadata
+    }
+
+    /**
+     * The result of detection: the format plus the open source to install from.
+     * Exactly one of {@link #reader} or {@link #stream} is set.
+     */
+    public static class InstallPlan implements Closeable {
+        public final Format format;
+        public final BundleReader reader;
+        public final InputStream stream;
+        public final boolean hasSigningBlock;
+        public final List<BundleReader.Entry> apkEntries;
+        public final List<BundleReader.Entry> obbEntries;
+        public final String stagingKey;
+        /** Metadata of a seekable bundle, {@link BundleMetadata#NONE} otherwise */
+        public final BundleMetadata metadata;
+        /** Phase timings of this install */
+        public final InstallTrace trace = new InstallTrace();
+        private volatile List<BundleReader.Entry> selectedApkEntries = null;
+        private volatile Map<String, ApkManifest> manifests = null;
+        private volatile Future<String> signatureCheck = null;
+        // The staging tee under a one-shot source, if any
+        private InputStream stagingSource = null;
+        // Hash of the staged copy a plan from detectStaged was opened on
+        private String stagedSha256 = null;
+        private volatile int jobId = -1;
+
+        InstallPlan(Format format, BundleReader reader, InputStream stream, boolean hasSigningBlock,
+                    List<BundleReader.Entry> apkEntries, List<BundleReader.Entry> obbEntries, String stagingKey,
+                    BundleMetadata metadata) {
+            this.format = format;
+            this.metadata = metadata;
+            this.stagingKey = stagingKey;
+            this.reader = reader;
+            this.stream = stream;
+            this.hasSigningBlock = hasSigningBlock;
+            this.apkEntries = apkEntries;
+            this.obbEntries = obbEntries;
+            trace.setFormat(format.name());
+        }
+
+        public boolean isBundle() {
+            return format != Format.APK;
+        }
+
+        /**
+         * The seekable reader, or null when the source is a one-shot stream.
+         */
+        public SeekableBundleReader getSeekableReader() {
+            return reader instanceof SeekableBundleReader ? (SeekableBundleReader) reader : null;
+        }
+
+        /**
+         * The APK entries to install: what {@link SplitSelector} kept for this
+         * device, or all of {@link #apkEntries} if no selection was made.
+         */
+        public List<BundleReader.Entry> getSelectedApkEntries() {
+            List<BundleReader.Entry> selected = selectedApkEntries;
+            return selected != null ? selected : apkEntries;
+        }
+
+        void setSelectedApkEntries(List<BundleReader.Entry> selected) {
+            this.selectedApkEntries = Collections.unmodifiableList(selected);
+        }
+
+        /**
+         * Manifests by entry name once {@link ApkValidator} has checked a seekable
+         * plan (a single APK is keyed by AndroidManifest.xml), otherwise null.
+         */
+        public Map<String, ApkManifest> getManifests() {
+            return manifests;
+        }
+
+        void setManifests(Map<String, ApkManifest> manifests) {
+            this.manifests = Collections.unmodifiableMap(manifests);
+        }
+
+        /**
+         * Pending {@link ApkSignatureVerifier} result, or null if none was started.
+         */
+        public Future<String> getSignatureCheck() {
+            return signatureCheck;
+        }
+
+        void setSignatureCheck(Future<String> signatureCheck) {
+            this.signatureCheck = signatureCheck;
+        }
+
+        /**
+         * The install queue job this plan belongs to, or -1. Commits tag their
+         * result with it.
+         */
+        public int getJobId() {
+            return jobId;
+        }
+
+        void setJobId(int jobId) {
+            this.jobId = jobId;
+        }
+
+        /**
+         * Don't keep a staged copy of this source: the partial copy is deleted
+         * on close instead of being drained and published.
+         */
+        public void discardStaging() {
+            StagingCache.discard(stagingSource);
+        }
+
+        /**
+         * SHA-256 of this plan's staged copy: the one its stream was teed into,
+         * once closed, or the one it was opened from. Null if there is none.
+         */
+        public String getStagedSha256() {
+            return stagingSource != null ? StagingCache.getSha256(stagingSource) : stagedSha256;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (signatureCheck != null) signatureCheck.cancel(true);
+            if (reader != null) reader.close();
+            if (stream != null) stream.close();
+        }
+    }
+
+    /**
+     * Open the URI once and classify it.
+     */
+    public static InstallPlan detect(Context context, Uri uri) throws IOException {
+        long start = InstallTrace.now();
+        InstallPlan plan = open(context, uri);
+        SeekableBundleReader seekable = plan.getSeekableReader();
+        plan.trace.record(InstallTrace.OPEN, start, seekable != null ? seekable.getSize() : 0);
+        if (plan.metadata.packageName != null) {
+            plan.trace.setPackageName(plan.metadata.packageName);
+        }
+        return plan;
+    }
+
+    /**
+     * Reopen what an earlier attempt staged under stagingKey, if that copy is
+     * still the complete one it teed, with the SHA-256 it got from
+     * {@link InstallPlan#getStagedSha256} (see {@link StagingCache#getVerified}).
+     * Null if there is none.
+     */
+    public static InstallPlan detectStaged(Context context, String stagingKey, String sha256) throws IOException {
+        File staged = stagingKey != null ? new StagingCache(context).getVerified(stagingKey, sha256) : null;
+        if (staged == null) {
+            return null;
+        }
+        long start = InstallTrace.now();
+        Logger.log(context, TAG, "Installing from staged copy " + staged.getName());
+        InstallPlan plan = openSeekable(ParcelFileDescriptor.open(staged, ParcelFileDescriptor.MODE_READ_ONLY),
+                stagingKey);
+        plan.stagedSha256 = sha256;
+        plan.trace.record(InstallTrace.OPEN, start, staged.length());
+        if (plan.metadata.packageName != null) {
+            plan.trace.setPackageName(plan.metadata.packageName);
+        }
+        return plan;
+    }
+
+    private static InstallPlan open(Context context, Uri uri) throws IOException {
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+        } catch (Exception e) {
+            // Some providers only support openInputStream
+        }
+
+        InputStream in;
+        if (pfd != null) {
+            if (pfd.getStatSize() >= 0) {
+                return openSeekable(pfd, null);
+            }
+            // A pipe: read the descriptor we already have, a one-shot
+            // share can't be opened a second time
+            in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+        } else {
+            in = context.getContentResolver().openInputStream(uri);
+        }
+        if (in == null) {
+            throw new IOException("Could not open " + uri);
+        }
+        try {
+            return openStream(context, uri, in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a seekable source. The staging key is computed unless the caller already has one.
+     */
+    private static InstallPlan openSeekable(ParcelFileDescriptor pfd, String stagingKey) throws IOException {
+        SeekableBundleReader reader;
+        try {
+            reader = new SeekableBundleReader(pfd);
+        } catch (IOException e) {
+            throw new IOException("Not an APK or APK bundle: " + e.getMessage());
+        }
+        try {
+            return classify(reader, stagingKey != null ? stagingKey : computeKey(reader));
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Staging key of a seekable source, sampled from both ends of the file.
+     */
+    private static String computeKey(SeekableBundleReader reader) throws IOException {
+        long mtime;
+        try {
+            mtime = android.system.Os.fstat(reader.getFileDescriptor().getFileDescriptor()).st_mtime;
+        } catch (Exception e) {
+            mtime = 0;
+        }
+        long size = reader.getSize();
+        int sample = (int) Math.min(size, StagingCache.SAMPLE_SIZE);
+        byte[] head = reader.read(0, sample);
+        byte[] tail = reader.read(size - sample, sample);
+        return StagingCache.computeKey(size, mtime, head, head.length, tail);
+    }
+
+    /**
+     * Stream source: classify the stream and tee it into the staging cache, so a
+     * retry can install from the copy ({@link #detectStaged}).
+     */
+    private static InstallPlan openStream(Context context, Uri uri, InputStream in) throws IOException {
+        long[] sizeAndMtime = queryProviderSize(context, uri);
+        long size = sizeAndMtime[0];
+
+        BufferedInputStream buffered = new BufferedInputStream(in, PEEK_LIMIT);
+        buffered.mark(PEEK_LIMIT);
+        byte[] head = new byte[StagingCache.SAMPLE_SIZE];
+        int headLength = readFully(buffered, head);
+        buffered.reset();
+
+        StagingCache cache = new StagingCache(context);
+        // The key only samples the stream, so it never stands in for the content:
+        // a new stream is always read, and teed again
+        String key = StagingCache.computeKey(size, sizeAndMtime[1], head, headLength, null);
+
+        InputStream source = cache.tee(key, buffered, size);
+        try {
+            InstallPlan plan = classifyStream(context, uri, source, head, headLength, key);
+            plan.stagingSource = source;
+            return plan;
+        } catch (IOException e) {
+            // Not installable: don't drain the rest of the stream into the cache
+            StagingCache.discard(source);
+            source.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Size and last-modified time reported by the provider, -1 / 0 when unknown.
+     */
+    private static long[] queryProviderSize(Context context, Uri uri) {
+        long[] result = {-1, 0};
+        try (Cursor cursor = context.getContentResolver().query(uri,
+                new String[] {OpenableColumns.SIZE, DocumentsContract.Document.COLUMN_LAST_MODIFIED},
+                null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                int mtimeIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                if (sizeIndex >= 0 && !cursor.isNull(sizeIndex)) result[0] = cursor.getLong(sizeIndex);
+                if (mtimeIndex >= 0 && !cursor.isNull(mtimeIndex)) result[1] = cursor.getLong(mtimeIndex);
+            }
+        } catch (Exception e) {
+            // Providers that reject the projection just don't get a size
+        }
+        return result;
+    }
+
+    private static InstallPlan classify(SeekableBundleReader reader, String stagingKey) throws IOException {
+        boolean hasAndroidManifest = false;
+        boolean hasManifestJson = false;
+        boolean hasToc = false;
+        boolean hasSaiMeta = false;
+        boolean hasInfoJson = false;
+        List<BundleReader.Entry> apks = new ArrayList<>();
+        List<BundleReader.Entry> obbs = new ArrayList<>();
+
+        for (BundleReader.Entry entry : reader.getEntries()) {
+            String name = entry.name;
+            if (name.equals("AndroidManifest.xml")) {
+                hasAndroidManifest = true;
+            } else if (name.equals("manifest.json")) {
+                hasManifestJson = true;
+            } else if (name.equals("toc.pb")) {
+                hasToc = true;
+            } else if (name.startsWith("meta.sai_v") && name.endsWith(".json")) {
+                hasSaiMeta = true;
+            } else if (name.equals("info.json")) {
+                hasInfoJson = true;
+            } else if (entry.isApk()) {
+                apks.add(entry);
+            } else if (ObbInstaller.isObb(entry)) {
+                obbs.add(entry);
+            }
+        }
+
+        boolean hasSigningBlock = hasSigningBlock(reader);
+
+        Format format;
+        if (hasAndroidManifest) {
+            format = Format.APK;
+        } else if (apks.isEmpty()) {
+            throw new IOException("Not an APK or APK bundle: no AndroidManifest.xml or .apk entries");
+        } else if (hasManifestJson) {
+            format = Format.XAPK;
+        } else if (hasToc || hasSaiMeta) {
+            format = Format.APKS;
+        } else if (hasInfoJson) {
+            format = Format.APKM;
+        } else {
+            format = Format.SPLIT_ZIP;
+        }
+
+        BundleMetadata metadata = BundleMetadata.NONE;
+        if (format == Format.APK) {
+            apks = Collections.emptyList();
+            obbs = Collections.emptyList();
+        } else {
+            metadata = BundleMetadata.read(reader, format);
+        }
+        return new InstallPlan(format, reader, null, hasSigningBlock,
+                Collections.unmodifiableList(apks), Collections.unmodifiableList(obbs), stagingKey, metadata);
+    }
+
+    private static boolean hasSigningBlock(SeekableBundleReader reader) {
+        long magicOffset = reader.getCentralDirectoryOffset() - APK_SIG_BLOCK_MAGIC.length;
+        if (magicOffset < 0) {
+            return false;
+        }
+        try {
+            byte[] magic = reader.read(magicOffset, APK_SIG_BLOCK_MAGIC.length);
+            return java.util.Arrays.equals(magic, APK_SIG_BLOCK_MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static InstallPlan classifyStream(Context context, Uri uri, InputStream in,
+                                              byte[] head, int headLength, String stagingKey) throws IOException {
+        String firstName = readFirstEntryName(new ByteArrayInputStream(head, 0, headLength));
+
+        if (firstName == null) {
+            throw new IOException("Not an APK or APK bundle: missing ZIP header");
+        }
+
+        Format format = classifyFirstEntry(firstName);
+        if (format == null) {
+            // First entry doesn't settle it; fall back to the name the provider gave us
+            String path = uri.toString().toLowerCase();
+            boolean looksLikeApk = path.endsWith(".apk")
+                    || "application/vnd.android.package-archive".equals(context.getContentResolver().getType(uri));
+            format = looksLikeApk ? Format.APK : Format.SPLIT_ZIP;
+            Logger.log(context, TAG, "Ambiguous first entry '" + firstName + "', treating as " + format);
+        }
+
+        List<BundleReader.Entry> none = Collections.emptyList();
+        if (format == Format.APK) {
+            return new InstallPlan(format, null, in, false, none, none, stagingKey, BundleMetadata.NONE);
+        }
+        return new InstallPlan(format, new StreamingBundleReader(in), null, false, none, none, stagingKey,
+                BundleMetadata.NONE);
+    }
+
+    private static Format classifyFirstEntry(String name) {
+        if (name.equals("AndroidManifest.xml") || name.startsWith("META-INF/")
+                || name.equals("classes.dex") || name.equals("resources.arsc") || name.startsWith("res/")) {
+            return Format.APK;
+        }
+        if (name.equals("manifest.json")) return Format.XAPK;
+        if (name.equals("toc.pb") || name.startsWith("meta.sai_v")) return Format.APKS;
+        if (name.equals("info.json")) return Format.APKM;
+        if (name.toLowerCase().endsWith(".apk")) return Format.SPLIT_ZIP;
+        return null;
+    }
+
+    /**
+     * Parse the name out of the first local file header, or null if this isn't a ZIP.
+     */
+    private static String readFirstEntryName(InputStream in) throws IOException {
+        byte[] header = new byte[LOCAL_HEADER_SIZE];
+        if (readFully(in, header) < LOCAL_HEADER_SIZE) {
+            return null;
+        }
+        int signature = (header[0] & 0xFF) | (header[1] & 0xFF) << 8
+                | (header[2] & 0xFF) << 16 | (header[3] & 0xFF) << 24;
+        if (signature != LOCAL_HEADER_SIGNATURE) {
+            return null;
+        }
+        int nameLength = (header[26] & 0xFF) | (header[27] & 0xFF) << 8;
+        byte[] name = new byte[nameLength];
+        if (readFully(in, name) < nameLength) {
+            return null;
+        }
+        return new String(name, Charset.forName("UTF-8"));
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = in.read(buffer, total, buffer.length - total);
+            if (read == -1) break;
+            total += read;
+        }
+        return total;
+    }
+}
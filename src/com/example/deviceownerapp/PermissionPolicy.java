@@ -0,0 +1,383 @@
+package com.example.deviceownerapp;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Runtime-permission rules applied across many apps at once.
+ *
+ * A rule is one line: {@code <package glob> <permission or group glob> <grant|deny|default>},
+ * for example {@code * android.permission-group.LOCATION deny}. The permission glob
+ * matches a permission's name or its group's name. When several rules match, the
+ * last one wins. Wildcard package globs skip system apps; name a system app exactly
+ * to include it. Only dangerous (runtime) permissions the app requests are touched.
+ *
+ * {@link #run} reads the current grant states, works out which ones differ from
+ * the rules, and sets only those. In Dhizuku mode the reads and the changes each
+ * go to the UserService as one {@link DpmBatch}; otherwise it's a package per task
+ * on a small thread pool.
+ */
+public class PermissionPolicy {
+
+    private static final String TAG = "PermissionPolicy";
+    private static final String RULES_FILE = "permission_policy.txt";
+    private static final int THREADS = 4;
+    // How long to wait for the Dhizuku UserService before going one call at a time
+    private static final long SERVICE_TIMEOUT_MS = 5000;
+
+    /**
+     * One parsed rule line.
+     */
+    public static class Rule {
+        public final String packageGlob;
+        public final String permissionGlob;
+        public final int state;
+        private final Pattern packagePattern;
+        private final Pattern permissionPattern;
+
+        Rule(String packageGlob, String permissionGlob, int state) {
+            this.packageGlob = packageGlob;
+            this.permissionGlob = permissionGlob;
+            this.state = state;
+            this.packagePattern = globToPattern(packageGlob);
+            this.permissionPattern = globToPattern(permissionGlob);
+        }
+
+        boolean isWildcard() {
+            return packageGlob.indexOf('*') >= 0 || packageGlob.indexOf('?') >= 0;
+        }
+    }
+
+    /**
+     * One permission of one app the rules apply to, and what happened to it.
+     */
+    public static class Item {
+        public final String packageName;
+        public final String permission;
+        public final int target;
+        // -1 if it could not be read
+        public int current = DevicePolicyManager.PERMISSION_GRANT_STATE_DEFAULT;
+        public DpmHelper.BulkResult result = DpmHelper.BulkResult.UNCHANGED;
+
+        Item(String packageName, String permission, int target) {
+            this.packageName = packageName;
+            this.permission = permission;
+            this.target = target;
+        }
+    }
+
+    public interface Callback {
+        /** Every matched item, on the main thread */
+        void onResult(List<Item> items);
+    }
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private PermissionPolicy() {
+    }
+
+    /**
+     * Parse rule lines. Blank lines and lines starting with # are skipped.
+     *
+     * @throws IllegalArgumentException naming the first bad line
+     */
+    public static List<Rule> parse(String text) {
+        List<Rule> rules = new ArrayList<>();
+        String[] lines = text.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": expected <package> <permission> <grant|deny|default>");
+            }
+            rules.add(new Rule(parts[0], parts[1], parseState(parts[2], i + 1)));
+        }
+        return rules;
+    }
+
+    /**
+     * Apply the rules in the background. With dryRun the changes are only worked
+     * out: items that would change are reported CHANGED but nothing is set.
+     */
+    public static void run(Context context, final List<Rule> rules, final boolean dryRun, final Callback callback) {
+        final Context app = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final List<Item> items = apply(app, rules, dryRun);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResult(items);
+                    }
+                });
+            }
+        }, TAG).start();
+    }
+
+    private static List<Item> apply(Context context, List<Rule> rules, boolean dryRun) {
+        long start = System.currentTimeMillis();
+        Map<String, List<Item>> byPackage = match(context, rules);
+
+        if (DpmHelper.getActiveMode(context) == DpmHelper.Mode.DHIZUKU
+                && DpmHelper.awaitInstallService(context, SERVICE_TIMEOUT_MS) != null) {
+            applyBatched(context, byPackage, dryRun);
+        } else {
+            applyParallel(context, byPackage, dryRun);
+        }
+
+        List<Item> items = new ArrayList<>();
+        int changed = 0;
+        for (List<Item> packageItems : byPackage.values()) {
+            for (Item item : packageItems) {
+                items.add(item);
+                if (item.result == DpmHelper.BulkResult.CHANGED) changed++;
+            }
+        }
+        Logger.log(context, TAG, (dryRun ? "Previewed " : "Applied ") + changed + " changes over "
+                + byPackage.size() + " apps in " + (System.currentTimeMillis() - start) + " ms");
+        return items;
+    }
+
+    /**
+     * Read and set through the Dhizuku UserService: one batch of reads, then one
+     * batch of the changes, each a single hop.
+     */
+    private static void applyBatched(Context context, Map<String, List<Item>> byPackage, boolean dryRun) {
+        List<Item> all = new ArrayList<>();
+        DpmBatch reads = new DpmBatch();
+        for (List<Item> packageItems : byPackage.values()) {
+            for (Item item : packageItems) {
+                all.add(item);
+                reads.getPermissionGrantState(item.packageName, item.permission);
+            }
+        }
+        if (all.isEmpty()) {
+            return;
+        }
+        int[] states = DpmHelper.executeBatch(context, reads);
+
+        List<Item> changes = new ArrayList<>();
+        DpmBatch writes = new DpmBatch();
+        for (int i = 0; i < all.size(); i++) {
+            Item item = all.get(i);
+            item.current = states[i];
+            if (item.current < 0) {
+                item.current = -1;
+                item.result = DpmHelper.BulkResult.FAILED;
+            } else if (item.current == item.target) {
+                item.result = DpmHelper.BulkResult.UNCHANGED;
+            } else if (dryRun) {
+                item.result = DpmHelper.BulkResult.CHANGED;
+            } else {
+                changes.add(item);
+                writes.setPermissionGrantState(item.packageName, item.permission, item.target);
+            }
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+        int[] results = DpmHelper.executeBatch(context, writes);
+        for (int i = 0; i < changes.size(); i++) {
+            changes.get(i).result = results[i] == DpmBatch.RESULT_OK
+                    ? DpmHelper.BulkResult.CHANGED : DpmHelper.BulkResult.FAILED;
+        }
+    }
+
+    /**
+     * Read and set one transaction per item, a package per task on the pool.
+     */
+    private static void applyParallel(final Context context, Map<String, List<Item>> byPackage,
+                                      final boolean dryRun) {
+        List<Future<?>> tasks = new ArrayList<>();
+        for (final List<Item> packageItems : byPackage.values()) {
+            tasks.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (Item item : packageItems) {
+                        item.current = DpmHelper.readPermissionGrantState(context, item.packageName, item.permission);
+                        if (item.current < 0) {
+                            item.result = DpmHelper.BulkResult.FAILED;
+                        } else if (item.current == item.target) {
+                            item.result = DpmHelper.BulkResult.UNCHANGED;
+                        } else if (dryRun || DpmHelper.setPermissionGrantState(
+                                context, item.packageName, item.permission, item.target)) {
+                            item.result = DpmHelper.BulkResult.CHANGED;
+                        } else {
+                            item.result = DpmHelper.BulkResult.FAILED;
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (Exception e) {
+                Logger.log(context, TAG, "Policy task failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The target state of every runtime permission the rules reach, by package.
+     */
+    private static Map<String, List<Item>> match(Context context, List<Rule> rules) {
+        PackageManager pm = context.getPackageManager();
+        Map<String, PermissionInfo> permissionInfos = new HashMap<>();
+        Map<String, List<Item>> byPackage = new LinkedHashMap<>();
+
+        for (PackageInfo pkg : pm.getInstalledPackages(PackageManager.GET_PERMISSIONS)) {
+            if (pkg.requestedPermissions == null) {
+                continue;
+            }
+            boolean system = pkg.applicationInfo != null
+                    && (pkg.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0;
+            List<Item> packageItems = new ArrayList<>();
+            for (String permission : pkg.requestedPermissions) {
+                PermissionInfo info = getPermissionInfo(pm, permissionInfos, permission);
+                if (info == null || (info.protectionLevel & PermissionInfo.PROTECTION_MASK_BASE)
+                        != PermissionInfo.PROTECTION_DANGEROUS) {
+                    continue;
+                }
+                int target = -1;
+                for (Rule rule : rules) {
+                    if ((system && rule.isWildcard()) || !rule.packagePattern.matcher(pkg.packageName).matches()) {
+                        continue;
+                    }
+                    if (rule.permissionPattern.matcher(permission).matches()
+                            || (info.group != null && rule.permissionPattern.matcher(info.group).matches())) {
+                        target = rule.state;
+                    }
+                }
+                if (target >= 0) {
+                    packageItems.add(new Item(pkg.packageName, permission, target));
+                }
+            }
+            if (!packageItems.isEmpty()) {
+                byPackage.put(pkg.packageName, packageItems);
+            }
+        }
+        return byPackage;
+    }
+
+    private static PermissionInfo getPermissionInfo(PackageManager pm, Map<String, PermissionInfo> cache,
+                                                    String permission) {
+        if (cache.containsKey(permission)) {
+            return cache.get(permission);
+        }
+        PermissionInfo info;
+        try {
+            info = pm.getPermissionInfo(permission, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            info = null;
+        }
+        cache.put(permission, info);
+        return info;
+    }
+
+    // ======== Saved rules ========
+
+    public static String loadRules(Context context) {
+        File file = new File(context.getFilesDir(), RULES_FILE);
+        if (!file.exists()) {
+            return "";
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[(int) file.length()];
+            int read = 0;
+            while (read < buffer.length) {
+                int n = in.read(buffer, read, buffer.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            return new String(buffer, 0, read, "UTF-8");
+        } catch (IOException e) {
+            Logger.log(context, TAG, "Could not read rules: " + e.getMessage());
+            return "";
+        }
+    }
+
+    public static void saveRules(Context context, String text) {
+        File file = new File(context.getFilesDir(), RULES_FILE);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(text.getBytes("UTF-8"));
+        } catch (IOException e) {
+            Logger.log(context, TAG, "Could not save rules: " + e.getMessage());
+        }
+    }
+
+    // ======== Helpers ========
+
+    public static String stateName(int state) {
+        switch (state) {
+            case DevicePolicyManager.PERMISSION_GRANT_STATE_GRANTED:
+                return "grant";
+            case DevicePolicyManager.PERMISSION_GRANT_STATE_DENIED:
+                return "deny";
+            case -1:
+                return "unknown";
+            default:
+                return "default";
+        }
+    }
+
+    private static int parseState(String word, int line) {
+        switch (word.toLowerCase()) {
+            case "grant":
+            case "granted":
+                return DevicePolicyManager.PERMISSION_GRANT_STATE_GRANTED;
+            case "deny":
+            case "denied":
+                return DevicePolicyManager.PERMISSION_GRANT_STATE_DENIED;
+            case "default":
+                return DevicePolicyManager.PERMISSION_GRANT_STATE_DEFAULT;
+            default:
+                throw new IllegalArgumentException("Line " + line + ": unknown state '" + word + "'");
+        }
+    }
+
+    // * is any run of characters, ? is one character; everything else is literal
+    private static Pattern globToPattern(String glob) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : glob.split("(?=[*?])|(?<=[*?])")) {
+            if (part.equals("*")) {
+                sb.append(".*");
+            } else if (part.equals("?")) {
+                sb.append('.');
+            } else if (!part.isEmpty()) {
+                sb.append(Pattern.quote(part));
+            }
+        }
+        return Pattern.compile(sb.toString());
+    }
+}
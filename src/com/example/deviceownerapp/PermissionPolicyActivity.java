@@ -0,0 +1,119 @@
+package com.example.deviceownerapp;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.util.List;
+
+/**
+ * Edits the {@link PermissionPolicy} rules, previews what they would change and
+ * applies them to every matching app.
+ */
+public class PermissionPolicyActivity extends Activity {
+
+    private static final String TAG = "PermissionPolicyActivity";
+
+    private EditText rulesText;
+    private TextView resultText;
+    private boolean running = false;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_permission_policy);
+        rulesText = findViewById(R.id.policy_rules);
+        resultText = findViewById(R.id.policy_result);
+        rulesText.setText(PermissionPolicy.loadRules(this));
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        PermissionPolicy.saveRules(this, rulesText.getText().toString());
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.policy_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+        if (id == R.id.action_preview_policy) {
+            runPolicy(true);
+            return true;
+        } else if (id == R.id.action_apply_policy) {
+            runPolicy(false);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void runPolicy(final boolean dryRun) {
+        if (running) return;
+        if (DpmHelper.getActiveMode(this) == DpmHelper.Mode.NONE) {
+            Toast.makeText(this, "Changing permissions needs Device Owner or Dhizuku.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        List<PermissionPolicy.Rule> rules;
+        try {
+            rules = PermissionPolicy.parse(rulesText.getText().toString());
+        } catch (IllegalArgumentException e) {
+            resultText.setText(e.getMessage());
+            return;
+        }
+        if (rules.isEmpty()) {
+            resultText.setText("No rules.");
+            return;
+        }
+
+        running = true;
+        resultText.setText(dryRun ? "Checking..." : "Applying...");
+        PermissionPolicy.run(this, rules, dryRun, new PermissionPolicy.Callback() {
+            @Override
+            public void onResult(List<PermissionPolicy.Item> items) {
+                running = false;
+                showResult(items, dryRun);
+            }
+        });
+    }
+
+    private void showResult(List<PermissionPolicy.Item> items, boolean dryRun) {
+        int changed = 0, unchanged = 0, failed = 0;
+        StringBuilder details = new StringBuilder();
+        for (PermissionPolicy.Item item : items) {
+            switch (item.result) {
+                case CHANGED:
+                    changed++;
+                    break;
+                case UNCHANGED:
+                    unchanged++;
+                    continue;
+                default:
+                    failed++;
+                    Logger.log(this, TAG, "Could not set " + item.permission + " of " + item.packageName);
+                    break;
+            }
+            String shortName = item.permission.substring(item.permission.lastIndexOf('.') + 1);
+            details.append(item.result == DpmHelper.BulkResult.FAILED ? "FAILED " : "")
+                    .append(item.packageName).append(' ').append(shortName).append(": ")
+                    .append(PermissionPolicy.stateName(item.current)).append(" -> ")
+                    .append(PermissionPolicy.stateName(item.target)).append('\n');
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(dryRun ? "Would change " : "Changed ").append(changed);
+        sb.append(", already set ").append(unchanged);
+        if (failed > 0) sb.append(", failed ").append(failed);
+        sb.append("\n\n").append(details);
+        resultText.setText(sb.toString());
+    }
+}
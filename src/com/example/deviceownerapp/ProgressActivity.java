@@ -6,6 +6,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.view.View;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
@@ -14,6 +16,9 @@ import android.content.DialogInterface;
  * Activity to show a progress spinner while installing.
  * It stays open until it receives a broadcast to close or finish.
  * Also handles showing errors and success messages from InstallResultReceiver.
+ * While visible it listens to {@link InstallProgress} and shows bytes written,
+ * throughput and ETA for the current install. Back asks whether to cancel the
+ * installs that haven't been committed yet.
  */
 public class ProgressActivity extends Activity {
 
@@ -22,6 +27,8 @@ public class ProgressActivity extends Activity {
     public static final String EXTRA_ERROR = "ERROR_MESSAGE";
     public static final String EXTRA_SUCCESS = "SUCCESS_MESSAGE";
 
+    private boolean cancelling = false;
+
     private BroadcastReceiver finishReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -29,6 +36,13 @@ public class ProgressActivity extends Activity {
         }
     };
 
+    private final InstallProgress.Listener progressListener = new InstallProgress.Listener() {
+        @Override
+        public void onProgress(InstallProgress progress) {
+            showProgress(progress);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -70,6 +84,52 @@ public class ProgressActivity extends Activity {
         }
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        InstallProgress.addListener(progressListener);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        InstallProgress.removeListener(progressListener);
+    }
+
+    private void showProgress(InstallProgress progress) {
+        if (getIntent().hasExtra(EXTRA_ERROR) || getIntent().hasExtra(EXTRA_SUCCESS)) {
+            return;
+        }
+
+        if (cancelling) {
+            return;
+        }
+
+        TextView textView = findViewById(R.id.progress_text);
+        if (textView != null) {
+            String prefix = progress.getCount() > 1
+                    ? "Installing " + progress.getIndex() + " of " + progress.getCount() + ": "
+                    : "Installing ";
+            textView.setText(prefix + progress.getLabel());
+        }
+
+        ProgressBar bar = findViewById(R.id.progress_bytes);
+        if (bar != null) {
+            int permille = progress.getPermille();
+            bar.setVisibility(View.VISIBLE);
+            bar.setIndeterminate(permille < 0);
+            if (permille >= 0) {
+                bar.setProgress(permille);
+            }
+        }
+
+        TextView detail = findViewById(R.id.progress_detail);
+        if (detail != null) {
+            detail.setVisibility(View.VISIBLE);
+            detail.setText(progress.isFinished() ? "Committing..." : progress.describe());
+        }
+    }
+
     private void showDialog(String title, String message) {
         new AlertDialog.Builder(this)
             .setTitle(title)
@@ -96,9 +156,31 @@ public class ProgressActivity extends Activity {
     @Override
     public void onBackPressed() {
         if (!getIntent().hasExtra(EXTRA_ERROR) && !getIntent().hasExtra(EXTRA_SUCCESS)) {
-             // Block back press during progress
+            // Stay open during progress; the result dialog follows the cancel
+            if (!cancelling) {
+                confirmCancel();
+            }
         } else {
             super.onBackPressed();
         }
     }
+
+    private void confirmCancel() {
+        new AlertDialog.Builder(this)
+            .setTitle("Cancel installation?")
+            .setMessage("Packages that are already installed stay installed.")
+            .setPositiveButton("Cancel install", new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    if (InstallService.cancelAll()) {
+                        cancelling = true;
+                        TextView textView = findViewById(R.id.progress_text);
+                        if (textView != null) {
+                            textView.setText("Cancelling...");
+                        }
+                    }
+                }
+            })
+            .setNegativeButton("Keep going", null)
+            .show();
+    }
 }
@@ -0,0 +1,341 @@
+package com.example.deviceownerapp;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Bundle reader for seekable sources. Parses the ZIP central directory (including
+ * ZIP64) directly from the file descriptor and opens entries with positional reads,
+ * so several entries can be read at the same time from one descriptor.
+ */
+public class SeekableBundleReader extends BundleReader {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final long ZIP32_MAX = 0xFFFFFFFFL;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ParcelFileDescriptor pfd;
+    private final FileInputStream fileStream;
+    private final FileChannel channel;
+    private final long fileSize;
+    private long centralDirectoryOffset;
+    private final List<Entry> entries;
+
+    public SeekableBundleReader(ParcelFileDescriptor pfd) throws IOException {
+        this(pfd, new ParcelFileDescriptor.AutoCloseInputStream(pfd));
+    }
+
+    /**
+     * Reader over a plain file, for the JVM benchmarks. It has no descriptor, so
+     * {@link #getFileDescriptor()} returns null.
+     */
+    SeekableBundleReader(FileInputStream fileStream) throws IOException {
+        this(null, fileStream);
+    }
+
+    private SeekableBundleReader(ParcelFileDescriptor pfd, FileInputStream fileStream) throws IOException {
+        this.pfd = pfd;
+        this.fileStream = fileStream;
+        this.channel = fileStream.getChannel();
+        try {
+            this.fileSize = channel.size();
+            this.entries = Collections.unmodifiableList(readCentralDirectory());
+        } catch (IOException e) {
+            fileStream.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return true;
+    }
+
+    /**
+     * All entries, in central directory order.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * The source descriptor. Owned by this reader; dup it before handing it out.
+     */
+    public ParcelFileDescriptor getFileDescriptor() {
+        return pfd;
+    }
+
+    public long getSize() {
+        return fileSize;
+    }
+
+    /**
+     * Start of the central directory; an APK signing block, if any, ends right here.
+     */
+    public long getCentralDirectoryOffset() {
+        return centralDirectoryOffset;
+    }
+
+    /**
+     * Read length bytes at the given absolute position.
+     */
+    public byte[] read(long position, int length) throws IOException {
+        return readFully(position, length).array();
+    }
+
+    @Override
+    public void forEachEntry(EntryVisitor visitor) throws IOException {
+        for (Entry entry : entries) {
+            if (entry.isDirectory()) {
+                visitor.onEntry(entry, null);
+                continue;
+            }
+            try (InputStream in = openEntry(entry)) {
+                visitor.onEntry(entry, in);
+            }
+        }
+    }
+
+    /**
+     * Open an entry for reading, inflating it if needed. Safe to call from several
+     * threads at once; each stream keeps its own file position.
+     */
+    public InputStream openEntry(Entry entry) throws IOException {
+        InputStream raw = new RangeInputStream(channel, getDataOffset(entry), entry.compressedSize);
+        switch (entry.method) {
+            case METHOD_STORED:
+                return raw;
+            case METHOD_DEFLATED:
+                return new EntryInflaterInputStream(raw);
+            default:
+                raw.close();
+                throw new IOException("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+    }
+
+    /**
+     * Offset of the first data byte of an entry, read from its local header.
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        ByteBuffer header = readFully(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Bad local header for " + entry.name);
+        }
+        int nameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileStream.close();
+    }
+
+    // ======== Central directory parsing ========
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        if (fileSize < EOCD_MIN_SIZE) {
+            throw new IOException("File too small to be a ZIP archive");
+        }
+
+        int tailSize = (int) Math.min(fileSize, EOCD_MIN_SIZE + MAX_COMMENT_SIZE);
+        long tailStart = fileSize - tailSize;
+        ByteBuffer tail = readFully(tailStart, tailSize);
+
+        int eocd = -1;
+        for (int i = tailSize - EOCD_MIN_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("End of central directory not found");
+        }
+
+        long entryCount = tail.getShort(eocd + 10) & 0xFFFF;
+        long cdSize = tail.getInt(eocd + 12) & ZIP32_MAX;
+        long cdOffset = tail.getInt(eocd + 16) & ZIP32_MAX;
+
+        if (entryCount == 0xFFFF || cdSize == ZIP32_MAX || cdOffset == ZIP32_MAX) {
+            long locatorPos = tailStart + eocd - 20;
+            if (locatorPos >= 0) {
+                ByteBuffer locator = readFully(locatorPos, 20);
+                if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                    ByteBuffer zip64 = readFully(locator.getLong(8), 56);
+                    if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                        throw new IOException("Bad ZIP64 end of central directory");
+                    }
+                    entryCount = zip64.getLong(32);
+                    cdSize = zip64.getLong(40);
+                    cdOffset = zip64.getLong(48);
+                }
+            }
+        }
+
+        if (cdOffset + cdSize > fileSize || cdSize > Integer.MAX_VALUE) {
+            throw new IOException("Central directory out of range");
+        }
+
+        centralDirectoryOffset = cdOffset;
+        ByteBuffer cd = readFully(cdOffset, (int) cdSize);
+        List<Entry> result = new ArrayList<>((int) Math.min(entryCount, 4096));
+        int pos = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (pos + 46 > cd.limit() || cd.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Corrupt central directory at entry " + i);
+            }
+            int method = cd.getShort(pos + 10) & 0xFFFF;
+            long compressedSize = cd.getInt(pos + 20) & ZIP32_MAX;
+            long size = cd.getInt(pos + 24) & ZIP32_MAX;
+            int nameLength = cd.getShort(pos + 28) & 0xFFFF;
+            int extraLength = cd.getShort(pos + 30) & 0xFFFF;
+            int commentLength = cd.getShort(pos + 32) & 0xFFFF;
+            long localOffset = cd.getInt(pos + 42) & ZIP32_MAX;
+
+            byte[] nameBytes = new byte[nameLength];
+            cd.position(pos + 46);
+            cd.get(nameBytes);
+            String name = new String(nameBytes, UTF_8);
+
+            // ZIP64 extended information: only the fields that overflowed are present, in this order
+            int extraPos = pos + 46 + nameLength;
+            int extraEnd = extraPos + extraLength;
+            while (extraPos + 4 <= extraEnd) {
+                int headerId = cd.getShort(extraPos) & 0xFFFF;
+                int dataSize = cd.getShort(extraPos + 2) & 0xFFFF;
+                if (headerId == 0x0001) {
+                    int field = extraPos + 4;
+                    if (size == ZIP32_MAX) { size = cd.getLong(field); field += 8; }
+                    if (compressedSize == ZIP32_MAX) { compressedSize = cd.getLong(field); field += 8; }
+                    if (localOffset == ZIP32_MAX) { localOffset = cd.getLong(field); }
+                    break;
+                }
+                extraPos += 4 + dataSize;
+            }
+
+            result.add(new Entry(name, method, compressedSize, size, localOffset));
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+        return result;
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // ======== Entry streams ========
+
+    /**
+     * Reads a byte range of the channel using positional reads only.
+     */
+    static class RangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        RangeInputStream(FileChannel channel, long start, long length) {
+            this.channel = channel;
+            this.position = start;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int toRead = (int) Math.min(len, remaining);
+            int read = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += read;
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.min(n, remaining);
+            position += skipped;
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Raw-deflate inflater that feeds the trailing dummy byte some streams need,
+     * the same way java.util.zip.ZipFile does.
+     */
+    private static class EntryInflaterInputStream extends InflaterInputStream {
+        private boolean eof = false;
+
+        EntryInflaterInputStream(InputStream in) {
+            super(in, new Inflater(true), 65536);
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new java.io.EOFException("Unexpected end of ZLIB input stream");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+    }
+}
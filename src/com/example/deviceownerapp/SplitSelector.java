@@ -0,0 +1,259 @@
+package com.example.deviceownerapp;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks the splits of a bundle this device actually needs, so the ABI, density
+ * and language splits meant for other devices are never inflated or written.
+ *
+ * Split IDs come from the bundle's {@link BundleMetadata} (XAPK manifest.json,
+ * bundletool toc.pb), falling back to the entry name. Config splits are grouped per module
+ * ("config.xxhdpi" belongs to the base, "feature.config.xxhdpi" to "feature"), and
+ * per module the selector keeps:
+ * - the ABI split for the most preferred entry of Build.SUPPORTED_ABIS present,
+ * - the density split closest to the screen density, preferring higher,
+ * - the language splits for the configured locales.
+ * The base, feature modules and config splits of unknown kinds are always kept.
+ */
+public class SplitSelector {
+
+    private static final String TAG = "SplitSelector";
+
+    private static final String CONFIG_MARKER = "config.";
+
+    private static final Map<String, Integer> DENSITIES = new HashMap<>();
+    static {
+        DENSITIES.put("ldpi", 120);
+        DENSITIES.put("mdpi", 160);
+        DENSITIES.put("tvdpi", 213);
+        DENSITIES.put("hdpi", 240);
+        DENSITIES.put("xhdpi", 320);
+        DENSITIES.put("xxhdpi", 480);
+        DENSITIES.put("xxxhdpi", 640);
+    }
+
+    private static final Set<String> ALL_ABIS = new HashSet<>(Arrays.asList(
+            "armeabi", "armeabi_v7a", "arm64_v8a", "x86", "x86_64", "mips", "mips64"));
+
+    private final List<String> abis = new ArrayList<>();
+    private final int densityDpi;
+    private final Set<String> languages = new HashSet<>();
+
+    public SplitSelector(Context context) {
+        for (String abi : Build.SUPPORTED_ABIS) {
+            abis.add(abi.replace('-', '_'));
+        }
+        Configuration config = context.getResources().getConfiguration();
+        densityDpi = context.getResources().getDisplayMetrics().densityDpi;
+        if (Build.VERSION.SDK_INT >= 24) {
+            for (int i = 0; i < config.getLocales().size(); i++) {
+                languages.add(config.getLocales().get(i).getLanguage());
+            }
+        } else {
+            languages.add(config.locale.getLanguage());
+        }
+    }
+
+    /**
+     * Choose the APK entries of a seekable bundle plan and store them on the plan.
+     * Entries its metadata excludes (other bundletool variants) are dropped first.
+     */
+    public static void apply(Context context, PackageFormatDetector.InstallPlan plan) {
+        if (plan.getSeekableReader() == null || !plan.isBundle()
+                || plan.getSelectedApkEntries() != plan.apkEntries) {
+            return;
+        }
+
+        List<BundleReader.Entry> candidates = new ArrayList<>();
+        for (BundleReader.Entry entry : plan.apkEntries) {
+            if (!plan.metadata.excluded.contains(entry.name)) {
+                candidates.add(entry);
+            }
+        }
+        List<String> ids = plan.metadata.getSplitIds(candidates);
+
+        Set<String> keep = new SplitSelector(context).select(ids);
+        List<BundleReader.Entry> selected = new ArrayList<>();
+        long skippedBytes = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            if (keep.contains(ids.get(i))) {
+                selected.add(candidates.get(i));
+            } else {
+                skippedBytes += Math.max(candidates.get(i).size, 0);
+            }
+        }
+        if (selected.size() < plan.apkEntries.size()) {
+            Logger.log(context, TAG, "Selected " + selected.size() + " of " + plan.apkEntries.size()
+                    + " APKs, skipping " + (skippedBytes / 1024) + " KB of splits for other devices");
+        }
+        plan.setSelectedApkEntries(selected);
+    }
+
+    /**
+     * "config.arm64_v8a.apk" -> "config.arm64_v8a". Anything without a config
+     * marker (base.apk, com.foo.apk, feature.apk) counts as a module and is kept.
+     */
+    public static String getSplitIdFromName(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT).endsWith(".apk")
+                ? fileName.substring(0, fileName.length() - 4) : fileName;
+        int marker = name.indexOf(CONFIG_MARKER);
+        if (marker > 0 && name.charAt(marker - 1) != '.') {
+            // "split_config.arm64_v8a" as written by some tools
+            name = name.substring(0, marker - 1) + "." + name.substring(marker);
+            if (name.startsWith("split.")) name = name.substring(6);
+        }
+        return name;
+    }
+
+    /**
+     * The subset of split IDs to install.
+     */
+    public Set<String> select(Iterable<String> splitIds) {
+        Map<String, List<String>> abiSplits = new HashMap<>();
+        Map<String, List<String>> densitySplits = new HashMap<>();
+        Set<String> keep = new HashSet<>();
+
+        for (String id : splitIds) {
+            String qualifier = getConfigQualifier(id);
+            if (qualifier == null) {
+                keep.add(id);
+            } else if (ALL_ABIS.contains(qualifier)) {
+                getList(abiSplits, getModule(id)).add(id);
+            } else if (DENSITIES.containsKey(qualifier)) {
+                getList(densitySplits, getModule(id)).add(id);
+            } else if (isLanguage(qualifier)) {
+                if (wantsLanguage(qualifier)) {
+                    keep.add(id);
+                }
+            } else {
+                // Texture formats, device tiers, ... : let the platform decide
+                keep.add(id);
+            }
+        }
+
+        for (List<String> candidates : abiSplits.values()) {
+            String best = null;
+            int bestRank = Integer.MAX_VALUE;
+            for (String id : candidates) {
+                int rank = abis.indexOf(getConfigQualifier(id));
+                if (rank >= 0 && rank < bestRank) {
+                    best = id;
+                    bestRank = rank;
+                }
+            }
+            if (best != null) {
+                keep.add(best);
+            } else {
+                // Nothing for this device; let the package manager report it
+                keep.addAll(candidates);
+            }
+        }
+
+        for (List<String> candidates : densitySplits.values()) {
+            keep.add(pickDensity(candidates));
+        }
+        return keep;
+    }
+
+    /**
+     * ABI and language filters that don't need to see the whole bundle, for
+     * streams where each split must be decided as it arrives. Keeps every ABI the
+     * device supports and every density, only dropping what can't be used.
+     */
+    public boolean acceptStreamed(String entryName) {
+        if (BundleMetadata.isExcludedFromStream(entryName)) {
+            return false;
+        }
+        String qualifier = getConfigQualifier(BundleMetadata.getSplitIdFromName(entryName));
+        if (qualifier == null) {
+            return true;
+        }
+        if (ALL_ABIS.contains(qualifier)) {
+            return abis.contains(qualifier);
+        }
+        if (isLanguage(qualifier)) {
+            return wantsLanguage(qualifier);
+        }
+        return true;
+    }
+
+    /**
+     * True for ABI and density qualifiers this class knows by name.
+     */
+    static boolean isKnownQualifier(String qualifier) {
+        return ALL_ABIS.contains(qualifier) || DENSITIES.containsKey(qualifier);
+    }
+
+    private String pickDensity(List<String> candidates) {
+        String bestHigher = null;
+        int bestHigherDpi = Integer.MAX_VALUE;
+        String bestLower = null;
+        int bestLowerDpi = 0;
+        for (String id : candidates) {
+            int dpi = DENSITIES.get(getConfigQualifier(id));
+            if (dpi >= densityDpi && dpi < bestHigherDpi) {
+                bestHigher = id;
+                bestHigherDpi = dpi;
+            } else if (dpi < densityDpi && dpi > bestLowerDpi) {
+                bestLower = id;
+                bestLowerDpi = dpi;
+            }
+        }
+        return bestHigher != null ? bestHigher : bestLower;
+    }
+
+    /**
+     * Index of the "config." marker in a split ID, or -1 if it isn't a config split.
+     */
+    private static int getConfigMarker(String id) {
+        if (id.startsWith(CONFIG_MARKER)) {
+            return 0;
+        }
+        int dot = id.indexOf("." + CONFIG_MARKER);
+        return dot < 0 ? -1 : dot + 1;
+    }
+
+    private static String getConfigQualifier(String id) {
+        int marker = getConfigMarker(id);
+        return marker < 0 ? null : id.substring(marker + CONFIG_MARKER.length()).toLowerCase(Locale.ROOT);
+    }
+
+    private static String getModule(String id) {
+        int marker = getConfigMarker(id);
+        return marker <= 0 ? "" : id.substring(0, marker - 1);
+    }
+
+    private static boolean isLanguage(String qualifier) {
+        // Two or three letter ISO 639 codes, optionally with a region ("pt_br")
+        String language = qualifier.split("[_-]")[0];
+        return (language.length() == 2 || language.length() == 3) && language.matches("[a-z]+");
+    }
+
+    /**
+     * True if the split's language is one of the configured locales. Only the
+     * language part is compared, so "pt_br" and "zh_tw" match a "pt" or "zh" locale.
+     */
+    private boolean wantsLanguage(String qualifier) {
+        return languages.contains(qualifier.split("[_-]")[0]);
+    }
+
+    private static List<String> getList(Map<String, List<String>> map, String key) {
+        List<String> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            map.put(key, list);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,314 @@
+package com.example.deviceownerapp;
+
+import android.content.pm.PackageInstaller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the APK entries of a bundle into an install session.
+ *
+ * When the bundle is seekable and has compressed splits, splits are inflated and
+ * written on a small worker pool, each through its own session.openWrite stream.
+ * STORED splits are copied straight from their byte range in the bundle without
+ * going through an inflater. Streaming bundles are written one split at a time.
+ */
+public class SplitWriter {
+
+    // Concurrent session writes; past this the flash, not the CPU, is the bottleneck
+    private static final int MAX_PARALLEL_WRITES = 4;
+
+    private final Sink sink;
+    private final InstallProgress progress;
+    private int maxWorkers = MAX_PARALLEL_WRITES;
+    private ApkValidator.StreamCheck streamCheck = null;
+    private SplitSelector selector = null;
+    private ObbInstaller obbInstaller = null;
+    private long extraBytes = 0;
+    private InstallTrace trace = null;
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    public SplitWriter(PackageInstaller.Session session) {
+        this(session, null);
+    }
+
+    /**
+     * @param progress credited with every byte written into the session, may be null
+     */
+    public SplitWriter(PackageInstaller.Session session, InstallProgress progress) {
+        this(sessionSink(session), progress);
+    }
+
+    SplitWriter(Sink sink, InstallProgress progress) {
+        this.sink = sink;
+        this.progress = progress;
+    }
+
+    /**
+     * Where the split bytes go. Always the install session, except in the JVM
+     * benchmarks.
+     */
+    interface Sink {
+        OutputStream openWrite(String name, long offset, long length) throws IOException;
+
+        void fsync(OutputStream out) throws IOException;
+    }
+
+    private static Sink sessionSink(final PackageInstaller.Session session) {
+        return new Sink() {
+            @Override
+            public OutputStream openWrite(String name, long offset, long length) throws IOException {
+                return session.openWrite(name, offset, length);
+            }
+
+            @Override
+            public void fsync(OutputStream out) throws IOException {
+                session.fsync(out);
+            }
+        };
+    }
+
+    /**
+     * Validate streamed splits on their way into the session. Seekable bundles
+     * are validated before writing and don't need this.
+     */
+    public void setStreamCheck(ApkValidator.StreamCheck streamCheck) {
+        this.streamCheck = streamCheck;
+    }
+
+    /**
+     * Skip streamed splits that can't be used on this device. Seekable bundles
+     * are selected up front and passed to {@link #writeApks(PackageFormatDetector.InstallPlan)}.
+     */
+    public void setSelector(SplitSelector selector) {
+        this.selector = selector;
+    }
+
+    /**
+     * Extract OBB entries of streamed bundles as they go by, into the obb
+     * directory of the package the stream check has seen. Needs a stream check.
+     */
+    public void setObbInstaller(ObbInstaller obbInstaller) {
+        this.obbInstaller = obbInstaller;
+    }
+
+    /**
+     * Bytes written after the splits (OBB files) that count toward the progress total.
+     */
+    public void setExtraBytes(long extraBytes) {
+        this.extraBytes = extraBytes;
+    }
+
+    /**
+     * Record session fsync time into the trace.
+     */
+    public void setTrace(InstallTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Cap the split writer pool below {@link #getWorkerCount}; 1 writes serially.
+     */
+    void setMaxWorkers(int maxWorkers) {
+        this.maxWorkers = maxWorkers;
+    }
+
+    /**
+     * APK bytes written into the session so far.
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Write the plan's selected APK entries into the session under their file
+     * names. Returns the number of APKs written.
+     */
+    public int writeApks(PackageFormatDetector.InstallPlan plan) throws IOException {
+        SeekableBundleReader seekable = plan.getSeekableReader();
+        if (seekable != null) {
+            return writeEntries(seekable, plan.getSelectedApkEntries());
+        }
+        return writeSerial(plan.reader);
+    }
+
+    /**
+     * Write the given APK entries of a seekable bundle. Returns the number written.
+     */
+    public int writeApks(SeekableBundleReader reader, List<BundleReader.Entry> apks) throws IOException {
+        return writeEntries(reader, apks);
+    }
+
+    /**
+     * Write every .apk entry of the bundle into the session under its file name.
+     * Returns the number of APKs written.
+     */
+    public int writeApks(BundleReader reader) throws IOException {
+        if (reader instanceof SeekableBundleReader) {
+            SeekableBundleReader seekable = (SeekableBundleReader) reader;
+            List<BundleReader.Entry> apks = new ArrayList<>();
+            for (BundleReader.Entry entry : seekable.getEntries()) {
+                if (entry.isApk()) {
+                    apks.add(entry);
+                }
+            }
+            return writeEntries(seekable, apks);
+        }
+        return writeSerial(reader);
+    }
+
+    private int writeEntries(SeekableBundleReader seekable, List<BundleReader.Entry> apks) throws IOException {
+        int deflated = 0;
+        for (BundleReader.Entry entry : apks) {
+            if (entry.method == BundleReader.METHOD_DEFLATED) {
+                deflated++;
+            }
+        }
+        if (progress != null) {
+            long total = getTotalSize(apks);
+            progress.setTotalBytes(total < 0 || extraBytes < 0 ? -1 : total + extraBytes);
+        }
+        int workers = Math.min(getWorkerCount(deflated), maxWorkers);
+        if (workers > 1) {
+            writeParallel(seekable, apks, workers);
+        } else {
+            byte[] buffer = new byte[FileTransfer.BUFFER_SIZE];
+            for (BundleReader.Entry entry : apks) {
+                writeEntry(seekable, entry, buffer);
+            }
+        }
+        return apks.size();
+    }
+
+    /**
+     * Pool size for the given number of compressed splits: one per core,
+     * capped by the I/O budget.
+     */
+    public static int getWorkerCount(int compressedSplits) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(compressedSplits, Math.min(cores, MAX_PARALLEL_WRITES)));
+    }
+
+    /**
+     * Uncompressed size of the given entries, or -1 if any of them is unknown.
+     */
+    public static long getTotalSize(List<BundleReader.Entry> entries) {
+        long total = 0;
+        for (BundleReader.Entry entry : entries) {
+            if (entry.size < 0) {
+                return -1;
+            }
+            total += entry.size;
+        }
+        return total;
+    }
+
+    private int writeSerial(BundleReader reader) throws IOException {
+        final byte[] buffer = new byte[FileTransfer.BUFFER_SIZE];
+        final int[] apkCount = {0};
+
+        reader.forEachEntry(new BundleReader.EntryVisitor() {
+            @Override
+            public void onEntry(BundleReader.Entry entry, InputStream in) throws IOException {
+                if (obbInstaller != null && streamCheck != null && ObbInstaller.isObb(entry)) {
+                    obbInstaller.extract(entry, in, streamCheck.getPackageName());
+                    return;
+                }
+                if (!entry.isApk()) {
+                    return;
+                }
+                if (selector != null && !selector.acceptStreamed(entry.name)) {
+                    return;
+                }
+                apkCount[0]++;
+                writeSplit(entry.getFileName(), entry.size,
+                        streamCheck != null ? streamCheck.wrap(in) : in, buffer);
+            }
+        });
+        return apkCount[0];
+    }
+
+    private void writeParallel(final SeekableBundleReader reader, List<BundleReader.Entry> apks,
+                               int workers) throws IOException {
+        // Largest first so the long inflates don't end up alone at the tail
+        List<BundleReader.Entry> ordered = new ArrayList<>(apks);
+        Collections.sort(ordered, new Comparator<BundleReader.Entry>() {
+            @Override
+            public int compare(BundleReader.Entry a, BundleReader.Entry b) {
+                return Long.compare(b.size, a.size);
+            }
+        });
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (final BundleReader.Entry entry : ordered) {
+                futures.add(pool.submit(new java.util.concurrent.Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        writeEntry(reader, entry, new byte[FileTransfer.BUFFER_SIZE]);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException(cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while writing splits");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void writeEntry(SeekableBundleReader reader, BundleReader.Entry entry, byte[] buffer) throws IOException {
+        try (OutputStream out = sink.openWrite(entry.getFileName(), 0, entry.size)) {
+            if (entry.method == BundleReader.METHOD_STORED) {
+                bytesWritten.addAndGet(FileTransfer.copyRange(reader.getChannel(), reader.getDataOffset(entry),
+                        entry.size, out, buffer, progress));
+            } else {
+                try (InputStream in = reader.openEntry(entry)) {
+                    bytesWritten.addAndGet(FileTransfer.copy(in, out, buffer, progress));
+                }
+            }
+            fsync(out);
+        }
+    }
+
+    private void writeSplit(String name, long size, InputStream in, byte[] buffer) throws IOException {
+        try (OutputStream out = sink.openWrite(name, 0, size)) {
+            bytesWritten.addAndGet(FileTransfer.copy(in, out, buffer, progress));
+            fsync(out);
+        }
+    }
+
+    private void fsync(OutputStream out) throws IOException {
+        if (trace == null) {
+            sink.fsync(out);
+            return;
+        }
+        long start = InstallTrace.now();
+        sink.fsync(out);
+        trace.record(InstallTrace.FSYNC, start, 0);
+    }
+}
@@ -0,0 +1,440 @@
+package com.example.deviceownerapp;
+
+import android.content.Context;
+import android.os.StatFs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Content-addressed store for install payloads under getCacheDir()/staging.
+ *
+ * Seekable sources are installed straight from their descriptor and never copied
+ * here; they only get a key so per-payload metadata (verified digests, etc.) can
+ * be remembered. One-shot streams can't be re-read, so they are teed into the
+ * store while they install, and the SHA-256 of the whole copy is recorded next to
+ * it. A retry of the same install then opens the staged copy as a seekable file
+ * instead of reading the stream again; {@link #getVerified} only returns a copy
+ * whose recorded hash is the one the retrying install's own tee produced.
+ *
+ * Keys are a SHA-1 over the size, the modification time and a head/tail sample of
+ * the content. They name payloads but don't prove two streams are the same: a new
+ * stream is always teed again rather than swapped for a staged copy. Payloads are
+ * evicted least-recently-used first once the store goes over its quota (a fixed
+ * cap, further limited to a share of the free space).
+ */
+public class StagingCache {
+
+    private static final String TAG = "StagingCache";
+
+    private static final String DIR_NAME = "staging";
+    private static final String PAYLOAD_SUFFIX = ".pkg";
+    private static final String META_SUFFIX = ".meta";
+    private static final String PART_SUFFIX = ".part";
+
+    private static final long MAX_QUOTA_BYTES = 2L * 1024 * 1024 * 1024;
+    // Staged payloads never take more than 1/4 of the free space
+    private static final int FREE_SPACE_DIVISOR = 4;
+
+    public static final int SAMPLE_SIZE = 65536;
+
+    // Sidecar entries written when a teed copy is published
+    private static final String META_SHA256 = "sha256";
+    private static final String META_SIZE = "size";
+
+    private static final Object lock = new Object();
+
+    private final Context context;
+    private final File dir;
+
+    public StagingCache(Context context) {
+        this.context = context.getApplicationContext();
+        this.dir = new File(context.getCacheDir(), DIR_NAME);
+    }
+
+    /**
+     * Content key from the size, mtime (0 if unknown) and head/tail samples.
+     * The tail may be null when the source can't seek.
+     */
+    public static String computeKey(long size, long mtime, byte[] head, int headLength, byte[] tail) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update((size + ":" + mtime + ":").getBytes("US-ASCII"));
+            md.update(head, 0, headLength);
+            if (tail != null) {
+                md.update(tail);
+            }
+            return toHex(md.digest());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    // ======== Payloads ========
+
+    /**
+     * The staged payload for key, or null. A hit counts as a use for LRU purposes.
+     */
+    public File getStaged(String key) {
+        File file = new File(dir, key + PAYLOAD_SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * The staged payload for key if it is the complete copy a tee produced with
+     * the given SHA-256 (see {@link #getSha256}). Another stream with the same
+     * sampled key may have been published over it since, so the recorded hash
+     * must match, as must the size.
+     */
+    public File getVerified(String key, String expectedSha256) {
+        File file = getStaged(key);
+        if (file == null || expectedSha256 == null) {
+            return null;
+        }
+        String sha256 = getMetadata(key, META_SHA256);
+        String size = getMetadata(key, META_SIZE);
+        if (!expectedSha256.equals(sha256) || size == null || !size.equals(String.valueOf(file.length()))) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Wrap a one-shot source so everything read from it is also written to the
+     * store under key. The payload is published when the wrapper is closed after a
+     * clean read; whatever the consumer didn't read (e.g. the central directory
+     * after a ZipInputStream pass) is drained into the copy first. Returns the
+     * source unchanged if the payload won't fit.
+     */
+    public InputStream tee(String key, InputStream source, long expectedSize) {
+        if (expectedSize > getQuota()) {
+            Logger.log(context, TAG, "Not staging " + key + ": " + expectedSize + " bytes is over quota");
+            return source;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return source;
+        }
+        try {
+            // Unique, so two installs with the same key never write one part file
+            File part = File.createTempFile(key + ".", PART_SUFFIX, dir);
+            return new StagingInputStream(source, key, part, new File(dir, key + PAYLOAD_SUFFIX));
+        } catch (IOException e) {
+            Logger.log(context, TAG, "Could not stage " + key + ": " + e.getMessage());
+            return source;
+        }
+    }
+
+    /**
+     * Make a stream returned by {@link #tee} drop its copy instead of finishing
+     * it on close, e.g. when the install is cancelled. No-op for other streams.
+     */
+    public static void discard(InputStream teed) {
+        if (teed instanceof StagingInputStream) {
+            ((StagingInputStream) teed).failed = true;
+        }
+    }
+
+    /**
+     * SHA-256 of the copy a stream returned by {@link #tee} published when it was
+     * closed, or null if it published nothing (or isn't a teed stream).
+     */
+    public static String getSha256(InputStream teed) {
+        return teed instanceof StagingInputStream ? ((StagingInputStream) teed).publishedSha256 : null;
+    }
+
+    /**
+     * Remove one payload and its metadata.
+     */
+    public void remove(String key) {
+        synchronized (lock) {
+            new File(dir, key + PAYLOAD_SUFFIX).delete();
+            new File(dir, key + META_SUFFIX).delete();
+        }
+    }
+
+    // ======== Metadata ========
+
+    public String getMetadata(String key, String name) {
+        synchronized (lock) {
+            return readMetadata(key).getProperty(name);
+        }
+    }
+
+    public void putMetadata(String key, String name, String value) {
+        synchronized (lock) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                return;
+            }
+            Properties props = readMetadata(key);
+            props.setProperty(name, value);
+            try (OutputStream out = new FileOutputStream(new File(dir, key + META_SUFFIX))) {
+                props.store(out, null);
+            } catch (IOException e) {
+                Logger.log(context, TAG, "Could not write metadata for " + key + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private Properties readMetadata(String key) {
+        Properties props = new Properties();
+        File file = new File(dir, key + META_SUFFIX);
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                props.load(in);
+            } catch (IOException ignored) {
+            }
+        }
+        return props;
+    }
+
+    // ======== Housekeeping ========
+
+    /**
+     * Delete temp files left by crashed or killed installs (old install*.xapk /
+     * split*.apk copies and unfinished staging parts), then trim to quota.
+     */
+    public void sweep() {
+        int removed = 0;
+        for (File cacheDir : new File[] {context.getCacheDir(), context.getExternalCacheDir()}) {
+            File[] files = cacheDir != null ? cacheDir.listFiles() : null;
+            if (files == null) continue;
+            for (File file : files) {
+                String name = file.getName();
+                boolean orphan = (name.startsWith("install") && (name.endsWith(".xapk") || name.endsWith(".apk")))
+                        || (name.startsWith("split") && name.endsWith(".apk"));
+                if (orphan && file.isFile() && file.delete()) {
+                    removed++;
+                }
+            }
+        }
+        synchronized (lock) {
+            File[] parts = dir.listFiles();
+            if (parts != null) {
+                for (File file : parts) {
+                    if (file.getName().endsWith(PART_SUFFIX) && file.delete()) {
+                        removed++;
+                    }
+                }
+            }
+        }
+        if (removed > 0) {
+            Logger.log(context, TAG, "Swept " + removed + " orphaned temp files");
+        }
+        trim(0);
+    }
+
+    /**
+     * Evict least recently used payloads until the store is under quota with
+     * room for another bytesNeeded. Returns the number of bytes freed.
+     */
+    public long trim(long bytesNeeded) {
+        return trim(bytesNeeded, null);
+    }
+
+    /**
+     * Same, never evicting the payload under keepKey (e.g. the one a retry installs from).
+     */
+    public long trim(long bytesNeeded, String keepKey) {
+        synchronized (lock) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return 0;
+            }
+            List<File> payloads = new ArrayList<>();
+            long used = 0;
+            for (File file : files) {
+                if (file.getName().endsWith(PAYLOAD_SUFFIX)) {
+                    payloads.add(file);
+                    used += file.length();
+                }
+            }
+
+            File[] sorted = payloads.toArray(new File[0]);
+            Arrays.sort(sorted, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+
+            long limit = getQuota() - bytesNeeded;
+            long freed = 0;
+            for (File file : sorted) {
+                if (used <= limit) break;
+                long length = file.length();
+                String name = file.getName();
+                String key = name.substring(0, name.length() - PAYLOAD_SUFFIX.length());
+                if (key.equals(keepKey)) continue;
+                if (file.delete()) {
+                    new File(dir, key + META_SUFFIX).delete();
+                    used -= length;
+                    freed += length;
+                }
+            }
+            if (freed > 0) {
+                Logger.log(context, TAG, "Evicted " + freed + " bytes of staged payloads");
+            }
+            return freed;
+        }
+    }
+
+    private long getQuota() {
+        long free;
+        try {
+            free = new StatFs(context.getCacheDir().getPath()).getAvailableBytes();
+        } catch (Exception e) {
+            free = 0;
+        }
+        long used = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                used += file.length();
+            }
+        }
+        // Space we already hold counts as available to us
+        return Math.min(MAX_QUOTA_BYTES, (free + used) / FREE_SPACE_DIVISOR);
+    }
+
+    /**
+     * Copies everything read through it into a .part file and publishes it on close.
+     */
+    private class StagingInputStream extends FilterInputStream {
+        private final String key;
+        private final File part;
+        private final File target;
+        private final MessageDigest sha256;
+        private OutputStream copy;
+        private volatile boolean failed = false;
+        private volatile String publishedSha256 = null;
+
+        StagingInputStream(InputStream source, String key, File part, File target) throws IOException {
+            super(source);
+            this.key = key;
+            this.part = part;
+            this.target = target;
+            try {
+                this.sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            this.copy = new FileOutputStream(part);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read;
+            try {
+                read = in.read(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+            if (read > 0 && !failed) {
+                writeCopy(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes still have to land in the copy
+            byte[] buffer = new byte[(int) Math.min(n, FileTransfer.BUFFER_SIZE)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private synchronized void writeCopy(byte[] b, int off, int len) {
+            if (copy == null) return;
+            try {
+                copy.write(b, off, len);
+                sha256.update(b, off, len);
+            } catch (IOException e) {
+                // Out of cache space: keep serving the install, just stop staging
+                Logger.log(context, TAG, "Staging stopped: " + e.getMessage());
+                discardCopy();
+            }
+        }
+
+        private synchronized void discardCopy() {
+            if (copy != null) {
+                try { copy.close(); } catch (IOException ignored) {}
+                copy = null;
+            }
+            part.delete();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (copy != null && !failed) {
+                    byte[] buffer = new byte[FileTransfer.BUFFER_SIZE];
+                    while (copy != null && !failed && read(buffer, 0, buffer.length) != -1) {
+                        // Drain the tail into the copy
+                    }
+                }
+            } catch (IOException e) {
+                failed = true;
+            } finally {
+                super.close();
+                if (copy != null && !failed) {
+                    copy.close();
+                    copy = null;
+                    boolean published;
+                    synchronized (lock) {
+                        // Metadata of whatever was staged under this key before doesn't apply
+                        new File(dir, key + META_SUFFIX).delete();
+                        published = part.renameTo(target);
+                        if (!published) {
+                            part.delete();
+                        }
+                    }
+                    if (published) {
+                        publishedSha256 = toHex(sha256.digest());
+                        putMetadata(key, META_SHA256, publishedSha256);
+                        putMetadata(key, META_SIZE, String.valueOf(target.length()));
+                        Logger.log(context, TAG, "Staged " + target.getName() + " (" + target.length() + " bytes)");
+                    }
+                    trim(0);
+                } else {
+                    discardCopy();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.deviceownerapp;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * One-pass bundle reader for sources that can't seek (pipes, network-backed
+ * providers). Entries are delivered in local header order; sizes of entries
+ * written with a data descriptor are unknown (-1) until they have been read.
+ */
+public class StreamingBundleReader extends BundleReader {
+
+    private final ZipInputStream zipStream;
+    private boolean consumed = false;
+
+    public StreamingBundleReader(InputStream in) {
+        this.zipStream = new ZipInputStream(new BufferedInputStream(in, 65536));
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return false;
+    }
+
+    @Override
+    public void forEachEntry(EntryVisitor visitor) throws IOException {
+        if (consumed) {
+            throw new IOException("Streaming bundle can only be read once");
+        }
+        consumed = true;
+
+        InputStream entryStream = new FilterInputStream(zipStream) {
+            @Override
+            public void close() {
+                // The visitor doesn't own the underlying ZipInputStream
+            }
+        };
+
+        ZipEntry zipEntry;
+        while ((zipEntry = zipStream.getNextEntry()) != null) {
+            Entry entry = new Entry(zipEntry.getName(), zipEntry.getMethod(),
+                    zipEntry.getCompressedSize(), zipEntry.getSize(), -1);
+            visitor.onEntry(entry, zipEntry.isDirectory() ? null : entryStream);
+            zipStream.closeEntry();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        zipStream.close();
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.deviceownerapp;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Works out whether a bundle can be applied as an incremental update of the
+ * installed package, writing only the splits that differ.
+ *
+ * The package manager only inherits splits into a session when every APK ends up
+ * with the same versionCode, so this applies when the bundle has the installed
+ * version (re-installs, adding or changing language/config splits). Each incoming
+ * split is compared with the installed one of the same split name: by size first,
+ * then by SHA-256 when the sizes match. Installed splits the bundle no longer has
+ * are removed. Anything else is a full install.
+ */
+public class UpdatePlanner {
+
+    private static final String TAG = "UpdatePlanner";
+
+    /**
+     * What a MODE_INHERIT_EXISTING session has to do.
+     */
+    public static class Update {
+        public final String packageName;
+        public final List<BundleReader.Entry> changed;
+        public final List<String> removed;
+
+        Update(String packageName, List<BundleReader.Entry> changed, List<String> removed) {
+            this.packageName = packageName;
+            this.changed = changed;
+            this.removed = removed;
+        }
+
+        /**
+         * True when the installed package already matches the bundle.
+         */
+        public boolean isEmpty() {
+            return changed.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    /**
+     * The incremental update for a validated seekable bundle, or null if it needs
+     * a full install.
+     */
+    public static Update plan(Context context, PackageFormatDetector.InstallPlan plan) {
+        SeekableBundleReader reader = plan.getSeekableReader();
+        Map<String, ApkManifest> manifests = plan.getManifests();
+        if (reader == null || !plan.isBundle() || manifests == null || manifests.isEmpty()
+                || Build.VERSION.SDK_INT < 26) {
+            return null;
+        }
+
+        ApkManifest first = manifests.values().iterator().next();
+        PackageInfo installed;
+        try {
+            installed = context.getPackageManager().getPackageInfo(first.packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+        if (installed.versionCode != first.versionCode) {
+            return null;
+        }
+
+        // Installed APK per split name, "" for the base
+        ApplicationInfo app = installed.applicationInfo;
+        Map<String, File> installedApks = new HashMap<>();
+        installedApks.put("", new File(app.sourceDir));
+        if (app.splitNames != null && app.splitSourceDirs != null) {
+            for (int i = 0; i < app.splitNames.length && i < app.splitSourceDirs.length; i++) {
+                installedApks.put(app.splitNames[i], new File(app.splitSourceDirs[i]));
+            }
+        }
+
+        List<BundleReader.Entry> changed = new ArrayList<>();
+        Set<String> incoming = new HashSet<>();
+        long start = System.currentTimeMillis();
+        try {
+            for (BundleReader.Entry entry : plan.getSelectedApkEntries()) {
+                ApkManifest manifest = manifests.get(entry.name);
+                if (manifest == null) {
+                    return null;
+                }
+                String splitName = manifest.isBase() ? "" : manifest.splitName;
+                incoming.add(splitName);
+                File current = installedApks.get(splitName);
+                if (current == null || !isSame(reader, entry, current)) {
+                    changed.add(entry);
+                }
+            }
+        } catch (IOException e) {
+            Logger.log(context, TAG, "Falling back to a full install: " + e.getMessage());
+            return null;
+        }
+
+        List<String> removed = new ArrayList<>();
+        if (app.splitNames != null) {
+            for (String splitName : app.splitNames) {
+                if (!incoming.contains(splitName)) {
+                    removed.add(splitName);
+                }
+            }
+        }
+
+        Logger.log(context, TAG, first.packageName + ": " + changed.size() + " of "
+                + plan.getSelectedApkEntries().size() + " APKs changed, " + removed.size() + " splits removed "
+                + Arrays.toString(removed.toArray()) + " in " + (System.currentTimeMillis() - start) + " ms");
+        return new Update(first.packageName, changed, removed);
+    }
+
+    private static boolean isSame(SeekableBundleReader reader, BundleReader.Entry entry, File installed)
+            throws IOException {
+        if (entry.size < 0 || !installed.isFile() || installed.length() != entry.size) {
+            return false;
+        }
+        byte[] incomingHash;
+        if (entry.method == BundleReader.METHOD_STORED) {
+            incomingHash = hash(new SeekableBundleReader.RangeInputStream(
+                    reader.getChannel(), reader.getDataOffset(entry), entry.size));
+        } else {
+            try (InputStream in = reader.openEntry(entry)) {
+                incomingHash = hash(in);
+            }
+        }
+        try (InputStream in = new FileInputStream(installed)) {
+            return MessageDigest.isEqual(incomingHash, hash(in));
+        }
+    }
+
+    private static byte[] hash(InputStream in) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        byte[] buffer = new byte[FileTransfer.BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            md.update(buffer, 0, read);
+        }
+        return md.digest();
+    }
+}